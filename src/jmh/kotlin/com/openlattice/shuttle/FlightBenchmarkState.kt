@@ -0,0 +1,103 @@
+package com.openlattice.shuttle
+
+import com.geekbeast.mappers.mappers.ObjectMappers
+import com.google.common.io.Resources
+import com.openlattice.client.RetrofitFactory
+import com.openlattice.data.serializers.FullQualifiedNameJacksonSerializer
+import com.openlattice.shuttle.benchmark.BenchmarkConfiguration
+import com.openlattice.shuttle.benchmark.SyntheticEdm
+import com.openlattice.shuttle.benchmark.SyntheticPayload
+import com.openlattice.shuttle.destinations.NoOpDestination
+import com.openlattice.shuttle.destinations.StorageDestination
+import com.openlattice.shuttle.ids.CoalescingEntityKeyIdReserver
+import com.openlattice.shuttle.logs.Blackbox
+import com.openlattice.shuttle.util.DataStoreType
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import java.util.*
+
+const val FLIGHT = "flights/flight_serializer.yaml"
+const val ROWS = 1_000
+
+/**
+ * A flight loaded from [FLIGHT], compiled against a synthetic EDM, and [ROWS] generated rows to run through it. The
+ * shuttle is never launched, so none of its pipeline threads are started.
+ */
+@State(Scope.Benchmark)
+open class FlightBenchmarkState {
+    lateinit var flight: Flight
+    lateinit var compiledFlight: CompiledFlight
+    lateinit var shuttle: Shuttle
+    lateinit var rows: List<Map<String, Any?>>
+
+    private lateinit var entityKeyIdReserver: CoalescingEntityKeyIdReserver
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        val yaml = ObjectMappers.getYamlMapper()
+        FullQualifiedNameJacksonSerializer.registerWithMapper(yaml)
+        flight = yaml.readValue(Resources.getResource(FLIGHT), Flight::class.java)
+
+        val payload = SyntheticPayload(
+            BenchmarkConfiguration(
+                rows = ROWS.toLong(),
+                columns = listOf("algo", "mode", "keySize"),
+                cardinality = 100,
+                duplicateKeyRatio = 0.1
+            )
+        )
+        rows = payload.getPayload().toList()
+
+        val edm = SyntheticEdm.forFlight(flight, setOf())
+        val environment = RetrofitFactory.Environment.PROD_INTEGRATION
+        compiledFlight = CompiledFlight.compile(
+            flight,
+            edm.entitySets,
+            edm.entityTypes,
+            edm.propertyTypes,
+            environment,
+            DataStoreType.NONE,
+            StorageDestination.REST
+        )
+
+        val parameters = MissionParameters.empty().let {
+            it.copy(checkpoint = it.checkpoint.copy(enabled = false))
+        }
+        entityKeyIdReserver = CoalescingEntityKeyIdReserver(
+            { keys -> keys.map { UUID.randomUUID() } },
+            parameters.entityKeyIdReservation
+        )
+        shuttle = Shuttle(
+            environment,
+            false,
+            mapOf(flight to payload),
+            mapOf(flight to compiledFlight),
+            edm.entitySets,
+            edm.entityTypes,
+            edm.propertyTypes,
+            mapOf(
+                StorageDestination.NO_OP to NoOpDestination(),
+                StorageDestination.REST to NoOpDestination()
+            ),
+            null,
+            mapOf(),
+            parameters,
+            DataStoreType.NONE,
+            StorageDestination.REST,
+            Blackbox.empty(),
+            Optional.empty(),
+            Optional.empty(),
+            null,
+            null,
+            entityKeyIdReserver
+        )
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        entityKeyIdReserver.close()
+    }
+}
@@ -0,0 +1,62 @@
+package com.openlattice.shuttle
+
+import com.openlattice.ApiHelpers
+import com.openlattice.shuttle.destinations.AddressedDataHolder
+import com.openlattice.shuttle.ids.HashedEntityIds
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.OperationsPerInvocation
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+import java.util.*
+
+/**
+ * Transformation of rows into entities and associations. Scores are per row.
+ */
+@State(Scope.Benchmark)
+@OperationsPerInvocation(ROWS)
+open class ImpulseBenchmark {
+    private lateinit var keys: List<Set<UUID>>
+    private lateinit var properties: List<List<Map<UUID, Set<Any>>>>
+
+    @Setup
+    fun setUp(state: FlightBenchmarkState) {
+        val entities = state.compiledFlight.entities
+        keys = entities.map { it.key }
+        properties = state.rows.map { row ->
+            entities.map { state.shuttle.buildPropertiesFromPropertyDefinitions(row, it).first }
+        }
+    }
+
+    @Benchmark
+    fun impulse(state: FlightBenchmarkState): AddressedDataHolder {
+        return state.shuttle.impulse(state.flight, state.rows, 1)
+    }
+
+    @Benchmark
+    fun buildProperties(state: FlightBenchmarkState, blackhole: Blackhole) {
+        val entities = state.compiledFlight.entities
+        state.rows.forEach { row ->
+            entities.forEach { blackhole.consume(state.shuttle.buildPropertiesFromPropertyDefinitions(row, it)) }
+        }
+    }
+
+    @Benchmark
+    fun defaultEntityId(blackhole: Blackhole) {
+        properties.forEach { rowProperties ->
+            rowProperties.forEachIndexed { index, entityProperties ->
+                blackhole.consume(ApiHelpers.generateDefaultEntityId(keys[index], entityProperties))
+            }
+        }
+    }
+
+    @Benchmark
+    fun hashedEntityId(blackhole: Blackhole) {
+        properties.forEach { rowProperties ->
+            rowProperties.forEachIndexed { index, entityProperties ->
+                blackhole.consume(HashedEntityIds.generate(keys[index], entityProperties))
+            }
+        }
+    }
+}
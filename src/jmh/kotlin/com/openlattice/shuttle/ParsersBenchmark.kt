@@ -0,0 +1,49 @@
+package com.openlattice.shuttle
+
+import com.openlattice.shuttle.util.Parsers
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.OperationsPerInvocation
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+import java.util.*
+
+/**
+ * Parsing of the string values typically found in csv and jdbc payloads. Scores are per value.
+ */
+@State(Scope.Benchmark)
+@OperationsPerInvocation(ROWS)
+open class ParsersBenchmark {
+    private lateinit var ints: List<String>
+    private lateinit var decimals: List<String>
+    private lateinit var booleans: List<String>
+    private lateinit var uuids: List<String>
+
+    @Setup
+    fun setUp() {
+        val random = Random(0L)
+        ints = List(ROWS) { " ${random.nextInt(100_000)} " }
+        decimals = List(ROWS) { String.format(Locale.ROOT, "%.2f", random.nextDouble() * 1_000) }
+        booleans = List(ROWS) { listOf("yes", "no", "true", "FALSE")[random.nextInt(4)] }
+        uuids = List(ROWS) { UUID(random.nextLong(), random.nextLong()).toString() }
+    }
+
+    @Benchmark
+    fun parseInt(blackhole: Blackhole) = ints.forEach { blackhole.consume(Parsers.parseInt(it)) }
+
+    @Benchmark
+    fun parseIntFromDecimal(blackhole: Blackhole) = decimals.forEach { blackhole.consume(Parsers.parseInt(it)) }
+
+    @Benchmark
+    fun parseLong(blackhole: Blackhole) = ints.forEach { blackhole.consume(Parsers.parseLong(it)) }
+
+    @Benchmark
+    fun parseDouble(blackhole: Blackhole) = decimals.forEach { blackhole.consume(Parsers.parseDouble(it)) }
+
+    @Benchmark
+    fun parseBoolean(blackhole: Blackhole) = booleans.forEach { blackhole.consume(Parsers.parseBoolean(it)) }
+
+    @Benchmark
+    fun parseUUID(blackhole: Blackhole) = uuids.forEach { blackhole.consume(Parsers.parseUUID(it)) }
+}
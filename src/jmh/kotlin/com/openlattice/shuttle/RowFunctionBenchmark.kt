@@ -0,0 +1,58 @@
+package com.openlattice.shuttle
+
+import conditions.BooleanAreNotNullCondition
+import conditions.BooleanIsNullCondition
+import conditions.BooleanRegexCondition
+import conditions.CompareCondition
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.OperationsPerInvocation
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+
+/**
+ * Conditions and generators evaluated against every row of a flight. Scores are per row.
+ */
+@State(Scope.Benchmark)
+@OperationsPerInvocation(ROWS)
+open class RowFunctionBenchmark {
+    private lateinit var rows: List<Map<String, String>>
+    private lateinit var generatedRows: List<Map<String, Any?>>
+    private lateinit var generator: (Map<String, Any?>) -> String?
+
+    private val regex = BooleanRegexCondition("algo", "^algo-1", false)
+    private val isNull = BooleanIsNullCondition("mode", false)
+    private val areNotNull = BooleanAreNotNullCondition(
+        listOf("algo", "mode", "keySize"),
+        BooleanAreNotNullCondition.CombinationType.all,
+        false
+    )
+    private val compare = CompareCondition("algo", listOf(), "mode", listOf(), CompareCondition.Comparison.le)
+
+    @Setup
+    fun setUp(state: FlightBenchmarkState) {
+        @Suppress("UNCHECKED_CAST")
+        rows = state.rows as List<Map<String, String>>
+        generatedRows = state.rows
+
+        // the generator of the first entity of the flight is a TransformSeriesGenerator.
+        val transformSeries = state.flight.entities.first { it.generator.isPresent }.generator.get()
+        generator = { transformSeries.apply(it) }
+    }
+
+    @Benchmark
+    fun regexCondition(blackhole: Blackhole) = rows.forEach { blackhole.consume(regex.apply(it)) }
+
+    @Benchmark
+    fun isNullCondition(blackhole: Blackhole) = rows.forEach { blackhole.consume(isNull.apply(it)) }
+
+    @Benchmark
+    fun areNotNullCondition(blackhole: Blackhole) = rows.forEach { blackhole.consume(areNotNull.apply(it)) }
+
+    @Benchmark
+    fun compareCondition(blackhole: Blackhole) = rows.forEach { blackhole.consume(compare.apply(it)) }
+
+    @Benchmark
+    fun transformSeriesGenerator(blackhole: Blackhole) = generatedRows.forEach { blackhole.consume(generator(it)) }
+}
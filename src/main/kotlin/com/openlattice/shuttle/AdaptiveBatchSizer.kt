@@ -0,0 +1,128 @@
+package com.openlattice.shuttle
+
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryPoolMXBean
+import java.lang.management.MemoryType
+import java.util.concurrent.TimeUnit
+
+/**
+ * Live heap as a fraction of the maximum heap, and the fraction of wall clock time spent in garbage collection since
+ * the previous sample.
+ */
+data class MemoryPressure(val heapFraction: Double, val gcFraction: Double)
+
+/**
+ * Samples [MemoryPressure] from the platform memory pool and garbage collector beans.
+ *
+ * The live heap is read from the old generation as it was left by its last collection, so that garbage which has not
+ * been collected yet does not count. Young generation pools are ignored, since they are mostly garbage between
+ * collections. The old generation is the heap pool that supports usage thresholds. Until it has been collected, its
+ * current usage is used instead, and collectors without such a pool fall back to the usage of the whole heap.
+ */
+class JvmMemoryPressure : () -> MemoryPressure {
+    private val memory = ManagementFactory.getMemoryMXBean()
+    private val oldGeneration: MemoryPoolMXBean? = ManagementFactory.getMemoryPoolMXBeans()
+        .firstOrNull { it.type == MemoryType.HEAP && it.isUsageThresholdSupported && it.isValid }
+    private var lastGcMillis = gcMillis()
+    private var lastSampleNanos = System.nanoTime()
+
+    @Synchronized
+    override fun invoke(): MemoryPressure {
+        val heapFraction = liveHeapFraction()
+
+        val now = System.nanoTime()
+        val gc = gcMillis()
+        val elapsedMillis = TimeUnit.NANOSECONDS.toMillis(now - lastSampleNanos)
+        val gcFraction = if (elapsedMillis > 0) (gc - lastGcMillis).toDouble() / elapsedMillis else 0.0
+        lastGcMillis = gc
+        lastSampleNanos = now
+
+        return MemoryPressure(heapFraction, gcFraction)
+    }
+
+    private fun liveHeapFraction(): Double {
+        val heap = memory.heapMemoryUsage
+        val pool = oldGeneration?.takeIf { it.isValid }
+        val used = when {
+            pool == null -> heap.used
+            (pool.collectionUsage?.used ?: 0L) > 0 -> pool.collectionUsage.used
+            else -> pool.usage.used
+        }
+        val max = pool?.usage?.max?.takeIf { it > 0 } ?: heap.max
+        return if (max > 0) used.toDouble() / max else 0.0
+    }
+
+    private fun gcMillis(): Long {
+        return ManagementFactory.getGarbageCollectorMXBeans().sumOf { it.collectionTime.coerceAtLeast(0) }
+    }
+}
+
+/**
+ * Sizes upload batches so that a batch takes about [AdaptiveBatchConfiguration.targetBatchMillis] to be transformed
+ * and written, starting from [initialBatchSize].
+ *
+ * The time per row is tracked as an exponentially weighted average of completed batches, and the batch size moves
+ * towards the size that meets the target by at most a factor of two per batch. The batch size is halved whenever the
+ * heap or time spent in garbage collection exceed their budgets, and does not grow again until pressure subsides.
+ */
+class AdaptiveBatchSizer(
+        initialBatchSize: Int,
+        private val configuration: AdaptiveBatchConfiguration,
+        private val memoryPressure: () -> MemoryPressure = JvmMemoryPressure()
+) {
+    companion object {
+        private const val SMOOTHING = 0.3
+    }
+
+    private var batchSize = initialBatchSize.coerceIn(configuration.minBatchSize, configuration.maxBatchSize)
+    private var millisPerRow = 0.0
+
+    @Synchronized
+    fun nextBatchSize(): Int = batchSize
+
+    /**
+     * Records that a batch of [rows] rows spent [elapsedMillis] being transformed and written to every destination,
+     * not counting the time it was queued, and returns the size of the next batch.
+     */
+    @Synchronized
+    fun record(rows: Int, elapsedMillis: Long): Int {
+        if (rows <= 0) {
+            return batchSize
+        }
+
+        val observed = elapsedMillis.toDouble() / rows
+        millisPerRow = if (millisPerRow == 0.0) observed else SMOOTHING * observed + (1 - SMOOTHING) * millisPerRow
+
+        val pressure = memoryPressure()
+        val target = if (pressure.heapFraction > configuration.maxHeapFraction
+                || pressure.gcFraction > configuration.maxGcFraction) {
+            batchSize / 2
+        } else if (millisPerRow > 0) {
+            val latencyTarget = (configuration.targetBatchMillis / millisPerRow).toLong()
+            latencyTarget.coerceIn(batchSize / 2L, batchSize * 2L).toInt()
+        } else {
+            batchSize * 2
+        }
+
+        batchSize = target.coerceIn(configuration.minBatchSize, configuration.maxBatchSize)
+        return batchSize
+    }
+}
+
+/**
+ * Splits a sequence into chunks whose size is decided by [nextSize] just before each chunk is read.
+ */
+fun <T> Sequence<T>.adaptiveChunks(nextSize: () -> Int): Sequence<List<T>> {
+    val source = this
+    return sequence {
+        val iterator = source.iterator()
+        while (iterator.hasNext()) {
+            val size = nextSize().coerceAtLeast(1)
+            val chunk = ArrayList<T>(size)
+            while (chunk.size < size && iterator.hasNext()) {
+                chunk.add(iterator.next())
+            }
+            yield(chunk)
+        }
+    }
+}
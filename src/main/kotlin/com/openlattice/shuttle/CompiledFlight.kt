@@ -0,0 +1,121 @@
+package com.openlattice.shuttle
+
+import com.openlattice.client.RetrofitFactory
+import com.openlattice.edm.EntitySet
+import com.openlattice.edm.type.EntityType
+import com.openlattice.edm.type.PropertyType
+import com.openlattice.shuttle.destinations.StorageDestination
+import com.openlattice.shuttle.util.DataStoreType
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import java.util.*
+
+/**
+ * A property definition with its property type and storage destination resolved against the EDM.
+ *
+ * @param encodeBinary Whether binary values have to be base64 encoded before being sent to the REST api.
+ * @param streamSpooledBinary Whether spooled binary values are streamed to the destination of the property, which
+ * only binary properties stored in S3 do. The property value of such a property is read from the row as it was read,
+ * so its transforms are handed a [com.openlattice.shuttle.payload.SpooledBinary] instead of a byte array and must pass
+ * it through unchanged. Every other property, condition and generator reads spooled binaries as byte arrays, see
+ * [com.openlattice.shuttle.payload.MaterializedRow].
+ */
+class CompiledPropertyDefinition(
+        val definition: PropertyDefinition,
+        val propertyTypeId: UUID,
+        val datatype: EdmPrimitiveTypeKind,
+        val storageDestination: StorageDestination,
+        val encodeBinary: Boolean,
+        val streamSpooledBinary: Boolean
+)
+
+/**
+ * An entity or association definition with its entity set, key and properties resolved against the EDM.
+ *
+ * @param key The ordered primary key property type ids of the entity set, used for default entity id generation.
+ * @param hashedEntityIds Whether default entity ids are hashed, see [com.openlattice.shuttle.ids.HashedEntityIds].
+ */
+class CompiledEntityDefinition<T : EntityDefinition>(
+        val definition: T,
+        val entitySetId: UUID,
+        val key: Set<UUID>,
+        val properties: Array<CompiledPropertyDefinition>,
+        val hashedEntityIds: Boolean = false
+)
+
+/**
+ * A flight with every EDM lookup that [Shuttle] needs per row resolved ahead of time. Definitions are kept in the same
+ * order as in the flight, so that transforming a row only requires walking arrays.
+ */
+class CompiledFlight(
+        val flight: Flight,
+        val entities: Array<CompiledEntityDefinition<EntityDefinition>>,
+        val associations: Array<CompiledEntityDefinition<AssociationDefinition>>
+) {
+    companion object {
+        @JvmStatic
+        fun compile(
+                flight: Flight,
+                entitySets: Map<String, EntitySet>,
+                entityTypes: Map<UUID, EntityType>,
+                propertyTypes: Map<FullQualifiedName, PropertyType>,
+                environment: RetrofitFactory.Environment,
+                dataStore: DataStoreType,
+                binaryDestination: StorageDestination,
+                hashedEntitySets: Set<String> = setOf(),
+                defaultDestination: StorageDestination = if (dataStore != DataStoreType.NONE) {
+                    StorageDestination.POSTGRES
+                } else {
+                    StorageDestination.REST
+                }
+        ): CompiledFlight {
+            fun <T : EntityDefinition> compileDefinition(definition: T): CompiledEntityDefinition<T> {
+                val entitySet = entitySets.getValue(definition.entitySetName)
+                val properties = definition.properties.map { propertyDefinition ->
+                    val propertyType = propertyTypes.getValue(propertyDefinition.fullQualifiedName)
+                    val storageDestination = if (definition.associateOnly) {
+                        StorageDestination.NO_OP
+                    } else {
+                        propertyDefinition.storageDestination.orElseGet {
+                            when (propertyType.datatype) {
+                                EdmPrimitiveTypeKind.Binary -> binaryDestination
+                                else -> defaultDestination
+                            }
+                        }
+                    }
+                    val encodeBinary = propertyType.datatype == EdmPrimitiveTypeKind.Binary
+                            && storageDestination == StorageDestination.REST
+                            && environment == RetrofitFactory.Environment.LOCAL
+
+                    CompiledPropertyDefinition(
+                            propertyDefinition,
+                            propertyType.id,
+                            propertyType.datatype,
+                            storageDestination,
+                            encodeBinary,
+                            propertyType.datatype == EdmPrimitiveTypeKind.Binary
+                                    && storageDestination == StorageDestination.S3
+                    )
+                }.toTypedArray()
+
+                /*
+                 * The key set returned by the entity type is an unmodifiable linked hash set, which keeps the key
+                 * property ordering stable for default entity id generation.
+                 */
+                return CompiledEntityDefinition(
+                        definition,
+                        entitySet.id,
+                        entityTypes.getValue(entitySet.entityTypeId).key,
+                        properties,
+                        hashedEntitySets.contains(definition.entitySetName)
+                )
+            }
+
+            return CompiledFlight(
+                    flight,
+                    flight.entities.map { compileDefinition(it) }.toTypedArray(),
+                    flight.associations.map { compileDefinition(it) }.toTypedArray()
+            )
+        }
+    }
+}
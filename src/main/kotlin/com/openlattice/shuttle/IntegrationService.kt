@@ -24,8 +24,11 @@ import com.openlattice.hazelcast.processors.shuttle.UpdateIntegrationEntryProces
 import com.openlattice.shuttle.destinations.IntegrationDestination
 import com.openlattice.shuttle.destinations.PostgresDestination
 import com.openlattice.shuttle.destinations.PostgresS3Destination
+import com.openlattice.shuttle.destinations.S3UploadExecutor
 import com.openlattice.shuttle.destinations.StorageDestination
+import com.openlattice.shuttle.ids.CoalescingEntityKeyIdReserver
 import com.openlattice.shuttle.logs.Blackbox
+import com.openlattice.shuttle.payload.BinarySpool
 import com.openlattice.shuttle.payload.JdbcPayload
 import com.openlattice.shuttle.payload.Payload
 import com.openlattice.shuttle.util.DataStoreType
@@ -41,6 +44,7 @@ import org.springframework.stereotype.Service
 import retrofit2.Retrofit
 import java.io.IOException
 import java.net.URL
+import java.nio.file.Paths
 import java.util.*
 import java.util.concurrent.Executors
 import java.util.concurrent.Semaphore
@@ -72,6 +76,10 @@ class IntegrationService(
     private val integrationJobs = HazelcastMap.INTEGRATION_JOBS.getMap(hazelcastInstance)
     private val jobQueue = HazelcastQueue.QUEUED_INTEGRATION_JOBS.getQueue(hazelcastInstance)
     private val semaphore = Semaphore(threadCount)
+    private val entityKeyIdReserver = CoalescingEntityKeyIdReserver(
+            { idService.reserveEntityKeyIds(it) },
+            missionParameters.entityKeyIdReservation
+    )
     private val executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount))
     private val statusPredicate = Predicates.or<UUID, IntegrationJob>(
             Predicates.equal<UUID, IntegrationJob>(INTEGRATION_STATUS, IntegrationStatus.IN_PROGRESS),
@@ -89,6 +97,9 @@ class IntegrationService(
 
     init {
         httpClient = OkHttpClient()
+        if (missionParameters.binarySpool.enabled) {
+            BinarySpool.clear(Paths.get(missionParameters.binarySpool.directory))
+        }
 
         executor.execute {
             semaphore.acquire()
@@ -144,12 +155,24 @@ class IntegrationService(
         //a non-null flight, and non-null key in order for the integration to run successfully
         val flightPlan = mutableMapOf<Flight, Payload>()
         val tableColsToPrint = mutableMapOf<Flight, List<String>>()
+        val binarySpool = if (missionParameters.binarySpool.enabled) {
+            BinarySpool(Paths.get(missionParameters.binarySpool.directory))
+        } else {
+            null
+        }
         integration.flightPlanParameters.values.forEach {
             val srcDataSourceProperties = Properties()
             srcDataSourceProperties.putAll(it.source)
             val srcDataSource = getSrcDataSource(srcDataSourceProperties)
             val rateLimited = readRateLimit != 0
-            val payload = JdbcPayload(readRateLimit.toDouble(), srcDataSource, it.sql, fetchSize, rateLimited)
+            val payload = JdbcPayload(
+                    readRateLimit.toDouble(),
+                    srcDataSource,
+                    it.sql,
+                    fetchSize,
+                    rateLimited,
+                    binarySpool
+            )
             flightPlan[it.flight!!] = payload
             tableColsToPrint[it.flight!!] = it.sourcePrimaryKeyColumns
         }
@@ -164,13 +187,30 @@ class IntegrationService(
 
         val destinationsMap = generateDestinationsMap(integration, missionParameters, generatePresignedUrlsFun)
 
+        val entitySetsByName = entitySets.values.associateBy { it.name }
+        val entityTypesById = entityTypes.values.associateBy { it.id }
+        val propertyTypesByFqn = propertyTypes.values.associateBy { it.type }
+        val compiledFlights = flightPlan.keys.associateWith {
+            CompiledFlight.compile(
+                    it,
+                    entitySetsByName,
+                    entityTypesById,
+                    propertyTypesByFqn,
+                    integration.environment,
+                    DataStoreType.POSTGRES,
+                    StorageDestination.S3,
+                    missionParameters.entityIds.hashedEntitySets
+            )
+        }
+
         val shuttle = Shuttle(
                 integration.environment,
                 true,
                 flightPlan,
-                entitySets.values.associateBy { it.name },
-                entityTypes.values.associateBy { it.id },
-                propertyTypes.values.associateBy { it.type },
+                compiledFlights,
+                entitySetsByName,
+                entityTypesById,
+                propertyTypesByFqn,
                 destinationsMap,
                 null,
                 tableColsToPrint,
@@ -182,13 +222,16 @@ class IntegrationService(
                 Optional.of(entitySets.getValue(integration.logEntitySetId.get())),
                 Optional.of(jobId),
                 idService,
-                hazelcastInstance
+                hazelcastInstance,
+                entityKeyIdReserver
         )
 
         executor.submit {
             semaphore.acquire()
             shuttle.launch(uploadBatchSize)
         }.addListener(Runnable {
+            binarySpool?.close()
+            destinationsMap.values.forEach { it.close() }
             integration.callbackUrls.ifPresent {
                 submitCallback(jobId, it, "Integration job with id $jobId succeeded! :D")
             }
@@ -269,20 +312,15 @@ class IntegrationService(
             generatePresignedUrlsFun: (List<S3EntityData>, PropertyUpdateType) -> List<String>
     ): Map<StorageDestination, IntegrationDestination> {
         val s3BucketUrl = integration.s3bucket
-        val postgresDataSource = HikariDataSource(HikariConfig(missionParameters.postgres.config))
-        val auroraDataSource = HikariDataSource(HikariConfig(missionParameters.aurora.config))
-        val alprDataSource = HikariDataSource(HikariConfig(missionParameters.alpr.config))
-        integration.maxConnections.ifPresent { postgresDataSource.maximumPoolSize = it }
-        integration.maxConnections.ifPresent { auroraDataSource.maximumPoolSize = it }
-        integration.maxConnections.ifPresent { alprDataSource.maximumPoolSize = it }
-
+        // connection pools are shared by every job, jobs limited to fewer connections limit themselves.
         val pgDestination = PostgresDestination(
             entitySets.mapKeys { it.value.id },
             entityTypes,
             propertyTypes.mapKeys { it.value.id },
             // TODO: how do we configure writing into aurora?
             DataStoreType.POSTGRES,
-            missionParameters
+            missionParameters,
+            integration.maxConnections.orElse(null)
         )
 
         if (s3BucketUrl.isBlank()) {
@@ -293,7 +331,12 @@ class IntegrationService(
                 .baseUrl(s3BucketUrl)
                 .client(RetrofitFactory.okHttpClient().build())
                 .build().create(S3Api::class.java)
-        val s3Destination = PostgresS3Destination(pgDestination, s3Api, generatePresignedUrlsFun)
+        val s3Destination = PostgresS3Destination(
+                pgDestination,
+                s3Api,
+                generatePresignedUrlsFun,
+                S3UploadExecutor.shared(missionParameters.s3Uploads)
+        )
         return mapOf(StorageDestination.POSTGRES to pgDestination, StorageDestination.S3 to s3Destination)
     }
 
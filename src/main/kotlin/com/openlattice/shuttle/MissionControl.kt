@@ -47,6 +47,7 @@ import org.apache.commons.lang3.exception.ExceptionUtils
 import org.apache.olingo.commons.api.edm.FullQualifiedName
 import org.slf4j.LoggerFactory
 import retrofit2.Retrofit
+import java.io.Closeable
 import java.util.*
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.TimeUnit
@@ -62,7 +63,7 @@ class MissionControl(
     s3BucketUrl: String,
     private val parameters: MissionParameters,
     dataStore: DataStoreType
-) {
+) : Closeable {
 
     constructor(
         environment: RetrofitFactory.Environment,
@@ -263,20 +264,34 @@ class MissionControl(
                 destinations[StorageDestination.S3] = PostgresS3Destination(
                     pgDestination,
                     s3Api!!,
-                    generatePresignedUrlsFun
+                    generatePresignedUrlsFun,
+                    S3UploadExecutor.shared(parameters.s3Uploads)
                 )
             }
         } else {
             destinations[StorageDestination.REST] = RestDestination(dataApi)
 
             if (s3BucketUrl.isNotBlank()) {
-                destinations[StorageDestination.S3] = S3Destination(dataApi, s3Api!!, generatePresignedUrlsFun)
+                destinations[StorageDestination.S3] = S3Destination(
+                    dataApi,
+                    s3Api!!,
+                    generatePresignedUrlsFun,
+                    S3UploadExecutor.shared(parameters.s3Uploads)
+                )
             }
         }
 
         integrationDestinations = destinations.toMap()
     }
 
+    /**
+     * Closes the destinations shared by every [Shuttle] prepared by this mission control, once none of them writes to
+     * them anymore.
+     */
+    override fun close() {
+        integrationDestinations.values.forEach { it.close() }
+    }
+
 
     fun prepare(
         flightPlan: Map<Flight, Payload>,
@@ -290,10 +305,24 @@ class MissionControl(
         }
         ensureValidIntegration(flightPlan)
 
+        val compiledFlights = flightPlan.keys.associateWith {
+            CompiledFlight.compile(
+                it,
+                entitySets,
+                entityTypes,
+                propertyTypes,
+                environment,
+                dataStore,
+                binaryStorageDestination,
+                parameters.entityIds.hashedEntitySets
+            )
+        }
+
         return Shuttle(
             environment,
             false,
             flightPlan,
+            compiledFlights,
             entitySets,
             entityTypes,
             propertyTypes,
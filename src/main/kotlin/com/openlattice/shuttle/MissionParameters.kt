@@ -4,7 +4,7 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties
 import com.fasterxml.jackson.annotation.JsonProperty
 import com.geekbeast.rhizome.configuration.configuration.annotation.ReloadableConfiguration
 import com.openlattice.shuttle.util.DataStoreType
-import com.zaxxer.hikari.HikariConfig
+import com.openlattice.shuttle.util.HikariDataSourceRegistry
 import com.zaxxer.hikari.HikariDataSource
 import java.util.*
 
@@ -17,11 +17,182 @@ data class PostgresConfiguration(
     @JsonProperty("config") val config: Properties
 )
 
+/**
+ * Sizing of the transform, entity key id reservation and write stages that [Shuttle] pipelines batches through.
+ * Each stage has its own worker pool and a bounded queue of batches waiting on it, so that a slow stage pushes back
+ * on the stage before it instead of accumulating batches in memory.
+ *
+ * Chunks with at least [parallelTransformThreshold] rows are split into slices that are transformed on a fork-join
+ * pool of [transformParallelism] threads. A threshold of zero keeps transformation of a chunk on a single thread.
+ *
+ * The estimated size of rows and transformed batches in flight is limited to [inFlightHeapFraction] of the maximum
+ * heap. The payload reader blocks until the next chunk fits.
+ *
+ * Up to [concurrentFlights] flights of a flight plan are run at the same time, sharing the stage pools. Each flight
+ * has at most [maxInFlightBatchesPerFlight] batches in the pipeline and an equal share of the in flight heap, so that
+ * a large flight can neither fill the stage queues nor the memory budget and starve the others.
+ */
+data class PipelineConfiguration(
+    @JsonProperty("transform-threads") val transformThreads: Int = Runtime.getRuntime().availableProcessors(),
+    @JsonProperty("entity-key-id-threads") val entityKeyIdThreads: Int = 4,
+    @JsonProperty("write-threads") val writeThreads: Int = 4,
+    @JsonProperty("queue-capacity") val queueCapacity: Int = 2,
+    @JsonProperty("parallel-transform-threshold") val parallelTransformThreshold: Int = 0,
+    @JsonProperty("transform-parallelism") val transformParallelism: Int = Runtime.getRuntime().availableProcessors(),
+    @JsonProperty("in-flight-heap-fraction") val inFlightHeapFraction: Double = 0.4,
+    @JsonProperty("concurrent-flights") val concurrentFlights: Int = 1,
+    @JsonProperty("max-in-flight-batches-per-flight") val maxInFlightBatchesPerFlight: Int = 8
+)
+
+/**
+ * Controls how [com.openlattice.shuttle.destinations.PostgresDestination] writes to the target data store. When
+ * [bulkLoad] is enabled, property values of batches with at least [bulkLoadThreshold] values are streamed with binary
+ * `COPY` into a temporary staging table and upserted with a single statement. Values of binary, decimal, geography and
+ * other datatypes without a copy encoding are always written with batched statements.
+ *
+ * The entity sets of a batch are written concurrently over up to [connectionFanOut] pooled connections. Entity sets
+ * with more than [entitySetSliceSize] entities in a batch are split into slices of sorted entity key ids that are
+ * written concurrently as well. Concurrent writes of all batches run on a pool of [writerThreads] threads per
+ * destination.
+ *
+ * Batched property value upserts are sent to the database once [flushRows] rows or [flushBytes] estimated bytes are
+ * pending across all property types of an entity set.
+ */
+data class PostgresWriteConfiguration(
+    @JsonProperty("bulk-load") val bulkLoad: Boolean = false,
+    @JsonProperty("bulk-load-threshold") val bulkLoadThreshold: Int = 1_000,
+    @JsonProperty("connection-fan-out") val connectionFanOut: Int = 4,
+    @JsonProperty("writer-threads") val writerThreads: Int = 16,
+    @JsonProperty("entity-set-slice-size") val entitySetSliceSize: Int = 10_000,
+    @JsonProperty("flush-rows") val flushRows: Int = 5_000,
+    @JsonProperty("flush-bytes") val flushBytes: Long = 8L * 1024 * 1024
+)
+
+/**
+ * Sizing of the cache of entity key ids that [Shuttle] keeps across batches and flights, so that only entity keys it
+ * has not seen before are sent to the id service.
+ *
+ * When [offHeap] is enabled, ids are kept in direct memory in a table of [maximumSize] slots of 32 bytes each, instead
+ * of in an on-heap LRU cache.
+ */
+data class EntityKeyIdCacheConfiguration(
+    @JsonProperty("enabled") val enabled: Boolean = true,
+    @JsonProperty("maximum-size") val maximumSize: Long = 1_000_000,
+    @JsonProperty("off-heap") val offHeap: Boolean = false
+)
+
+/**
+ * Coalescing of entity key id reservations. Keys requested concurrently are sent to the id service in calls of up to
+ * [maxBatchSize] keys, collected for at most [windowMillis] milliseconds, with at most [concurrentCalls] calls in
+ * flight. Closing the reserver waits at most [closeTimeoutMillis] milliseconds for calls in flight.
+ */
+data class EntityKeyIdReservationConfiguration(
+    @JsonProperty("window-millis") val windowMillis: Long = 5,
+    @JsonProperty("max-batch-size") val maxBatchSize: Int = 10_000,
+    @JsonProperty("concurrent-calls") val concurrentCalls: Int = 4,
+    @JsonProperty("close-timeout-millis") val closeTimeoutMillis: Long = 60_000
+)
+
+/**
+ * Checkpointing of flight progress. When [enabled], the number of payload rows of each flight committed to every
+ * destination is recorded after each batch, in [directory] on the CLI and in hazelcast on the shuttle server, keyed by
+ * integration job and flight. When [resume] is set, flights skip the rows committed by a previous run of the job.
+ *
+ * Rows are skipped by their position in the payload, so only payloads that return rows in the same order on every
+ * run can be resumed. Csv files are. Sql queries are only resumed if [assumeOrderedSource] is set, which asserts that
+ * every query orders its rows by a unique key. Resuming any other payload fails the flight.
+ */
+data class CheckpointConfiguration(
+    @JsonProperty("enabled") val enabled: Boolean = false,
+    @JsonProperty("resume") val resume: Boolean = false,
+    @JsonProperty("directory") val directory: String = ".shuttle/checkpoints",
+    @JsonProperty("assume-ordered-source") val assumeOrderedSource: Boolean = false
+)
+
+/**
+ * Adaptive sizing of upload batches. When [enabled], the upload batch size only sets the size of the first batch of
+ * each flight, and later batches are resized between [minBatchSize] and [maxBatchSize] rows towards batches that take
+ * [targetBatchMillis] to be transformed and written. Batches shrink while the heap left after garbage collection is
+ * above [maxHeapFraction] of the maximum heap or more than [maxGcFraction] of the time is spent in garbage collection.
+ */
+data class AdaptiveBatchConfiguration(
+    @JsonProperty("enabled") val enabled: Boolean = false,
+    @JsonProperty("target-batch-millis") val targetBatchMillis: Long = 30_000,
+    @JsonProperty("min-batch-size") val minBatchSize: Int = 1_000,
+    @JsonProperty("max-batch-size") val maxBatchSize: Int = 200_000,
+    @JsonProperty("max-heap-fraction") val maxHeapFraction: Double = 0.75,
+    @JsonProperty("max-gc-fraction") val maxGcFraction: Double = 0.1
+)
+
+/**
+ * Uploads of binary values to S3. Uploads run on a dedicated pool of [threads] threads shared by all integrations in
+ * the JVM, with at most [maxConcurrentPerHost] uploads to the same host at a time. Failed uploads are retried up to
+ * [maxRetries] times with jittered exponential backoff from [initialRetryDelayMillis] up to [maxRetryDelayMillis].
+ */
+data class S3UploadConfiguration(
+    @JsonProperty("threads") val threads: Int = 32,
+    @JsonProperty("max-concurrent-per-host") val maxConcurrentPerHost: Int = 16,
+    @JsonProperty("max-retries") val maxRetries: Int = 22,
+    @JsonProperty("initial-retry-delay-millis") val initialRetryDelayMillis: Long = 100,
+    @JsonProperty("max-retry-delay-millis") val maxRetryDelayMillis: Long = 60_000
+)
+
+/**
+ * Spooling of binary values read from sql sources. When [enabled], binary columns are streamed into files in
+ * [directory] while they are read, and rows only hold a handle to the file. Spooled values are streamed from there to
+ * S3, and only read back into memory for destinations that need bytes.
+ */
+data class BinarySpoolConfiguration(
+    @JsonProperty("enabled") val enabled: Boolean = false,
+    @JsonProperty("directory") val directory: String = ".shuttle/spool"
+)
+
+/**
+ * Default entity id generation. Entity sets in [hashedEntitySets] get fixed size ids hashed from their key property
+ * values, see [com.openlattice.shuttle.ids.HashedEntityIds], instead of the concatenation of the key property values.
+ *
+ * Only list entity sets that were created by shuttle and have always been written with hashed ids. Switching the
+ * scheme of an entity set that already has data changes the ids of its existing entities, which are then duplicated.
+ */
+data class EntityIdConfiguration(
+    @JsonProperty("hashed-entity-sets") val hashedEntitySets: Set<String> = setOf()
+)
+
+/**
+ * Quarantine of records that fail to integrate. When [enabled], a batch that fails to transform, or to be written
+ * after [writeRetries] retries, is bisected down to the rows, entities and associations that fail on their own. Those
+ * are appended to [file] as json lines along with the error and the rest of the batch is integrated, instead of
+ * failing the run. The end of each flight logs a summary listing up to [summaryRecords] of its quarantined records.
+ *
+ * Only failures caused by the data itself are bisected, such as constraint violations or values that fail to parse.
+ * Connection failures and timeouts still fail the run. A batch that quarantines more than [maxBatchFraction] of its
+ * records fails the run as well, since that usually points at a broken flight rather than at bad records.
+ */
+data class QuarantineConfiguration(
+    @JsonProperty("enabled") val enabled: Boolean = false,
+    @JsonProperty("file") val file: String = ".shuttle/quarantine.jsonl",
+    @JsonProperty("write-retries") val writeRetries: Int = 3,
+    @JsonProperty("summary-records") val summaryRecords: Int = 20,
+    @JsonProperty("max-batch-fraction") val maxBatchFraction: Double = 0.1
+)
+
 @ReloadableConfiguration(uri = "shuttle.yaml")
 data class MissionParameters(
     @JsonProperty("postgres") val postgres: PostgresConfiguration = PostgresConfiguration(Properties()),
     @JsonProperty("aurora") val aurora: PostgresConfiguration = PostgresConfiguration(Properties()),
-    @JsonProperty("alpr") val alpr: PostgresConfiguration = PostgresConfiguration(Properties())
+    @JsonProperty("alpr") val alpr: PostgresConfiguration = PostgresConfiguration(Properties()),
+    @JsonProperty("pipeline") val pipeline: PipelineConfiguration = PipelineConfiguration(),
+    @JsonProperty("postgres-writes") val postgresWrites: PostgresWriteConfiguration = PostgresWriteConfiguration(),
+    @JsonProperty("entity-key-id-cache") val entityKeyIdCache: EntityKeyIdCacheConfiguration =
+        EntityKeyIdCacheConfiguration(),
+    @JsonProperty("entity-key-id-reservation") val entityKeyIdReservation: EntityKeyIdReservationConfiguration =
+        EntityKeyIdReservationConfiguration(),
+    @JsonProperty("checkpoint") val checkpoint: CheckpointConfiguration = CheckpointConfiguration(),
+    @JsonProperty("adaptive-batching") val adaptiveBatching: AdaptiveBatchConfiguration = AdaptiveBatchConfiguration(),
+    @JsonProperty("quarantine") val quarantine: QuarantineConfiguration = QuarantineConfiguration(),
+    @JsonProperty("entity-ids") val entityIds: EntityIdConfiguration = EntityIdConfiguration(),
+    @JsonProperty("binary-spool") val binarySpool: BinarySpoolConfiguration = BinarySpoolConfiguration(),
+    @JsonProperty("s3-uploads") val s3Uploads: S3UploadConfiguration = S3UploadConfiguration()
 ) {
     companion object {
         @JvmStatic
@@ -34,11 +205,16 @@ data class MissionParameters(
         }
     }
 
+    /**
+     * Returns the shared connection pool for writes to the target data store. Unless the data store configures it,
+     * batched inserts are rewritten into multi-row inserts. Callers must not close the returned pool.
+     */
     fun getTargetHikariDataSource(targetDataStore: DataStoreType): HikariDataSource {
-        return when (targetDataStore) {
-            DataStoreType.ALPR -> HikariDataSource(HikariConfig(alpr.config))
-            DataStoreType.AURORA -> HikariDataSource(HikariConfig(aurora.config))
-            else -> HikariDataSource(HikariConfig(postgres.config))
+        val config = when (targetDataStore) {
+            DataStoreType.ALPR -> alpr.config
+            DataStoreType.AURORA -> aurora.config
+            else -> postgres.config
         }
+        return HikariDataSourceRegistry.getDataSource(targetDataStore, config, rewriteBatchedInserts = true)
     }
 }
@@ -21,18 +21,20 @@
 
 package com.openlattice.shuttle
 
-import com.codahale.metrics.MetricRegistry
-import com.codahale.metrics.Slf4jReporter
+import com.codahale.metrics.Counter
 import com.geekbeast.util.ExponentialBackoff
 import com.geekbeast.util.attempt
 import com.google.common.base.Stopwatch
+import com.google.common.math.IntMath
 import com.google.common.collect.ImmutableList
+import com.google.common.collect.Lists
 import com.google.common.collect.Maps
 import com.google.common.collect.Sets
+import com.google.common.util.concurrent.Futures
 import com.google.common.util.concurrent.ListeningExecutorService
 import com.google.common.util.concurrent.MoreExecutors
+import com.google.common.util.concurrent.ThreadFactoryBuilder
 import com.hazelcast.core.HazelcastInstance
-import com.hazelcast.map.IMap
 import com.openlattice.ApiHelpers
 import com.openlattice.IdConstants
 import com.openlattice.client.RetrofitFactory
@@ -43,37 +45,66 @@ import com.openlattice.edm.EntitySet
 import com.openlattice.edm.type.EntityType
 import com.openlattice.edm.type.PropertyType
 import com.openlattice.hazelcast.HazelcastMap
-import com.openlattice.hazelcast.processors.shuttle.UpdateIntegrationStatusEntryProcessor
 import com.geekbeast.retrofit.RhizomeRetrofitCallException
+import com.openlattice.shuttle.checkpoint.CheckpointKey
+import com.openlattice.shuttle.checkpoint.CheckpointTracker
+import com.openlattice.shuttle.checkpoint.HazelcastCheckpointStore
+import com.openlattice.shuttle.checkpoint.LocalFileCheckpointStore
 import com.openlattice.shuttle.destinations.AddressedDataHolder
 import com.openlattice.shuttle.destinations.IntegrationDestination
 import com.openlattice.shuttle.destinations.PostgresDestination
 import com.openlattice.shuttle.destinations.StorageDestination
+import com.openlattice.shuttle.ids.CoalescingEntityKeyIdReserver
+import com.openlattice.shuttle.ids.EntityKeyIdCache
+import com.openlattice.shuttle.ids.HashedEntityIds
 import com.openlattice.shuttle.logs.Blackbox
+import com.openlattice.shuttle.logs.BlackboxLogSink
 import com.openlattice.shuttle.logs.BlackboxProperty
+import com.openlattice.shuttle.metrics.FlightMetrics
+import com.openlattice.shuttle.metrics.ShuttleMetrics
+import com.openlattice.shuttle.payload.MaterializedRow
 import com.openlattice.shuttle.payload.Payload
+import com.openlattice.shuttle.payload.SpooledBinary
+import com.openlattice.shuttle.quarantine.Quarantine
+import com.openlattice.shuttle.quarantine.bisect
+import com.openlattice.shuttle.quarantine.isDataError
+import com.openlattice.shuttle.quarantine.isTransientError
 import com.openlattice.shuttle.util.DataStoreType
+import com.openlattice.shuttle.util.HikariDataSourceRegistry
+import com.openlattice.shuttle.util.MemoryBudget
+import com.openlattice.shuttle.util.SizeEstimator
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
 import org.apache.commons.lang3.StringUtils
-import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
 import org.apache.olingo.commons.api.edm.FullQualifiedName
 import org.slf4j.LoggerFactory
-import java.time.OffsetDateTime
+import java.math.RoundingMode
+import java.nio.file.Paths
 import java.util.*
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Callable
 import java.util.concurrent.ConcurrentSkipListMap
+import java.util.concurrent.ExecutionException
 import java.util.concurrent.Executors
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.Phaser
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.RejectedExecutionHandler
 import java.util.concurrent.Semaphore
+import java.util.concurrent.ThreadPoolExecutor
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.atomic.LongAdder
+import java.util.stream.Collectors
+import java.util.stream.IntStream
 
 
 const val DEFAULT_UPLOAD_SIZE = 100_000
 const val MAX_DELAY = 8L * 60L * 1000L
 const val MAX_RETRIES = 128
+private const val TRANSFORM_STAGE = "transform"
+private const val ENTITY_SET_FIELD = "entitySet"
 val ID_PTID = IdConstants.ID_ID.id
 
-private val threadCount = 2 * Runtime.getRuntime().availableProcessors()
 private val encoder = Base64.getEncoder()
 
 /**
@@ -85,13 +116,14 @@ class Shuttle(
     private val environment: RetrofitFactory.Environment,
     private val isShuttleServer: Boolean,
     private val flightPlan: Map<Flight, Payload>,
+    private val compiledFlights: Map<Flight, CompiledFlight>,
     private val entitySets: Map<String, EntitySet>,
     private val entityTypes: Map<UUID, EntityType>,
     private val propertyTypes: Map<FullQualifiedName, PropertyType>,
     private val integrationDestinations: Map<StorageDestination, IntegrationDestination>,
     private val dataIntegrationApi: DataIntegrationApi?,
     private val tableColsToPrint: Map<Flight, List<String>>,
-    parameters: MissionParameters,
+    private val parameters: MissionParameters,
     private val dataStore: DataStoreType,
     private val binaryDestination: StorageDestination,
     blackbox: Blackbox,
@@ -99,47 +131,29 @@ class Shuttle(
     maybeJobId: Optional<UUID>,
     private val idService: EntityKeyIdService?,
     hazelcastInstance: HazelcastInstance?,
-    private val uploadingExecutor: ListeningExecutorService = MoreExecutors.listeningDecorator(
-        Executors.newFixedThreadPool(threadCount)
-    )
+    sharedEntityKeyIdReserver: CoalescingEntityKeyIdReserver? = null
 ) {
     companion object {
         private val logger = LoggerFactory.getLogger(Shuttle::class.java)
-        private val metrics = MetricRegistry()
-        private val uploadRate = metrics.meter(MetricRegistry.name(Shuttle::class.java, "uploads"))
-        private val transformRate = metrics.meter(MetricRegistry.name(Shuttle::class.java, "transforms"))
-        private val reporter = Slf4jReporter.forRegistry(metrics)
-            .outputTo(LoggerFactory.getLogger(Shuttle::class.java))
-            .convertRatesTo(TimeUnit.SECONDS)
-            .convertDurationsTo(TimeUnit.MILLISECONDS)
-            .build()
-
-        init {
-            reporter.start(1, TimeUnit.MINUTES)
-        }
     }
 
     //functions whose bodies differ when shuttle is run on or off shuttle server
     private var writeLog: (String, Set<String>, IntegrationStatus) -> Unit
     private var getEntityKeyIds: (Set<EntityKey>) -> Iterable<UUID>
 
-    //vars to be used only when shuttle is run on shuttle server
-    private lateinit var logEntitySet: EntitySet
-    private lateinit var logsDestination: PostgresDestination
-    private lateinit var integrationJobs: IMap<UUID, IntegrationJob>
-    private val logProperties = mutableMapOf<FullQualifiedName, PropertyType>()
-    private val ptidsByBlackboxProperty = mutableMapOf<BlackboxProperty, UUID>()
+    //only used when shuttle is run on shuttle server
+    private var logSink: BlackboxLogSink? = null
+
+    private val entityKeyIdCache = EntityKeyIdCache.create(parameters.entityKeyIdCache)
+
+    private val flightMetrics = compiledFlights.mapValues { FlightMetrics(it.value) }
+    private val entitySetNames = entitySets.values.associate { it.id to it.name }
 
     init {
         if (blackbox.enabled && isShuttleServer) {
             val jobId = maybeJobId.get()
-            integrationJobs = HazelcastMap.INTEGRATION_JOBS.getMap(hazelcastInstance!!)
-
-            this.writeLog = { name, log, status ->
-                log.forEach { logger.info(it) }
-                storeLog(name, log, status, jobId)
-                integrationJobs.executeOnKey(jobId, UpdateIntegrationStatusEntryProcessor(status))
-            }
+            val logProperties = mutableMapOf<FullQualifiedName, PropertyType>()
+            val ptidsByBlackboxProperty = mutableMapOf<BlackboxProperty, UUID>()
 
             this.getEntityKeyIds = { entityKeys ->
                 idService!!.reserveEntityKeyIds(entityKeys)
@@ -152,9 +166,9 @@ class Shuttle(
                 ptidsByBlackboxProperty[it.key] = propertyType.id
             }
 
-            logEntitySet = maybeLogEntitySet.get()
+            val logEntitySet = maybeLogEntitySet.get()
             val logEntityTypeId = logEntitySet.entityTypeId
-            logsDestination = PostgresDestination(
+            val logsDestination = PostgresDestination(
                 mapOf(logEntitySet.id to logEntitySet),
                 mapOf(logEntityTypeId to entityTypes.getValue(logEntityTypeId)),
                 logProperties.map { logProp -> logProp.value.id to logProp.value }.toMap(),
@@ -162,6 +176,21 @@ class Shuttle(
                 parameters
             )
 
+            val logSink = BlackboxLogSink(
+                jobId,
+                logEntitySet,
+                ptidsByBlackboxProperty,
+                logsDestination,
+                idService!!,
+                HazelcastMap.INTEGRATION_JOBS.getMap(hazelcastInstance!!)
+            )
+            this.logSink = logSink
+
+            this.writeLog = { name, log, status ->
+                log.forEach { logger.info(it) }
+                logSink.log(name, log, status)
+            }
+
         } else {
             this.writeLog = { _, log, _ -> log.forEach { logger.info(it) } }
 
@@ -171,18 +200,78 @@ class Shuttle(
         }
     }
 
-    private val uploadRegulator = Semaphore(threadCount)
+    /*
+     * Flights that run at the same time each get an equal share of the in flight heap, so that a flight with wide rows
+     * cannot hold the whole budget while the batches of the other flights wait for it.
+     */
+    private val flightBudgets = flightPlan.keys.associateWith {
+        val sharingFlights = parameters.pipeline.concurrentFlights.coerceIn(1, flightPlan.size)
+        MemoryBudget(
+            (Runtime.getRuntime().maxMemory() * parameters.pipeline.inFlightHeapFraction).toLong() / sharingFlights
+        )
+    }
+
+    private val checkpointScope = maybeJobId.map { it.toString() }.orElse(CheckpointKey.LOCAL_SCOPE)
+    private val checkpointStore = when {
+        !parameters.checkpoint.enabled -> null
+        isShuttleServer -> HazelcastCheckpointStore(hazelcastInstance!!)
+        else -> LocalFileCheckpointStore(Paths.get(parameters.checkpoint.directory))
+    }
+
+    private val quarantine = if (parameters.quarantine.enabled) {
+        Quarantine(Paths.get(parameters.quarantine.file), parameters.quarantine.summaryRecords)
+    } else {
+        null
+    }
+
+    /*
+     * Entity key ids are reserved through a coalescing reserver, so that concurrent batches share calls to the id
+     * service. On the shuttle server the reserver is shared by all jobs and owned by the integration service.
+     */
+    private val ownsEntityKeyIdReserver = sharedEntityKeyIdReserver == null
+    private val entityKeyIdReserver = sharedEntityKeyIdReserver
+        ?: CoalescingEntityKeyIdReserver(getEntityKeyIds, parameters.entityKeyIdReservation)
+
+    /*
+     * Batches flow through four stages, each with its own worker pool and bounded queue: transformation of rows into
+     * entities, entity key id reservation, and finally an entity write stage followed by an association write stage
+     * per destination. This keeps transforms for the next batch running while the previous batch is waiting on the
+     * destinations.
+     */
+    private val transformExecutor = newStageExecutor(
+        "transform", parameters.pipeline.transformThreads, parameters.pipeline.queueCapacity
+    )
+    private val entityKeyIdExecutor = newStageExecutor(
+        "entity-key-ids", parameters.pipeline.entityKeyIdThreads, parameters.pipeline.queueCapacity
+    )
+    private val writeExecutors = integrationDestinations.keys.associateWith {
+        newStageExecutor("write-${it.name.toLowerCase()}", parameters.pipeline.writeThreads, parameters.pipeline.queueCapacity)
+    }
+    /*
+     * Association writes are queued by entity write workers. They get their own pools, so that a write worker never
+     * blocks on a full queue of its own pool.
+     */
+    private val associationExecutors = integrationDestinations.keys.associateWith {
+        newStageExecutor("associate-${it.name.toLowerCase()}", parameters.pipeline.writeThreads, parameters.pipeline.queueCapacity)
+    }
+    private val stageExecutors = listOf(transformExecutor, entityKeyIdExecutor) +
+        writeExecutors.values + associationExecutors.values
+    private val transformPool = if (parameters.pipeline.parallelTransformThreshold > 0) {
+        ForkJoinPool(parameters.pipeline.transformParallelism)
+    } else {
+        null
+    }
 
     private fun takeoff(
         flight: Flight,
-        payload: Iterable<Map<String, Any?>>,
+        payload: Payload,
         uploadBatchSize: Int,
         rowColsToPrint: List<String>
     ): Long {
         val takeoffLog = "Takeoff! Starting primary thrusters."
         writeLog(flight.name, setOf(takeoffLog), IntegrationStatus.IN_PROGRESS)
-        val integratedEntities = mutableMapOf<StorageDestination, AtomicLong>().withDefault { AtomicLong(0L) }
-        val integratedEdges = mutableMapOf<StorageDestination, AtomicLong>().withDefault { AtomicLong(0L) }
+        val integratedEntities = StorageDestination.values().associateWith { AtomicLong(0L) }
+        val integratedEdges = StorageDestination.values().associateWith { AtomicLong(0L) }
 
         val rows = LongAdder()
         val sw = Stopwatch.createStarted()
@@ -190,28 +279,141 @@ class Shuttle(
         val batchCounter = AtomicLong(0)
         val minRows = ConcurrentSkipListMap<Long, Map<String, Any?>>()
 
-        payload
-            .asSequence()
-            .chunked(uploadBatchSize)
+        val checkpointKey = CheckpointKey(checkpointScope, flight.name)
+        val resumedFrom = if (parameters.checkpoint.resume) checkpointStore?.load(checkpointKey) else null
+        val checkpoints = checkpointStore?.let { CheckpointTracker(it, checkpointKey, resumedFrom) }
+        if (resumedFrom != null) {
+            check(payload.isStablyOrdered() || parameters.checkpoint.assumeOrderedSource) {
+                "Unable to resume flight ${flight.name} after ${resumedFrom.committedRows} committed rows, since its " +
+                        "payload may return rows in a different order on every run. Set " +
+                        "checkpoint.assume-ordered-source if its sql orders rows by a unique key."
+            }
+            val resumeLog = "Resuming after ${resumedFrom.committedRows} rows committed in " +
+                    "${resumedFrom.committedBatches} batches, ending at ${resumedFrom.position}."
+            writeLog(flight.name, setOf(resumeLog), IntegrationStatus.IN_PROGRESS)
+        }
+
+        val batchSizer = if (parameters.adaptiveBatching.enabled) {
+            AdaptiveBatchSizer(uploadBatchSize, parameters.adaptiveBatching)
+        } else {
+            null
+        }
+        val rowSequence = payload.getPayload().asSequence().dropLong(resumedFrom?.committedRows ?: 0L)
+        val chunks = if (batchSizer != null) {
+            rowSequence.adaptiveChunks(batchSizer::nextBatchSize)
+        } else {
+            rowSequence.chunked(uploadBatchSize)
+        }
+
+        // one party for the reader, plus one for every batch that has not landed yet.
+        val inFlightBatches = Phaser(1)
+        val flightSlots = Semaphore(parameters.pipeline.maxInFlightBatchesPerFlight)
+        val memoryBudget = flightBudgets.getValue(flight)
+        val metrics = flightMetrics.getValue(flight)
+
+        chunks
             .forEach { chunk ->
-                uploadRegulator.acquire()
-                uploadingExecutor.submit {
-                    ignition(
-                        chunk,
-                        flight,
-                        integratedEntities,
-                        integratedEdges,
-                        rows,
-                        batchCounter,
-                        minRows,
-                        remaining,
-                        rowColsToPrint,
-                        sw
-                    )
+                /*
+                 * The reader blocks until the rows fit in the memory budget of the flight. Once transformed, the
+                 * reservation is swapped for the estimated size of the transformed batch, which is released when the
+                 * batch lands.
+                 */
+                flightSlots.acquire()
+                metrics.rowsRead.mark(chunk.size.toLong())
+                metrics.batchRows.update(chunk.size)
+                val reservedBytes = AtomicLong(SizeEstimator.estimateRows(chunk))
+                memoryBudget.acquire(reservedBytes.get())
+                inFlightBatches.register()
+                val batchSw = Stopwatch.createStarted()
+                val batchId = batchCounter.incrementAndGet()
+                val chunkSize = chunk.size
+                minRows[batchId] = chunk[0]
+                val lastRow = rowColsToPrint.associateWith { chunk.last()[it] }
+                val spooledBinaries = chunk.flatMap { row -> row.values.filterIsInstance<SpooledBinary>() }
+                val rowsToTransform = if (spooledBinaries.isEmpty()) chunk else chunk.map(::MaterializedRow)
+                /*
+                 * The batch sizer is fed the time the batch spent being transformed and written, excluding the time it
+                 * spent waiting for a thread, which depends on how many batches are queued rather than on their size.
+                 * Destinations are written in parallel, so only the slowest write of each stage counts.
+                 */
+                val transformNanos = AtomicLong()
+                val entityWriteNanos = AtomicLong()
+                val associationWriteNanos = AtomicLong()
+
+                val transformed = transformExecutor.submit(Callable {
+                    val transformSw = Stopwatch.createStarted()
+                    val batch = ignition(rowsToTransform, flight, batchId, rows, remaining)
+                    transformNanos.set(transformSw.elapsed(TimeUnit.NANOSECONDS))
+                    val batchBytes = SizeEstimator.estimate(batch)
+                    memoryBudget.adjust(batchBytes - reservedBytes.getAndSet(batchBytes))
+                    batch
+                })
+
+                val keyed = Futures.transform(transformed, { batch ->
+                    reserveEntityKeyIds(batch!!, flight, minRows, rowColsToPrint)
+                }, entityKeyIdExecutor)
 
-                }.addListener(Runnable { uploadRegulator.release() }, uploadingExecutor)
+                /*
+                 * Entities are written to every destination at the same time. Associations may refer to any of the
+                 * entities in the batch, so they are only written once all entity writes of the batch are done.
+                 */
+                val entityWrites = integrationDestinations.map { (storageDestination, integrationDestination) ->
+                    Futures.transform(keyed, { keyedBatch ->
+                        val writeSw = Stopwatch.createStarted()
+                        writeEntities(
+                            keyedBatch!!,
+                            storageDestination,
+                            integrationDestination,
+                            flight,
+                            integratedEntities,
+                            minRows,
+                            rowColsToPrint
+                        )
+                        val writeNanos = writeSw.elapsed(TimeUnit.NANOSECONDS)
+                        entityWriteNanos.updateAndGet { maxOf(it, writeNanos) }
+                    }, writeExecutors.getValue(storageDestination))
+                }
+                val entitiesWritten = Futures.whenAllSucceed(entityWrites)
+                    .call(Callable { Futures.getDone(keyed) }, MoreExecutors.directExecutor())
+
+                val associationWrites = integrationDestinations.map { (storageDestination, integrationDestination) ->
+                    Futures.transform(entitiesWritten, { keyedBatch ->
+                        val writeSw = Stopwatch.createStarted()
+                        writeAssociations(
+                            keyedBatch!!,
+                            storageDestination,
+                            integrationDestination,
+                            flight,
+                            integratedEdges,
+                            minRows,
+                            rowColsToPrint
+                        )
+                        val writeNanos = writeSw.elapsed(TimeUnit.NANOSECONDS)
+                        associationWriteNanos.updateAndGet { maxOf(it, writeNanos) }
+                    }, associationExecutors.getValue(storageDestination))
+                }
+                val written = Futures.whenAllSucceed(associationWrites)
+                    .call(Callable { Futures.getDone(keyed) }, MoreExecutors.directExecutor())
+
+                written.addListener(Runnable {
+                    try {
+                        metrics.batchTime.update(batchSw.elapsed(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS)
+                        land(written.get(), flight, integratedEntities, integratedEdges, rows, minRows, remaining, sw)
+                        checkpoints?.committed(batchId, chunkSize, lastRow)
+                        batchSizer?.let {
+                            val stageNanos = transformNanos.get() + entityWriteNanos.get() + associationWriteNanos.get()
+                            val nextBatchSize = it.record(chunkSize, TimeUnit.NANOSECONDS.toMillis(stageNanos))
+                            logger.info("Next batch of flight {} will have {} rows", flight.name, nextBatchSize)
+                        }
+                    } finally {
+                        spooledBinaries.forEach(SpooledBinary::delete)
+                        memoryBudget.release(reservedBytes.get())
+                        flightSlots.release()
+                        inFlightBatches.arriveAndDeregister()
+                    }
+                }, MoreExecutors.directExecutor())
             }
-        uploadRegulator.acquire(threadCount)
+        inFlightBatches.arriveAndAwaitAdvance()
 
         return StorageDestination.values().map {
             val integrationStatusUpdate =
@@ -222,26 +424,22 @@ class Shuttle(
         }.sum()
     }
 
+    /**
+     * Transform stage: turns a chunk of rows into entities and associations addressed to their destinations.
+     */
     private fun ignition(
         chunk: List<Map<String, Any?>>,
         flight: Flight,
-        integratedEntities: MutableMap<StorageDestination, AtomicLong>,
-        integratedEdges: MutableMap<StorageDestination, AtomicLong>,
+        batchId: Long,
         rows: LongAdder,
-        batchCounter: AtomicLong,
-        minRows: ConcurrentSkipListMap<Long, Map<String, Any?>>,
-        remaining: AtomicLong,
-        rowColsToPrint: List<String>,
-        sw: Stopwatch
-    ) {
+        remaining: AtomicLong
+    ): AddressedDataHolder {
         val batchUpdate = "There are ${remaining.incrementAndGet()} batches in process for upload."
         writeLog(flight.name, setOf(batchUpdate), IntegrationStatus.IN_PROGRESS)
         val batchSw = Stopwatch.createStarted()
-        val batch = try {
+        return try {
             rows.add(chunk.size.toLong())
-            val batchCtr = batchCounter.incrementAndGet()
-            minRows[batchCtr] = chunk[0]
-            impulse(flight, chunk, batchCtr)
+            transform(flight, chunk, batchId)
         } catch (ex: Exception) {
             val errorInfo = if (ex is RhizomeRetrofitCallException) {
                 "Server returned ${ex.code} with body: ${ex.body}."
@@ -249,17 +447,105 @@ class Shuttle(
                 "Something went wrong during client side processing. "
             }
             writeLog(flight.name, setOf(errorInfo, ex.stackTrace.toString()), IntegrationStatus.FAILED)
-            MissionControl.fail(1, flight, ex, listOf(uploadingExecutor))
+            MissionControl.fail(1, flight, ex, stageExecutors)
         } catch (err: OutOfMemoryError) {
             writeLog(flight.name, setOf("out of memory error"), IntegrationStatus.FAILED)
-            MissionControl.fail(1, flight, err, listOf(uploadingExecutor))
+            MissionControl.fail(1, flight, err, stageExecutors)
         } finally {
-            transformRate.mark()
+            ShuttleMetrics.transforms.mark()
+            flightMetrics.getValue(flight).transformTime
+                .update(batchSw.elapsed(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS)
             val transformUpdate = "Batch took to ${batchSw.elapsed(TimeUnit.MILLISECONDS)} ms to transform."
             writeLog(flight.name, setOf(transformUpdate), IntegrationStatus.IN_PROGRESS)
         }
+    }
+
+    /**
+     * Transforms [chunk], quarantining the rows that fail to transform on their own when quarantine is enabled. The
+     * chunk is only bisected after it failed as a whole, so clean chunks are transformed exactly once.
+     */
+    private fun transform(flight: Flight, chunk: List<Map<String, Any?>>, batchId: Long): AddressedDataHolder {
+        val quarantine = this.quarantine ?: return impulse(flight, chunk, batchId)
+        return try {
+            impulse(flight, chunk, batchId)
+        } catch (ex: Exception) {
+            val transformedSlices = mutableListOf<AddressedDataHolder>()
+            var quarantined = 0
+            bisect(
+                    items = chunk,
+                    failure = ex,
+                    action = { impulse(flight, it, batchId) },
+                    accept = { transformedSlices += it },
+                    reject = { row, failure ->
+                        quarantined++
+                        flightMetrics.getValue(flight).quarantined(TRANSFORM_STAGE).mark()
+                        quarantine.add(
+                                flight.name,
+                                batchId,
+                                TRANSFORM_STAGE,
+                                failingDefinition(flight, row),
+                                row,
+                                failure
+                        )
+                    },
+                    isolatable = { !isTransientError(it) }
+            )
+            checkQuarantined(flight, batchId, TRANSFORM_STAGE, quarantined, chunk.size)
+            merge(transformedSlices, batchId)
+        }
+    }
+
+    /**
+     * Fails the batch if more than [QuarantineConfiguration.maxBatchFraction] of its records were quarantined.
+     */
+    private fun checkQuarantined(flight: Flight, batchId: Long, stage: String, quarantined: Int, total: Int) {
+        val maxBatchFraction = parameters.quarantine.maxBatchFraction
+        check(quarantined <= maxBatchFraction * total) {
+            "Quarantined $quarantined of $total records of batch $batchId of flight ${flight.name} at stage " +
+                    "$stage, more than the maximum fraction of $maxBatchFraction. This usually means that the " +
+                    "flight or the destination is broken rather than individual records."
+        }
+    }
 
+    /**
+     * Finds the definition of [flight] that fails to transform [row], by transforming it one definition at a time.
+     */
+    private fun failingDefinition(flight: Flight, row: Map<String, Any?>): String? {
+        val compiledFlight = compiledFlights.getValue(flight)
         try {
+            if (flight.condition.isPresent) {
+                flight.valueMapper.apply(row)
+            }
+        } catch (ex: Exception) {
+            return "condition of flight ${flight.name}"
+        }
+        return listOf(*compiledFlight.entities, *compiledFlight.associations).firstOrNull { compiledDefinition ->
+            val definition = compiledDefinition.definition
+            try {
+                if (definition.condition.isPresent) {
+                    definition.valueMapper.apply(row)
+                }
+                val (properties, _) = buildPropertiesFromPropertyDefinitions(row, compiledDefinition)
+                definition.generator.map { it.apply(row) }
+                    .orElseGet { generateDefaultEntityId(compiledDefinition, properties) }
+                false
+            } catch (ex: Exception) {
+                true
+            }
+        }?.definition?.let { "${it.entitySetName} (${it.alias})" }
+    }
+
+    /**
+     * Entity key id stage: reserves ids for all entities in the batch that did not have one specified in the flight.
+     */
+    private fun reserveEntityKeyIds(
+        batch: AddressedDataHolder,
+        flight: Flight,
+        minRows: ConcurrentSkipListMap<Long, Map<String, Any?>>,
+        rowColsToPrint: List<String>
+    ): KeyedBatch {
+        val metrics = flightMetrics.getValue(flight)
+        return tryOrAbort(flight, minRows, rowColsToPrint) {
             val ekidGenStartingUpdate = "Starting entity key id generation in thread ${Thread.currentThread().id}"
             writeLog(flight.name, setOf(ekidGenStartingUpdate), IntegrationStatus.IN_PROGRESS)
             val ekSw = Stopwatch.createStarted()
@@ -278,67 +564,221 @@ class Shuttle(
             //Make sure to clear out openlattice.@id from being written. this should really be checked on backend.
             batch.entities.forEach { e-> e.value.forEach { it.details.remove(ID_PTID) }  }
 
-            val assignedEntityKeyIds = attempt(ExponentialBackoff(MAX_DELAY), MAX_RETRIES) {
-                toAssign.zip(getEntityKeyIds(toAssign)).toMap()
+            val cachedEntityKeyIds = entityKeyIdCache.getAll(toAssign)
+            val toReserve = toAssign - cachedEntityKeyIds.keys
+            val reservedEntityKeyIds = if (toReserve.isEmpty()) {
+                mapOf()
+            } else {
+                attemptCountingRetries(metrics.retries("entity-key-ids")) {
+                    entityKeyIdReserver.reserve(toReserve)
+                }
             }
+            entityKeyIdCache.putAll(reservedEntityKeyIds)
 
-            val entityKeyIds = overriden + assignedEntityKeyIds
+            val entityKeyIds = overriden + cachedEntityKeyIds + reservedEntityKeyIds
+            metrics.entityKeyIdTime.update(ekSw.elapsed(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS)
 
-            val ekidsGeneratedUpdate =
-                "Generated ${toAssign.size} entity key ids in ${ekSw.elapsed(TimeUnit.MILLISECONDS)} ms"
+            val cacheStats = entityKeyIdCache.stats()
+            val ekidsGeneratedUpdate = "Generated ${toAssign.size} entity key ids (${cachedEntityKeyIds.size} cached, " +
+                    "cache hit rate ${"%.2f".format(cacheStats.hitRate)}) in ${ekSw.elapsed(TimeUnit.MILLISECONDS)} ms"
             writeLog(flight.name, setOf(ekidsGeneratedUpdate), IntegrationStatus.IN_PROGRESS)
 
-            integrationDestinations.forEach { (storageDestination, integrationDestination) ->
-                if (batch.entities.containsKey(storageDestination)) {
-                    integratedEntities.getOrPut(storageDestination) { AtomicLong(0) }.addAndGet(
-                            attempt(ExponentialBackoff(MAX_DELAY), MAX_RETRIES) {
-                                integrationDestination.integrateEntities(
-                                        batch.entities.getValue(storageDestination),
-                                        entityKeyIds,
-                                        updateTypes,
-                                        propertyUpdateTypes
-                                )
-                            }
-                    )
-                }
+            KeyedBatch(batch, entityKeyIds, ekSw)
+        }
+    }
 
-                if (batch.associations.containsKey(storageDestination)) {
-                    integratedEdges.getOrPut(storageDestination) { AtomicLong(0) }.addAndGet(
-                        attempt(ExponentialBackoff(MAX_DELAY), MAX_RETRIES) {
-                            integrationDestination.integrateAssociations(
-                                batch.associations.getValue(storageDestination),
-                                entityKeyIds,
-                                updateTypes
+    /**
+     * Entity write stage: runs on the pool dedicated to [storageDestination].
+     */
+    private fun writeEntities(
+        keyedBatch: KeyedBatch,
+        storageDestination: StorageDestination,
+        integrationDestination: IntegrationDestination,
+        flight: Flight,
+        integratedEntities: Map<StorageDestination, AtomicLong>,
+        minRows: ConcurrentSkipListMap<Long, Map<String, Any?>>,
+        rowColsToPrint: List<String>
+    ) {
+        val (batch, entityKeyIds) = keyedBatch
+        val metrics = flightMetrics.getValue(flight)
+        tryOrAbort(flight, minRows, rowColsToPrint) {
+            if (batch.entities.containsKey(storageDestination)) {
+                val entities = batch.entities.getValue(storageDestination)
+                val timer = metrics.entityWriteTime(storageDestination).time()
+                val stage = "entity-writes-${storageDestination.name.toLowerCase()}"
+                integratedEntities.getValue(storageDestination).addAndGet(
+                        writeQuarantining(flight, batch.batchId, stage, entities, ::describeEntity) {
+                            integrationDestination.integrateEntities(
+                                    it,
+                                    entityKeyIds,
+                                    updateTypes,
+                                    propertyUpdateTypes
                             )
                         }
-                    )
+                )
+                timer.stop()
+                entities.groupingBy { it.key.entitySetId }.eachCount().forEach { (entitySetId, count) ->
+                    metrics.entitiesWritten(storageDestination, entitySetNames.getValue(entitySetId)).mark(count.toLong())
                 }
             }
+        }
+    }
 
-            minRows.remove(batch.batchId)
-            uploadRate.mark(entityKeyIds.size.toLong())
-            val currentBatchDurationUpdate =
-                "Processed current batch ${batch.batchId} in ${ekSw.elapsed(TimeUnit.MILLISECONDS)} ms."
-            writeLog(flight.name, setOf(currentBatchDurationUpdate), IntegrationStatus.IN_PROGRESS)
+    /**
+     * Association write stage: runs on the association pool dedicated to [storageDestination], once entities have
+     * been written to every destination.
+     */
+    private fun writeAssociations(
+        keyedBatch: KeyedBatch,
+        storageDestination: StorageDestination,
+        integrationDestination: IntegrationDestination,
+        flight: Flight,
+        integratedEdges: Map<StorageDestination, AtomicLong>,
+        minRows: ConcurrentSkipListMap<Long, Map<String, Any?>>,
+        rowColsToPrint: List<String>
+    ) {
+        val (batch, entityKeyIds) = keyedBatch
+        val metrics = flightMetrics.getValue(flight)
+        tryOrAbort(flight, minRows, rowColsToPrint) {
+            if (batch.associations.containsKey(storageDestination)) {
+                val associations = batch.associations.getValue(storageDestination)
+                val timer = metrics.associationWriteTime(storageDestination).time()
+                val stage = "association-writes-${storageDestination.name.toLowerCase()}"
+                integratedEdges.getValue(storageDestination).addAndGet(
+                    writeQuarantining(flight, batch.batchId, stage, associations, ::describeAssociation) {
+                        integrationDestination.integrateAssociations(
+                            it,
+                            entityKeyIds,
+                            updateTypes
+                        )
+                    }
+                )
+                timer.stop()
+                associations.groupingBy { it.key.entitySetId }.eachCount().forEach { (entitySetId, count) ->
+                    metrics.associationsWritten(storageDestination, entitySetNames.getValue(entitySetId))
+                        .mark(count.toLong())
+                }
+            }
+        }
+    }
 
-            logger.info(
-                "=================================================================================="
+    /**
+     * Writes [data] with retries. When quarantine is enabled, a write that still fails after a few retries because of
+     * the data itself is bisected with single write attempts down to the entities or associations that fail on their
+     * own, which are quarantined. Any other failure, such as an unreachable destination, is rethrown.
+     */
+    private fun <T> writeQuarantining(
+        flight: Flight,
+        batchId: Long,
+        stage: String,
+        data: Collection<T>,
+        describe: (T) -> Map<String, Any?>,
+        write: (Collection<T>) -> Long
+    ): Long {
+        val metrics = flightMetrics.getValue(flight)
+        val quarantine = this.quarantine
+            ?: return attemptCountingRetries(metrics.retries(stage)) { write(data) }
+        return try {
+            attemptCountingRetries(metrics.retries(stage), parameters.quarantine.writeRetries) { write(data) }
+        } catch (ex: Exception) {
+            var written = 0L
+            var quarantined = 0
+            bisect(
+                    items = data.toList(),
+                    failure = ex,
+                    action = write,
+                    accept = { written += it },
+                    reject = { item, failure ->
+                        val record = describe(item)
+                        quarantined++
+                        metrics.quarantined(stage).mark()
+                        quarantine.add(
+                                flight.name,
+                                batchId,
+                                stage,
+                                record[ENTITY_SET_FIELD] as String?,
+                                record,
+                                failure
+                        )
+                    },
+                    isolatable = ::isDataError
             )
+            checkQuarantined(flight, batchId, stage, quarantined, data.size)
+            written
+        }
+    }
+
+    private fun describeEntity(entity: Entity): Map<String, Any?> {
+        return mapOf(
+            ENTITY_SET_FIELD to entitySetNames[entity.key.entitySetId],
+            "entityId" to entity.key.entityId,
+            "properties" to entity.details
+        )
+    }
+
+    private fun describeAssociation(association: Association): Map<String, Any?> {
+        return mapOf(
+            ENTITY_SET_FIELD to entitySetNames[association.key.entitySetId],
+            "entityId" to association.key.entityId,
+            "src" to association.src,
+            "dst" to association.dst
+        )
+    }
 
-            val totalProcessedUpdate = "Processed ${rows.sum()} rows so far in ${sw.elapsed(TimeUnit.MILLISECONDS)} ms."
-            writeLog(flight.name, setOf(totalProcessedUpdate), IntegrationStatus.IN_PROGRESS)
+    /**
+     * Runs once a batch has been written to every destination.
+     */
+    private fun land(
+        keyedBatch: KeyedBatch,
+        flight: Flight,
+        integratedEntities: Map<StorageDestination, AtomicLong>,
+        integratedEdges: Map<StorageDestination, AtomicLong>,
+        rows: LongAdder,
+        minRows: ConcurrentSkipListMap<Long, Map<String, Any?>>,
+        remaining: AtomicLong,
+        sw: Stopwatch
+    ) {
+        val (batch, entityKeyIds, ekSw) = keyedBatch
+        minRows.remove(batch.batchId)
+        ShuttleMetrics.uploads.mark(entityKeyIds.size.toLong())
+        val currentBatchDurationUpdate =
+            "Processed current batch ${batch.batchId} in ${ekSw.elapsed(TimeUnit.MILLISECONDS)} ms."
+        writeLog(flight.name, setOf(currentBatchDurationUpdate), IntegrationStatus.IN_PROGRESS)
+
+        logger.info(
+            "=================================================================================="
+        )
 
-            //write entity with rows processed
-            val currentEntitiesProgressUpdate = "Current entities progress: $integratedEntities"
-            writeLog(flight.name, setOf(currentEntitiesProgressUpdate), IntegrationStatus.IN_PROGRESS)
+        val totalProcessedUpdate = "Processed ${rows.sum()} rows so far in ${sw.elapsed(TimeUnit.MILLISECONDS)} ms."
+        writeLog(flight.name, setOf(totalProcessedUpdate), IntegrationStatus.IN_PROGRESS)
 
-            val currentEdgesProgressUpdate = "Current edges progress: $integratedEdges"
-            writeLog(flight.name, setOf(currentEdgesProgressUpdate), IntegrationStatus.IN_PROGRESS)
+        //write entity with rows processed
+        val currentEntitiesProgressUpdate = "Current entities progress: $integratedEntities"
+        writeLog(flight.name, setOf(currentEntitiesProgressUpdate), IntegrationStatus.IN_PROGRESS)
 
-            logger.info(
-                "==================================================================================="
-            )
+        val currentEdgesProgressUpdate = "Current edges progress: $integratedEdges"
+        writeLog(flight.name, setOf(currentEdgesProgressUpdate), IntegrationStatus.IN_PROGRESS)
+
+        if (dataStore != DataStoreType.NONE) {
+            logger.info("Connection pools: {}", HikariDataSourceRegistry.stats())
+        }
+
+        logger.info(
+            "==================================================================================="
+        )
 
+        val remainingBatchesUpdate = "There are ${remaining.decrementAndGet()} batches remaining for upload."
+        writeLog(flight.name, setOf(remainingBatchesUpdate), IntegrationStatus.IN_PROGRESS)
+    }
+
+    private fun <T> tryOrAbort(
+        flight: Flight,
+        minRows: ConcurrentSkipListMap<Long, Map<String, Any?>>,
+        rowColsToPrint: List<String>,
+        stage: () -> T
+    ): T {
+        return try {
+            stage()
         } catch (ex: Exception) {
             if (rowColsToPrint.isNotEmpty()) {
                 val earliestUnintegratedRowUpdate =
@@ -349,7 +789,7 @@ class Shuttle(
                     IntegrationStatus.FAILED
                 )
             }
-            MissionControl.fail(1, flight, ex, listOf(uploadingExecutor))
+            MissionControl.fail(1, flight, ex, stageExecutors)
         } catch (err: OutOfMemoryError) {
             if (rowColsToPrint.isNotEmpty()) {
                 val earliestUnintegratedRowUpdate =
@@ -360,12 +800,8 @@ class Shuttle(
                     IntegrationStatus.FAILED
                 )
             }
-            MissionControl.fail(1, flight, err, listOf(uploadingExecutor))
-        } finally {
-            val remainingBatchesUpdate = "There are ${remaining.decrementAndGet()} batches remaining for upload."
-            writeLog(flight.name, setOf(remainingBatchesUpdate), IntegrationStatus.IN_PROGRESS)
+            MissionControl.fail(1, flight, err, stageExecutors)
         }
-
     }
 
     private fun printRow(row: Map<String, Any?>, rowColsToPrint: List<String>): String {
@@ -379,9 +815,9 @@ class Shuttle(
     }
 
 
-    private fun buildPropertiesFromPropertyDefinitions(
+    internal fun buildPropertiesFromPropertyDefinitions(
         row: Map<String, Any?>,
-        entityDefinition: EntityDefinition
+        entityDefinition: CompiledEntityDefinition<*>
     ): Pair<MutableMap<UUID, MutableSet<Any>>, MutableMap<StorageDestination, MutableMap<UUID, MutableSet<Any>>>> {
 
         val propertyDefinitions = entityDefinition.properties
@@ -390,33 +826,24 @@ class Shuttle(
             Maps.newLinkedHashMapWithExpectedSize<StorageDestination, MutableMap<UUID, MutableSet<Any>>>(1)
 
         for (propertyDefinition in propertyDefinitions) {
-            val propertyValue = propertyDefinition.propertyValue.apply(row)
+            val propertyRow = if (propertyDefinition.streamSpooledBinary && row is MaterializedRow) {
+                row.spooled
+            } else {
+                row
+            }
+            val propertyValue = propertyDefinition.definition.propertyValue.apply(propertyRow)
 
             if (propertyValue == null || ((propertyValue is String) && propertyValue.isBlank())) {
                 continue
             }
 
-            val propertyType = propertyTypes.getValue(propertyDefinition.fullQualifiedName)
-
-            val storageDestination = if (entityDefinition.associateOnly) {
-                StorageDestination.NO_OP
-            } else {
-                propertyDefinition.storageDestination.orElseGet {
-                    when (propertyType.datatype) {
-                        EdmPrimitiveTypeKind.Binary -> binaryDestination
-                        else -> if (dataStore != DataStoreType.NONE) StorageDestination.POSTGRES else StorageDestination.REST
-                    }
-                }
-            }
+            val storageDestination = propertyDefinition.storageDestination
 
             var propertyValueAsCollection: Collection<Any> =
                 if (propertyValue is Collection<*>) propertyValue as Collection<Any>
                 else ImmutableList.of(propertyValue)
 
-            if (propertyType.datatype == EdmPrimitiveTypeKind.Binary
-                && storageDestination == StorageDestination.REST
-                && environment == RetrofitFactory.Environment.LOCAL
-            ) {
+            if (propertyDefinition.encodeBinary) {
                 propertyValueAsCollection = propertyValueAsCollection.map {
                     mapOf(
                         "content-type" to "application/octet-stream",
@@ -424,7 +851,7 @@ class Shuttle(
                     )
                 }
             }
-            val propertyId = propertyType.id
+            val propertyId = propertyDefinition.propertyTypeId
 
             addressedProperties
                 .getOrPut(storageDestination) { Maps.newLinkedHashMapWithExpectedSize(propertyDefinitions.size) }
@@ -438,22 +865,83 @@ class Shuttle(
     }
 
     /**
-     * HERE BE DARGONS
+     * Transforms a chunk of rows. Large chunks are split into contiguous slices that are transformed in parallel and
+     * merged back in slice order, so the resulting holder is the same as transforming the chunk on a single thread.
+     *
+     * This is the per-row hot path of an integration, and is internal so that the jmh benchmarks can drive it directly.
+     */
+    internal fun impulse(flight: Flight, batch: List<Map<String, Any?>>, batchNumber: Long): AddressedDataHolder {
+        val transformPool = this.transformPool
+        if (transformPool == null || batch.size < parameters.pipeline.parallelTransformThreshold) {
+            return impulse(flight, batch, newDataHolder(batchNumber))
+        }
+
+        val parallelism = transformPool.parallelism
+        val slices = Lists.partition(batch, Math.max(1, IntMath.divide(batch.size, 4 * parallelism, RoundingMode.CEILING)))
+        val transformedSlices = try {
+            transformPool.submit(Callable {
+                IntStream.range(0, slices.size)
+                    .parallel()
+                    .mapToObj { impulse(flight, slices[it], newDataHolder(batchNumber)) }
+                    .collect(Collectors.toList())
+            }).get()
+        } catch (ex: ExecutionException) {
+            throw ex.cause ?: ex
+        }
+
+        return merge(transformedSlices, batchNumber)
+    }
+
+    /**
+     * Merges transformed slices of a batch in order.
+     */
+    private fun merge(transformedSlices: List<AddressedDataHolder>, batchNumber: Long): AddressedDataHolder {
+        val addressedDataHolder = newDataHolder(batchNumber)
+        transformedSlices.forEach { slice ->
+            slice.entities.forEach { (storageDestination, entities) ->
+                addressedDataHolder.entities.getOrPut(storageDestination) { mutableSetOf() }.addAll(entities)
+            }
+            slice.associations.forEach { (storageDestination, associations) ->
+                addressedDataHolder.associations.getOrPut(storageDestination) { mutableSetOf() }.addAll(associations)
+            }
+        }
+        return addressedDataHolder
+    }
+
+    /**
+     * The holder is keyed by destination, so it is sized by the number of destinations rather than rows.
      */
-    private fun impulse(flight: Flight, batch: List<Map<String, Any?>>, batchNumber: Long): AddressedDataHolder {
-        val addressedDataHolder = AddressedDataHolder(
-            Maps.newLinkedHashMapWithExpectedSize(batch.size * flight.entities.size),
-            Maps.newLinkedHashMapWithExpectedSize(batch.size * flight.associations.size),
+    private fun newDataHolder(batchNumber: Long): AddressedDataHolder {
+        return AddressedDataHolder(
+            Maps.newLinkedHashMapWithExpectedSize(StorageDestination.values().size),
+            Maps.newLinkedHashMapWithExpectedSize(StorageDestination.values().size),
             batchNumber
         )
+    }
 
+    /**
+     * HERE BE DARGONS
+     */
+    private fun impulse(
+        flight: Flight,
+        batch: List<Map<String, Any?>>,
+        addressedDataHolder: AddressedDataHolder
+    ): AddressedDataHolder {
+        val compiledFlight = compiledFlights.getValue(flight)
+        // conditions are counted per slice and published once, to keep metrics off the per row path.
+        var droppedRows = 0L
+        val droppedEntities = LongArray(compiledFlight.entities.size)
+        val droppedAssociations = LongArray(compiledFlight.associations.size)
         batch.forEach { row ->
             val aliasesToEntityKey = Maps.newHashMapWithExpectedSize<String, EntityKey>(flight.entities.size)
             val wasCreated = Maps.newHashMapWithExpectedSize<String, Boolean>(flight.entities.size)
             if (flight.condition.isPresent && !(flight.valueMapper.apply(row) as Boolean)) {
+                droppedRows++
                 return@forEach
             }
-            for (entityDefinition in flight.entities) {
+            for (entityIndex in compiledFlight.entities.indices) {
+                val compiledEntityDefinition = compiledFlight.entities[entityIndex]
+                val entityDefinition = compiledEntityDefinition.definition
                 val condition = if (entityDefinition.condition.isPresent) {
                     entityDefinition.valueMapper.apply(row) as Boolean
                 } else {
@@ -461,7 +949,7 @@ class Shuttle(
                 }
 
                 val (properties, addressedProperties) = buildPropertiesFromPropertyDefinitions(
-                    row, entityDefinition
+                    row, compiledEntityDefinition
                 )
 
                 /*
@@ -472,12 +960,12 @@ class Shuttle(
                 val entityId = entityDefinition.generator
                     .map { it.apply(row) }
                     .orElseGet {
-                        generateDefaultEntityId(getKeys(entityDefinition.entitySetName), properties)
+                        generateDefaultEntityId(compiledEntityDefinition, properties)
                     }
 
                 if (StringUtils.isNotBlank(entityId) && condition && properties.isNotEmpty()) {
 
-                    val entitySetId = entitySets[entityDefinition.entitySetName]!!.id
+                    val entitySetId = compiledEntityDefinition.entitySetId
 
                     val key = EntityKey(entitySetId, entityId)
                     aliasesToEntityKey[entityDefinition.alias] = key
@@ -488,15 +976,21 @@ class Shuttle(
                     }
                     wasCreated[entityDefinition.alias] = true
                 } else {
+                    if (!condition) {
+                        droppedEntities[entityIndex]++
+                    }
                     wasCreated[entityDefinition.alias] = false
                 }
             }
 
-            for (associationDefinition in flight.associations) {
+            for (associationIndex in compiledFlight.associations.indices) {
+                val compiledAssociationDefinition = compiledFlight.associations[associationIndex]
+                val associationDefinition = compiledAssociationDefinition.definition
 
                 if (associationDefinition.condition.isPresent &&
                     !(associationDefinition.valueMapper.apply(row) as Boolean)
                 ) {
+                    droppedAssociations[associationIndex]++
                     continue
                 }
 
@@ -514,18 +1008,18 @@ class Shuttle(
                 if ((wasCreated[associationDefinition.srcAlias]!! && wasCreated[associationDefinition.dstAlias]!!)) {
 
                     val (properties, addressedProperties) = buildPropertiesFromPropertyDefinitions(
-                        row, associationDefinition
+                        row, compiledAssociationDefinition
                     )
 
                     val entityId = associationDefinition.generator
                         .map { it.apply(row) }
                         .orElseGet {
-                            generateDefaultEntityId(getKeys(associationDefinition.entitySetName), properties)
+                            generateDefaultEntityId(compiledAssociationDefinition, properties)
                         }
 
                     if (StringUtils.isNotBlank(entityId)) {
 
-                        val entitySetId = entitySets.getValue(associationDefinition.entitySetName).id
+                        val entitySetId = compiledAssociationDefinition.entitySetId
 
                         val key = EntityKey(entitySetId, entityId)
                         val src = aliasesToEntityKey[associationDefinition.srcAlias]
@@ -546,6 +1040,11 @@ class Shuttle(
                 }
             }
         }
+
+        val metrics = flightMetrics.getValue(flight)
+        metrics.rowsDropped.mark(droppedRows)
+        droppedEntities.forEachIndexed { index, dropped -> metrics.entitiesDropped[index].mark(dropped) }
+        droppedAssociations.forEachIndexed { index, dropped -> metrics.associationsDropped[index].mark(dropped) }
         return addressedDataHolder
     }
 
@@ -562,18 +1061,28 @@ class Shuttle(
     fun launch(uploadBatchSize: Int): Long {
         val sw = Stopwatch.createStarted()
         var total = 0L
+        val flightExecutor = if (parameters.pipeline.concurrentFlights > 1 && flightPlan.size > 1) {
+            Executors.newFixedThreadPool(
+                parameters.pipeline.concurrentFlights.coerceAtMost(flightPlan.size),
+                ThreadFactoryBuilder().setNameFormat("flight-%d").setDaemon(true).build()
+            )
+        } else {
+            null
+        }
         try {
-            total = flightPlan.entries.map { (flight, payload) ->
-                val launchUpdate = "Launching flight: ${flight.name}"
-                writeLog(flight.name, setOf(launchUpdate), IntegrationStatus.IN_PROGRESS)
-
-                val tableColsToPrintForFlight = tableColsToPrint[flight] ?: listOf()
-                val count = takeoff(flight, payload.getPayload(), uploadBatchSize, tableColsToPrintForFlight)
-
-                val finishUpdate = "Finished flight: ${flight.name}"
-                writeLog(flight.name, setOf(finishUpdate), IntegrationStatus.SUCCEEDED)
-                count
-            }.sum()
+            total = if (flightExecutor == null) {
+                flightPlan.entries.map { (flight, payload) -> fly(flight, payload, uploadBatchSize) }.sum()
+            } else {
+                flightPlan.entries
+                    .map { (flight, payload) -> flightExecutor.submit(Callable { fly(flight, payload, uploadBatchSize) }) }
+                    .map { future ->
+                        try {
+                            future.get()
+                        } catch (ex: ExecutionException) {
+                            throw ex.cause as? Exception ?: ex
+                        }
+                    }.sum()
+            }
             logger.info("Executed {} entity writes in flight plan in {} ms.", total, sw.elapsed(TimeUnit.MILLISECONDS))
         } catch (ex: java.lang.Exception) {
             val flightNames = flightPlan.keys.joinToString(", ") { it.name }
@@ -583,20 +1092,42 @@ class Shuttle(
             if (!isShuttleServer) {
                 // This is here for backwards compatibility.
                 // Should be removed when non-shuttle-server is deprecated
-                MissionControl.fail(1, flightPlan.keys.first(), ex, listOf(uploadingExecutor))
+                MissionControl.fail(1, flightPlan.keys.first(), ex, stageExecutors)
             }
         } finally {
-            reporter.close()
-            uploadingExecutor.shutdownNow()
+            flightExecutor?.shutdownNow()
+            stageExecutors.forEach { it.shutdownNow() }
+            transformPool?.shutdownNow()
+            logSink?.close()
+            quarantine?.close()
+            flightMetrics.values.forEach { it.close() }
+            if (ownsEntityKeyIdReserver) {
+                entityKeyIdReserver.close()
+            }
         }
         return total
     }
 
-    /**
-     * This function works under the assumption that the set returned from key is a unmodifiable linked hash set.
-     */
-    private fun getKeys(entitySetName: String): Set<UUID> {
-        return entityTypes.getValue(entitySets.getValue(entitySetName).entityTypeId).key
+    private fun fly(flight: Flight, payload: Payload, uploadBatchSize: Int): Long {
+        val launchUpdate = "Launching flight: ${flight.name}"
+        writeLog(flight.name, setOf(launchUpdate), IntegrationStatus.IN_PROGRESS)
+
+        val tableColsToPrintForFlight = tableColsToPrint[flight] ?: listOf()
+        val count = try {
+            takeoff(flight, payload, uploadBatchSize, tableColsToPrintForFlight)
+        } finally {
+            flightMetrics.getValue(flight).close()
+        }
+        quarantine?.let {
+            if (it.count(flight.name) > 0) {
+                writeLog(flight.name, setOf(it.summary(flight.name)), IntegrationStatus.IN_PROGRESS)
+            }
+        }
+
+        checkpointStore?.clear(CheckpointKey(checkpointScope, flight.name))
+        val finishUpdate = "Finished flight: ${flight.name}"
+        writeLog(flight.name, setOf(finishUpdate), IntegrationStatus.SUCCEEDED)
+        return count
     }
 
     /**
@@ -604,45 +1135,94 @@ class Shuttle(
      * This is guaranteed to be unique for each unique set of primary key values. For this to work correctly it is very
      * important that Stream remain ordered. Ordered != sequential vs parallel.
      *
-     * @param key A stable set of ordered primary key property type ids to use for default entity key generation.
+     * Entity sets configured for hashed entity ids get a fixed size hash of the key property values instead.
+     *
+     * @param definition The definition whose ordered primary key property type ids are used for default entity key
+     * generation.
      */
     private fun generateDefaultEntityId(
-        key: Set<UUID>,
+        definition: CompiledEntityDefinition<*>,
         properties: Map<UUID, Set<Any>>
     ): String {
+        val key = definition.key
         val keyValuesPresent = key.any { !properties[it].isNullOrEmpty() }
+        // binary key properties that stream spooled values still hash the bytes of the value, not the handle.
+        val keyProperties = if (key.any { properties[it]?.any { value -> value is SpooledBinary } == true }) {
+            properties.mapValues { (_, values) ->
+                values.mapTo(LinkedHashSet(values.size)) { if (it is SpooledBinary) it.readBytes() else it }
+            }
+        } else {
+            properties
+        }
 
-        return if (keyValuesPresent) ApiHelpers.generateDefaultEntityId(key, properties) else ""
+        return when {
+            !keyValuesPresent -> ""
+            definition.hashedEntityIds -> HashedEntityIds.generate(key, keyProperties)
+            else -> ApiHelpers.generateDefaultEntityId(key, keyProperties)
+        }
     }
 
-    private fun storeLog(flightName: String, log: Set<String>, status: IntegrationStatus, jobId: UUID) {
-        val logEntitySetId = logEntitySet.id
-        val timestamp = OffsetDateTime.now()
-        val entityId = logEntitySetId.toString() + flightName + jobId + timestamp.toString()
-        val ek = EntityKey(logEntitySetId, entityId)
-        val logPropertyData = generateLogPropertyData(flightName, log, timestamp, status, jobId)
-        val entity = Entity(ek, logPropertyData)
-        val ekid = idService!!.getEntityKeyId(ek)
-        logsDestination.integrateEntities(
-                setOf(entity), mapOf(ek to ekid), mapOf(logEntitySetId to UpdateType.Merge),
-                mapOf(logEntitySetId to PropertyUpdateType.Unversioned)
-        )
+}
+
+/**
+ * A transformed batch along with the entity key ids reserved for it.
+ */
+private data class KeyedBatch(
+    val batch: AddressedDataHolder,
+    val entityKeyIds: Map<EntityKey, UUID>,
+    val stopwatch: Stopwatch
+)
+
+/**
+ * Drops the first [count] elements, like [Sequence.drop] but for counts beyond [Int.MAX_VALUE].
+ */
+private fun <T> Sequence<T>.dropLong(count: Long): Sequence<T> {
+    if (count <= 0L) {
+        return this
+    }
+    val source = this
+    return sequence {
+        val iterator = source.iterator()
+        var dropped = 0L
+        while (dropped < count && iterator.hasNext()) {
+            iterator.next()
+            dropped++
+        }
+        yieldAll(iterator)
     }
+}
 
-    private fun generateLogPropertyData(
-        flightName: String,
-        log: Set<String>,
-        timestamp: OffsetDateTime,
-        status: IntegrationStatus,
-        jobId: UUID
-    ): Map<UUID, Set<Any>> {
-        val logPropertyData = mutableMapOf<UUID, Set<Any>>()
-        logPropertyData[ptidsByBlackboxProperty.getValue(BlackboxProperty.JOB_ID)] = setOf(jobId)
-        logPropertyData[ptidsByBlackboxProperty.getValue(BlackboxProperty.NAME)] = setOf(flightName)
-        logPropertyData[ptidsByBlackboxProperty.getValue(BlackboxProperty.LOG)] = log
-        logPropertyData[ptidsByBlackboxProperty.getValue(BlackboxProperty.TIME_LOGGED)] = setOf(timestamp)
-        logPropertyData[ptidsByBlackboxProperty.getValue(BlackboxProperty.STATUS)] = setOf(status)
-        return logPropertyData
+/**
+ * Retries [action] with exponential backoff like [attempt], counting every retry in [retries].
+ */
+private fun <T> attemptCountingRetries(retries: Counter, maxRetries: Int = MAX_RETRIES, action: () -> T): T {
+    var attempts = 0
+    return attempt(ExponentialBackoff(MAX_DELAY), maxRetries) {
+        if (attempts++ > 0) {
+            retries.inc()
+        }
+        action()
     }
+}
 
+/**
+ * Creates the worker pool for a single pipeline stage. Once [queueCapacity] batches are waiting on the stage, the
+ * thread handing off the next batch blocks until there is room, which propagates backpressure to the previous stage.
+ */
+private fun newStageExecutor(name: String, threads: Int, queueCapacity: Int): ListeningExecutorService {
+    val executor = ThreadPoolExecutor(
+        threads,
+        threads,
+        0L,
+        TimeUnit.MILLISECONDS,
+        ArrayBlockingQueue<Runnable>(queueCapacity),
+        ThreadFactoryBuilder().setNameFormat("shuttle-$name-%d").build(),
+        RejectedExecutionHandler { runnable, pool ->
+            if (pool.isShutdown) {
+                throw RejectedExecutionException("Pipeline stage $name has been shut down.")
+            }
+            pool.queue.put(runnable)
+        }
+    )
+    return MoreExecutors.listeningDecorator(executor)
 }
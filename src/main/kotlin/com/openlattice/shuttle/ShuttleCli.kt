@@ -10,6 +10,7 @@ import com.fasterxml.jackson.databind.JsonMappingException
 import com.google.common.base.Preconditions
 import com.geekbeast.ResourceConfigurationLoader
 import com.openlattice.client.RetrofitFactory
+import com.openlattice.shuttle.ShuttleCliOptions.Companion.BENCHMARK
 import com.openlattice.shuttle.ShuttleCliOptions.Companion.CONFIGURATION
 import com.openlattice.shuttle.ShuttleCliOptions.Companion.CREATE
 import com.openlattice.shuttle.ShuttleCliOptions.Companion.CSV
@@ -24,9 +25,13 @@ import com.openlattice.shuttle.ShuttleCliOptions.Companion.FROM_EMAIL_PASSWORD
 import com.openlattice.shuttle.ShuttleCliOptions.Companion.HELP
 import com.openlattice.shuttle.ShuttleCliOptions.Companion.LOCAL_ORIGIN_EXPECTED_ARGS_COUNT
 import com.openlattice.shuttle.ShuttleCliOptions.Companion.NOTIFICATION_EMAILS
+import com.openlattice.shuttle.ShuttleCliOptions.Companion.PARALLEL_TRANSFORMS
 import com.openlattice.shuttle.ShuttleCliOptions.Companion.PASSWORD
 import com.openlattice.shuttle.ShuttleCliOptions.Companion.PROFILES
 import com.openlattice.shuttle.ShuttleCliOptions.Companion.READ_RATE_LIMIT
+import com.openlattice.shuttle.ShuttleCliOptions.Companion.QUARANTINE
+import com.openlattice.shuttle.ShuttleCliOptions.Companion.RESUME
+import com.openlattice.shuttle.ShuttleCliOptions.Companion.SPOOL_BINARIES
 import com.openlattice.shuttle.ShuttleCliOptions.Companion.S3
 import com.openlattice.shuttle.ShuttleCliOptions.Companion.S3_ORIGIN_MAXIMUM_ARGS_COUNT
 import com.openlattice.shuttle.ShuttleCliOptions.Companion.S3_ORIGIN_MINIMUM_ARGS_COUNT
@@ -39,6 +44,9 @@ import com.openlattice.shuttle.ShuttleCliOptions.Companion.TOKEN
 import com.openlattice.shuttle.ShuttleCliOptions.Companion.UPLOAD_SIZE
 import com.openlattice.shuttle.ShuttleCliOptions.Companion.USER
 import com.openlattice.shuttle.ShuttleCliOptions.Companion.XML
+import com.openlattice.shuttle.benchmark.Benchmark
+import com.openlattice.shuttle.benchmark.BenchmarkConfiguration
+import com.openlattice.shuttle.benchmark.SyntheticPayload
 import com.openlattice.shuttle.config.IntegrationConfig
 import com.openlattice.shuttle.payload.*
 import com.openlattice.shuttle.source.LocalFileOrigin
@@ -110,8 +118,22 @@ fun main(args: Array<String>) {
         Flight.newFlight("fail").done() // only here for compiler, above statement exits process
     }
 
+    val benchmarkConfiguration = when {
+        !cl.hasOption(BENCHMARK) -> null
+        cl.getOptionValue(BENCHMARK) == null -> BenchmarkConfiguration()
+        else -> ObjectMappers.getYamlMapper()
+                .readValue(File(cl.getOptionValue(BENCHMARK)), BenchmarkConfiguration::class.java)
+    }
+
     //You can have a configuration without any JDBC datasources
     when {
+        benchmarkConfiguration != null -> {
+            if (cl.hasOption(CONFIGURATION) || cl.hasOption(CSV) || cl.hasOption(XML) || cl.hasOption(DATA_ORIGIN)) {
+                printErrorHelpAndExit("A benchmark generates its own payload and cannot be run against a data source.")
+            }
+            rowColsToPrint = mapOf()
+            payload = SyntheticPayload(benchmarkConfiguration)
+        }
         cl.hasOption(CONFIGURATION) -> {
             configuration = ObjectMappers.getYamlMapper()
                     .readValue(File(cl.getOptionValue(CONFIGURATION)), IntegrationConfig::class.java)
@@ -146,12 +168,21 @@ fun main(args: Array<String>) {
                 DEFAULT_PERMITS_PER_SECOND.toInt()
             }
 
+            val binarySpool = if (cl.hasOption(SPOOL_BINARIES)) {
+                val directory = cl.getOptionValue(SPOOL_BINARIES) ?: BinarySpoolConfiguration().directory
+                logger.info("Spooling binary columns to $directory")
+                BinarySpool.clear(Paths.get(directory))
+                BinarySpool(Paths.get(directory))
+            } else {
+                null
+            }
+
             payload = if (cl.hasOption(FETCHSIZE)) {
                 val fetchSize = cl.getOptionValue(FETCHSIZE).toInt()
                 logger.info("Using a fetch size of $fetchSize")
-                JdbcPayload(readRateLimit.toDouble(), hds, sql, fetchSize, readRateLimit != 0)
+                JdbcPayload(readRateLimit.toDouble(), hds, sql, fetchSize, readRateLimit != 0, binarySpool)
             } else {
-                JdbcPayload(readRateLimit.toDouble(), hds, sql, 0, readRateLimit != 0)
+                JdbcPayload(readRateLimit.toDouble(), hds, sql, 0, readRateLimit != 0, binarySpool)
             }
         }
         cl.hasOption(CSV) -> {// get csv payload
@@ -230,7 +261,7 @@ fun main(args: Array<String>) {
         ""
     }
 
-    val shuttleConfig = if (cl.hasOption(SHUTTLE_CONFIG)) {
+    val missionParameters = if (cl.hasOption(SHUTTLE_CONFIG)) {
         val shuttleConfigOptions = cl.getOptionValues(SHUTTLE_CONFIG) ?: arrayOf()
         require(shuttleConfigOptions.size == 2)
         val bucket = shuttleConfigOptions[0]
@@ -247,6 +278,30 @@ fun main(args: Array<String>) {
         MissionParameters.empty()
     }
 
+    val parallelConfig = if (cl.hasOption(PARALLEL_TRANSFORMS)) {
+        val parallelTransformThreshold = cl.getOptionValue(PARALLEL_TRANSFORMS).toInt()
+        missionParameters.copy(
+            pipeline = missionParameters.pipeline.copy(parallelTransformThreshold = parallelTransformThreshold)
+        )
+    } else {
+        missionParameters
+    }
+
+    val resumeConfig = if (cl.hasOption(RESUME)) {
+        parallelConfig.copy(checkpoint = parallelConfig.checkpoint.copy(enabled = true, resume = true))
+    } else {
+        parallelConfig
+    }
+
+    val shuttleConfig = if (cl.hasOption(QUARANTINE)) {
+        val quarantine = resumeConfig.quarantine.copy(enabled = true)
+        resumeConfig.copy(
+            quarantine = cl.getOptionValue(QUARANTINE)?.let { quarantine.copy(file = it) } ?: quarantine
+        )
+    } else {
+        resumeConfig
+    }
+
     //TODO: Use the right method to select the JWT token for the appropriate environment.
 
     val dataStore = if (cl.hasOption(DATA_STORE))
@@ -254,6 +309,24 @@ fun main(args: Array<String>) {
     else
         DataStoreType.NONE
 
+    val uploadBatchSize = if (cl.hasOption(UPLOAD_SIZE)) {
+        cl.getOptionValue(UPLOAD_SIZE).toInt()
+    } else {
+        DEFAULT_UPLOAD_SIZE
+    }
+
+    if (benchmarkConfiguration != null) {
+        try {
+            logger.info("Running benchmark of flight {} with {}", flight.name, benchmarkConfiguration)
+            val report = Benchmark(flight, payload, benchmarkConfiguration, shuttleConfig, dataStore).run(uploadBatchSize)
+            logger.info("Benchmark results:\n{}", report.format())
+            MissionControl.succeed()
+        } catch (ex: Throwable) {
+            MissionControl.fail(1, flight, ex)
+        }
+        return
+    }
+
     val missionControl = when {
         cl.hasOption(TOKEN) -> {
             Preconditions.checkArgument(!cl.hasOption(PASSWORD))
@@ -288,12 +361,6 @@ fun main(args: Array<String>) {
         contacts = setOf()
     }
 
-    val uploadBatchSize = if (cl.hasOption(UPLOAD_SIZE)) {
-        cl.getOptionValue(UPLOAD_SIZE).toInt()
-    } else {
-        DEFAULT_UPLOAD_SIZE
-    }
-
     val emailConfiguration = getEmailConfiguration(cl)
 
     val flightPlan = mapOf(flight to payload)
@@ -301,9 +368,11 @@ fun main(args: Array<String>) {
     try {
         MissionControl.setEmailConfiguration(emailConfiguration)
         logger.info("Preparing flight plan.")
-        val shuttle = missionControl.prepare(flightPlan, createEntitySets, rowColsToPrint, contacts, dataStore)
-        logger.info("Pre-flight check list complete. ")
-        shuttle.launch(uploadBatchSize)
+        missionControl.use {
+            val shuttle = it.prepare(flightPlan, createEntitySets, rowColsToPrint, contacts, dataStore)
+            logger.info("Pre-flight check list complete. ")
+            shuttle.launch(uploadBatchSize)
+        }
         MissionControl.succeed()
     } catch (ex: Throwable) {
         MissionControl.fail(1, flight, ex)
@@ -31,6 +31,7 @@ import kotlin.system.exitProcess
 class ShuttleCliOptions {
     companion object {
 
+        const val BENCHMARK = "benchmark"
         const val CONFIGURATION = "config"
         const val CREATE = "create"
         const val CSV = "csv"
@@ -45,9 +46,12 @@ class ShuttleCliOptions {
         const val HELP = "help"
         const val LOCAL_ORIGIN_EXPECTED_ARGS_COUNT = 2
         const val NOTIFICATION_EMAILS = "notify-emails"
+        const val PARALLEL_TRANSFORMS = "parallel-transforms"
         const val PASSWORD = "password"
         const val PROFILES = "profiles"
+        const val QUARANTINE = "quarantine"
         const val READ_RATE_LIMIT = "read-rate-limit"
+        const val RESUME = "resume"
         const val S3 = "s3"
         const val S3_ORIGIN_MAXIMUM_ARGS_COUNT = 4
         const val S3_ORIGIN_MINIMUM_ARGS_COUNT = 3
@@ -55,6 +59,7 @@ class ShuttleCliOptions {
         const val SHUTTLE_CONFIG = "shuttle-config"
         const val SMTP_SERVER = "smtp-server"
         const val SMTP_SERVER_PORT = "smtp-server-port"
+        const val SPOOL_BINARIES = "spool-binaries"
         const val SQL = "sql"
         const val THREADS = "threads"
         const val TOKEN = "token"
@@ -85,6 +90,47 @@ class ShuttleCliOptions {
                 .argName("upload size")
                 .build()
 
+        private val parallelTransformsOption = Option.builder()
+                .longOpt(PARALLEL_TRANSFORMS)
+                .desc("Transform chunks with at least this many rows in parallel.")
+                .hasArg(true)
+                .argName("rows")
+                .build()
+
+        private val benchmarkOption = Option.builder()
+                .longOpt(BENCHMARK)
+                .desc("Run the flight against a synthetic payload and EDM and report throughput, instead of integrating data. " +
+                        "Takes an optional yaml file describing the synthetic payload.")
+                .hasArg(true)
+                .optionalArg(true)
+                .argName("file")
+                .build()
+
+        private val resumeOption = Option.builder()
+                .longOpt(RESUME)
+                .desc("Checkpoint the rows of each flight committed to every destination, and skip the rows " +
+                        "committed by a previous run.")
+                .hasArg(false)
+                .build()
+
+        private val quarantineOption = Option.builder()
+                .longOpt(QUARANTINE)
+                .desc("Write rows that fail to integrate to a dead letter file and integrate the rest of their batch, " +
+                        "instead of failing. Takes an optional path of the dead letter file.")
+                .hasArg(true)
+                .optionalArg(true)
+                .argName("file")
+                .build()
+
+        private val spoolBinariesOption = Option.builder()
+                .longOpt(SPOOL_BINARIES)
+                .desc("Stream binary columns of the sql source to files instead of keeping them in memory, and stream " +
+                        "them from there to S3. Takes an optional directory for the files.")
+                .hasArg(true)
+                .optionalArg(true)
+                .argName("directory")
+                .build()
+
         private val readRateLimit = Option.builder()
                 .longOpt(READ_RATE_LIMIT)
                 .hasArg(true)
@@ -270,6 +316,11 @@ class ShuttleCliOptions {
                     .addOption(s3Option)
                     .addOption(fetchSize)
                     .addOption(uploadSize)
+                    .addOption(parallelTransformsOption)
+                    .addOption(resumeOption)
+                    .addOption(quarantineOption)
+                    .addOption(spoolBinariesOption)
+                    .addOption(benchmarkOption)
                     .addOption(readRateLimit)
                     .addOption(notificationEmailsOption)
                     .addOption(fromEmailOption)
@@ -12,6 +12,8 @@ const val SERVICE = "/shuttle"
 const val CONTROLLER = "/integration"
 const val BASE = SERVICE + CONTROLLER
 
+const val METRICS = "/metrics"
+
 const val DEFINITION_PATH = "/definition"
 const val STATUS_PATH = "/status"
 
@@ -0,0 +1,67 @@
+package com.openlattice.shuttle.benchmark
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Measures the bytes allocated on the heap by all threads while it runs, using per-thread allocation counters of the
+ * HotSpot thread bean.
+ *
+ * The counter of a thread is lost once the thread exits, so counters are sampled every [intervalMillis] and the last
+ * sample of each thread is kept. Allocations by a thread in its final interval before exiting are missed, which makes
+ * the result a slight underestimate for runs with short-lived threads.
+ */
+class AllocationSampler(private val intervalMillis: Long = 100) : AutoCloseable {
+    private val threads = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+    private val allocatedByThread = HashMap<Long, Long>()
+    private val baseline = HashMap<Long, Long>()
+    private val sampler = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "allocation-sampler").apply { isDaemon = true }
+    }
+
+    /**
+     * Whether the JVM supports per-thread allocation counters. When it does not, [allocatedBytes] is always -1.
+     */
+    val supported = threads != null && threads.isThreadAllocatedMemorySupported
+
+    fun start(): AllocationSampler {
+        if (supported) {
+            threads!!.isThreadAllocatedMemoryEnabled = true
+            synchronized(this) {
+                baseline.putAll(sample())
+            }
+            sampler.scheduleAtFixedRate(::record, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS)
+        }
+        return this
+    }
+
+    /**
+     * Bytes allocated by all threads since [start].
+     */
+    @Synchronized
+    fun allocatedBytes(): Long {
+        if (!supported) {
+            return -1
+        }
+        record()
+        return allocatedByThread.entries.sumOf { (threadId, bytes) -> bytes - (baseline[threadId] ?: 0L) }
+    }
+
+    override fun close() {
+        sampler.shutdownNow()
+    }
+
+    @Synchronized
+    private fun record() {
+        allocatedByThread.putAll(sample())
+    }
+
+    private fun sample(): Map<Long, Long> {
+        val threadIds = ManagementFactory.getThreadMXBean().allThreadIds
+        val allocated = threads!!.getThreadAllocatedBytes(threadIds)
+        return threadIds.indices
+            .filter { allocated[it] >= 0 }
+            .associate { threadIds[it] to allocated[it] }
+    }
+}
@@ -0,0 +1,176 @@
+package com.openlattice.shuttle.benchmark
+
+import com.codahale.metrics.Snapshot
+import com.google.common.base.Stopwatch
+import com.openlattice.client.RetrofitFactory
+import com.openlattice.data.EntityKey
+import com.openlattice.shuttle.CompiledFlight
+import com.openlattice.shuttle.Flight
+import com.openlattice.shuttle.MissionParameters
+import com.openlattice.shuttle.Shuttle
+import com.openlattice.shuttle.destinations.NoOpDestination
+import com.openlattice.shuttle.destinations.PostgresDestination
+import com.openlattice.shuttle.destinations.StorageDestination
+import com.openlattice.shuttle.ids.CoalescingEntityKeyIdReserver
+import com.openlattice.shuttle.logs.Blackbox
+import com.openlattice.shuttle.metrics.FlightMetrics
+import com.openlattice.shuttle.payload.Payload
+import com.openlattice.shuttle.util.DataStoreType
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Drives [flight] with a synthetic [payload] through the regular [Shuttle] pipeline, against a [SyntheticEdm] and with
+ * entity key ids derived from entity keys instead of reserved by the id service. Nothing outside of this JVM is
+ * touched unless [BenchmarkConfiguration.destination] is [StorageDestination.POSTGRES].
+ *
+ * Checkpoints are disabled for benchmark runs, every other mission parameter applies as configured.
+ */
+class Benchmark(
+    private val flight: Flight,
+    private val payload: Payload,
+    private val configuration: BenchmarkConfiguration,
+    parameters: MissionParameters,
+    private val dataStore: DataStoreType
+) {
+    private val parameters = parameters.copy(checkpoint = parameters.checkpoint.copy(enabled = false))
+
+    fun run(uploadBatchSize: Int): BenchmarkReport {
+        val edm = SyntheticEdm.forFlight(flight, configuration.binaryPropertyTypes)
+
+        val (writeDestination, targetDataStore) = when (configuration.destination) {
+            StorageDestination.NO_OP -> StorageDestination.NO_OP to DataStoreType.NONE
+            StorageDestination.POSTGRES -> {
+                require(dataStore != DataStoreType.NONE) {
+                    "A data store must be specified to benchmark writes to ${StorageDestination.POSTGRES}."
+                }
+                StorageDestination.POSTGRES to dataStore
+            }
+            else -> throw IllegalArgumentException(
+                "Benchmarks can only write to ${StorageDestination.NO_OP} or ${StorageDestination.POSTGRES}."
+            )
+        }
+
+        // associate only entities are always addressed to the no-op destination.
+        val destinations = mutableMapOf(
+            StorageDestination.NO_OP to MeasuredDestination(NoOpDestination(), StorageDestination.NO_OP)
+        )
+        if (writeDestination == StorageDestination.POSTGRES) {
+            val writer = PostgresDestination(
+                edm.entitySets.mapKeys { it.value.id },
+                edm.entityTypes,
+                edm.propertyTypes.mapKeys { it.value.id },
+                targetDataStore,
+                parameters
+            )
+            destinations[writeDestination] = MeasuredDestination(writer, writeDestination)
+        }
+
+        val environment = RetrofitFactory.Environment.PROD_INTEGRATION
+        val compiledFlight = CompiledFlight.compile(
+            flight,
+            edm.entitySets,
+            edm.entityTypes,
+            edm.propertyTypes,
+            environment,
+            targetDataStore,
+            writeDestination,
+            parameters.entityIds.hashedEntitySets,
+            writeDestination
+        )
+
+        // keeps the latencies of the flight registered after it has finished.
+        val flightMetrics = FlightMetrics(compiledFlight)
+        val allocations = AllocationSampler().start()
+        val sw = Stopwatch.createStarted()
+        try {
+            CoalescingEntityKeyIdReserver(::syntheticEntityKeyIds, parameters.entityKeyIdReservation).use { reserver ->
+                Shuttle(
+                    environment,
+                    false,
+                    mapOf(flight to payload),
+                    mapOf(flight to compiledFlight),
+                    edm.entitySets,
+                    edm.entityTypes,
+                    edm.propertyTypes,
+                    destinations,
+                    null,
+                    mapOf(),
+                    parameters,
+                    targetDataStore,
+                    writeDestination,
+                    Blackbox.empty(),
+                    Optional.empty(),
+                    Optional.empty(),
+                    null,
+                    null,
+                    reserver
+                ).launch(uploadBatchSize)
+            }
+        } finally {
+            destinations.values.forEach { it.close() }
+        }
+        val elapsedMillis = sw.elapsed(TimeUnit.MILLISECONDS)
+        val allocatedBytes = allocations.use { it.allocatedBytes() }
+
+        return BenchmarkReport(
+            configuration.rows,
+            elapsedMillis,
+            destinations.mapValues { it.value.entities.count },
+            destinations.mapValues { it.value.associations.count },
+            allocatedBytes,
+            flightMetrics.use { metrics -> metrics.stageLatencies(destinations.keys).mapValues { it.value.snapshot } }
+        )
+    }
+
+    private fun syntheticEntityKeyIds(entityKeys: Set<EntityKey>): Iterable<UUID> {
+        return entityKeys.map { UUID.nameUUIDFromBytes("${it.entitySetId}:${it.entityId}".toByteArray(Charsets.UTF_8)) }
+    }
+}
+
+/**
+ * Outcome of a [Benchmark] run. Entity and association counts are per destination, since a single entity is written
+ * to every destination that one of its properties is stored in. Latency snapshots are in nanoseconds.
+ */
+data class BenchmarkReport(
+    val rows: Long,
+    val elapsedMillis: Long,
+    val entities: Map<StorageDestination, Long>,
+    val associations: Map<StorageDestination, Long>,
+    val allocatedBytes: Long,
+    val stageLatencies: Map<String, Snapshot>
+) {
+    fun perSecond(count: Long): Double = if (elapsedMillis > 0) count * 1000.0 / elapsedMillis else 0.0
+
+    fun format(): String {
+        val lines = mutableListOf(
+            "Benchmark of $rows rows took $elapsedMillis ms (${"%.0f".format(perSecond(rows))} rows/s).",
+            "Allocation rate: " + if (allocatedBytes < 0) {
+                "not supported by this JVM."
+            } else {
+                "${"%.1f".format(perSecond(allocatedBytes) / (1024 * 1024))} MB/s " +
+                        "(${allocatedBytes / (1024 * 1024)} MB in total)."
+            }
+        )
+        entities.keys.forEach { destination ->
+            val entityCount = entities.getValue(destination)
+            val associationCount = associations.getValue(destination)
+            lines += "${destination.name}: $entityCount entities (${"%.0f".format(perSecond(entityCount))}/s), " +
+                    "$associationCount associations (${"%.0f".format(perSecond(associationCount))}/s)."
+        }
+        lines += "%-28s %10s %10s %10s %10s %10s".format("latency (ms)", "count", "p50", "p95", "p99", "max")
+        stageLatencies.forEach { (stage, snapshot) ->
+            lines += "%-28s %10d %10.1f %10.1f %10.1f %10.1f".format(
+                stage,
+                snapshot.size(),
+                millis(snapshot.median),
+                millis(snapshot.get95thPercentile()),
+                millis(snapshot.get99thPercentile()),
+                millis(snapshot.max.toDouble())
+            )
+        }
+        return lines.joinToString("\n")
+    }
+
+    private fun millis(nanos: Double): Double = nanos / TimeUnit.MILLISECONDS.toNanos(1)
+}
@@ -0,0 +1,55 @@
+package com.openlattice.shuttle.benchmark
+
+import com.fasterxml.jackson.annotation.JsonProperty
+import com.openlattice.shuttle.destinations.StorageDestination
+
+/**
+ * Shape of the synthetic payload that a benchmark run drives a flight with, and where the resulting entities are
+ * written.
+ *
+ * Every row has a [keyColumn], one value for each of [columns] drawn from [cardinality] distinct values per column, and
+ * one random value for each of [binaryColumns]. A fraction [duplicateKeyRatio] of rows repeat the key of an earlier row
+ * instead of introducing a new one. The same [seed] always produces the same payload.
+ *
+ * Property types listed in [binaryPropertyTypes] are created with a binary datatype, every other property type of the
+ * flight is a string. Entities are written to [destination], which is either [StorageDestination.NO_OP] or
+ * [StorageDestination.POSTGRES] for a local stand-in of the data store.
+ */
+data class BenchmarkConfiguration(
+    @JsonProperty("rows") val rows: Long = 1_000_000,
+    @JsonProperty("key-column") val keyColumn: String = "id",
+    @JsonProperty("columns") val columns: List<String> = (0 until 8).map { "column$it" },
+    @JsonProperty("cardinality") val cardinality: Int = 1_000,
+    @JsonProperty("duplicate-key-ratio") val duplicateKeyRatio: Double = 0.0,
+    @JsonProperty("binary-columns") val binaryColumns: List<String> = listOf(),
+    @JsonProperty("binary-sizes") val binarySizes: BinarySizeConfiguration = BinarySizeConfiguration(),
+    @JsonProperty("binary-property-types") val binaryPropertyTypes: Set<String> = setOf(),
+    @JsonProperty("destination") val destination: StorageDestination = StorageDestination.NO_OP,
+    @JsonProperty("seed") val seed: Long = 0L
+)
+
+/**
+ * Size in bytes of generated binary values, between [minBytes] and [maxBytes] following [distribution].
+ */
+data class BinarySizeConfiguration(
+    @JsonProperty("min-bytes") val minBytes: Int = 1_024,
+    @JsonProperty("max-bytes") val maxBytes: Int = 1_024 * 1_024,
+    @JsonProperty("distribution") val distribution: BinarySizeDistribution = BinarySizeDistribution.LOG_UNIFORM
+)
+
+enum class BinarySizeDistribution {
+    /**
+     * Every value is [BinarySizeConfiguration.minBytes] long.
+     */
+    FIXED,
+
+    /**
+     * Sizes are spread evenly between the bounds.
+     */
+    UNIFORM,
+
+    /**
+     * Small values are much more frequent than large ones, like typical attachments.
+     */
+    LOG_UNIFORM
+}
@@ -0,0 +1,54 @@
+package com.openlattice.shuttle.benchmark
+
+import com.codahale.metrics.Meter
+import com.openlattice.data.EntityKey
+import com.openlattice.data.PropertyUpdateType
+import com.openlattice.data.UpdateType
+import com.openlattice.data.integration.Association
+import com.openlattice.data.integration.Entity
+import com.openlattice.shuttle.destinations.IntegrationDestination
+import com.openlattice.shuttle.destinations.StorageDestination
+import java.util.*
+
+/**
+ * Counts the entities and associations handed to [delegate], so that a benchmark can report throughput even for
+ * destinations that do not report how much they wrote.
+ *
+ * @param accepts The storage destination the wrapped destination is registered for.
+ */
+class MeasuredDestination(
+    private val delegate: IntegrationDestination,
+    private val accepts: StorageDestination
+) : IntegrationDestination {
+    val entities = Meter()
+    val associations = Meter()
+
+    override fun integrateEntities(
+        data: Collection<Entity>,
+        entityKeyIds: Map<EntityKey, UUID>,
+        updateTypes: Map<UUID, UpdateType>,
+        propertyUpdateTypes: Map<UUID, PropertyUpdateType>
+    ): Long {
+        val written = delegate.integrateEntities(data, entityKeyIds, updateTypes, propertyUpdateTypes)
+        entities.mark(data.size.toLong())
+        return written
+    }
+
+    override fun integrateAssociations(
+        data: Collection<Association>,
+        entityKeyIds: Map<EntityKey, UUID>,
+        updateTypes: Map<UUID, UpdateType>
+    ): Long {
+        val written = delegate.integrateAssociations(data, entityKeyIds, updateTypes)
+        associations.mark(data.size.toLong())
+        return written
+    }
+
+    override fun accepts(): StorageDestination {
+        return accepts
+    }
+
+    override fun close() {
+        delegate.close()
+    }
+}
@@ -0,0 +1,107 @@
+package com.openlattice.shuttle.benchmark
+
+import com.geekbeast.mappers.mappers.ObjectMappers
+import com.openlattice.data.serializers.FullQualifiedNameJacksonSerializer
+import com.openlattice.edm.EntitySet
+import com.openlattice.edm.type.EntityType
+import com.openlattice.edm.type.PropertyType
+import com.openlattice.shuttle.EntityDefinition
+import com.openlattice.shuttle.Flight
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import java.util.*
+
+/**
+ * A stand-in for the entity data model of a flight, so that it can be benchmarked without a backend. Every entity set of
+ * the flight gets its own entity type, keyed on the first property of its definition. Ids are derived from names, so
+ * repeated runs see the same EDM.
+ */
+class SyntheticEdm private constructor(
+    val entitySets: Map<String, EntitySet>,
+    val entityTypes: Map<UUID, EntityType>,
+    val propertyTypes: Map<FullQualifiedName, PropertyType>
+) {
+    companion object {
+        private val mapper = ObjectMappers.newJsonMapper()
+
+        init {
+            FullQualifiedNameJacksonSerializer.registerWithMapper(mapper)
+        }
+
+        @JvmStatic
+        fun forFlight(flight: Flight, binaryPropertyTypes: Set<String>): SyntheticEdm {
+            val definitions: List<EntityDefinition> = flight.entities + flight.associations
+            val organizationId = flight.organizationId.orElse(UUID(0L, 0L))
+
+            val propertyTypes = definitions
+                .flatMap { definition -> definition.properties.map { it.fullQualifiedName } }
+                .distinct()
+                .associateWith { fqn ->
+                    val datatype = if (fqn.fullQualifiedNameAsString in binaryPropertyTypes) {
+                        EdmPrimitiveTypeKind.Binary
+                    } else {
+                        EdmPrimitiveTypeKind.String
+                    }
+                    propertyType(fqn, datatype)
+                }
+
+            val entityTypes = mutableMapOf<UUID, EntityType>()
+            val entitySets = definitions.associate { definition ->
+                val properties = definition.properties.map { propertyTypes.getValue(it.fullQualifiedName).id }
+                val entityType = entityType(
+                    FullQualifiedName("benchmark", definition.entitySetName),
+                    properties.take(1),
+                    properties.distinct()
+                )
+                entityTypes[entityType.id] = entityType
+
+                definition.entitySetName to EntitySet(
+                    nameUUID("entity-set", definition.entitySetName),
+                    entityType.id,
+                    definition.entitySetName,
+                    definition.entitySetName,
+                    definition.entitySetName,
+                    mutableSetOf(),
+                    mutableSetOf(),
+                    organizationId
+                )
+            }
+
+            return SyntheticEdm(entitySets, entityTypes, propertyTypes)
+        }
+
+        private fun propertyType(fqn: FullQualifiedName, datatype: EdmPrimitiveTypeKind): PropertyType {
+            return mapper.convertValue(
+                mapOf(
+                    "id" to nameUUID("property-type", fqn.fullQualifiedNameAsString),
+                    "type" to fqn,
+                    "title" to fqn.fullQualifiedNameAsString,
+                    "description" to "",
+                    "schemas" to listOf<FullQualifiedName>(),
+                    "datatype" to datatype
+                ),
+                PropertyType::class.java
+            )
+        }
+
+        private fun entityType(fqn: FullQualifiedName, key: List<UUID>, properties: List<UUID>): EntityType {
+            return mapper.convertValue(
+                mapOf(
+                    "id" to nameUUID("entity-type", fqn.fullQualifiedNameAsString),
+                    "type" to fqn,
+                    "title" to fqn.fullQualifiedNameAsString,
+                    "description" to "",
+                    "schemas" to listOf<FullQualifiedName>(),
+                    "key" to key,
+                    "properties" to properties,
+                    "category" to "EntityType"
+                ),
+                EntityType::class.java
+            )
+        }
+
+        private fun nameUUID(kind: String, name: String): UUID {
+            return UUID.nameUUIDFromBytes("$kind:$name".toByteArray(Charsets.UTF_8))
+        }
+    }
+}
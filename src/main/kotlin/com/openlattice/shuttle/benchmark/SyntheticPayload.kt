@@ -0,0 +1,75 @@
+package com.openlattice.shuttle.benchmark
+
+import com.openlattice.shuttle.payload.IndexedRow
+import com.openlattice.shuttle.payload.Payload
+import com.openlattice.shuttle.payload.RowSchema
+import java.util.*
+import kotlin.math.exp
+import kotlin.math.ln
+
+/**
+ * Generates [BenchmarkConfiguration.rows] rows on the fly, so that payloads of any size can be benchmarked without
+ * holding them in memory. Each call to [getPayload] starts over from the configured seed and yields the same rows.
+ */
+class SyntheticPayload(private val configuration: BenchmarkConfiguration) : Payload {
+    private val schema = RowSchema(
+        listOf(configuration.keyColumn) + configuration.columns + configuration.binaryColumns
+    )
+
+    init {
+        require(configuration.rows >= 0) { "Benchmark row count cannot be negative." }
+        require(configuration.cardinality > 0) { "Benchmark column cardinality must be positive." }
+        require(configuration.duplicateKeyRatio in 0.0..1.0) { "Duplicate key ratio must be between 0 and 1." }
+        require(configuration.binarySizes.minBytes in 0..configuration.binarySizes.maxBytes) {
+            "Binary sizes must satisfy 0 <= min-bytes <= max-bytes."
+        }
+    }
+
+    override fun getPayload(): Iterable<Map<String, Any?>> {
+        return sequence {
+            val random = Random(configuration.seed)
+            var distinctKeys = 0L
+            var generated = 0L
+            while (generated++ < configuration.rows) {
+                val key = if (distinctKeys > 0 && random.nextDouble() < configuration.duplicateKeyRatio) {
+                    (random.nextDouble() * distinctKeys).toLong()
+                } else {
+                    distinctKeys++
+                }
+                yield(row(key, random))
+            }
+        }.asIterable()
+    }
+
+    private fun row(key: Long, random: Random): IndexedRow {
+        val values = arrayOfNulls<Any>(schema.size)
+        var column = 0
+
+        values[column++] = "key-$key"
+
+        configuration.columns.forEach { name ->
+            values[column++] = "$name-${random.nextInt(configuration.cardinality)}"
+        }
+
+        configuration.binaryColumns.forEach { _ ->
+            val bytes = ByteArray(binarySize(random))
+            random.nextBytes(bytes)
+            values[column++] = bytes
+        }
+
+        return IndexedRow(schema, values)
+    }
+
+    private fun binarySize(random: Random): Int {
+        val (minBytes, maxBytes, distribution) = configuration.binarySizes
+        return when (distribution) {
+            BinarySizeDistribution.FIXED -> minBytes
+            BinarySizeDistribution.UNIFORM -> minBytes + random.nextInt(maxBytes - minBytes + 1)
+            BinarySizeDistribution.LOG_UNIFORM -> {
+                val low = ln(minBytes + 1.0)
+                val high = ln(maxBytes + 1.0)
+                (exp(low + random.nextDouble() * (high - low)) - 1).toInt().coerceIn(minBytes, maxBytes)
+            }
+        }
+    }
+}
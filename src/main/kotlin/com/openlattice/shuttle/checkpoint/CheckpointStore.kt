@@ -0,0 +1,108 @@
+package com.openlattice.shuttle.checkpoint
+
+import com.fasterxml.jackson.module.kotlin.readValue
+import com.geekbeast.mappers.mappers.ObjectMappers
+import com.hazelcast.core.HazelcastInstance
+import com.hazelcast.map.IMap
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.time.OffsetDateTime
+
+/**
+ * Name of the hazelcast map of checkpoints. HazelcastMap only has entries for maps of conductor-client, so shuttle
+ * keeps the name of its own map here.
+ */
+private const val CHECKPOINTS_MAP = "SHUTTLE_CHECKPOINTS"
+private val mapper = ObjectMappers.newJsonMapper()
+
+/**
+ * Identifies the checkpoints of a flight within a job, so that jobs that run flights of the same name do not share
+ * checkpoints.
+ *
+ * @param scope The integration job id on the shuttle server, or [LOCAL_SCOPE] for the CLI.
+ */
+data class CheckpointKey(val scope: String, val flightName: String) {
+    companion object {
+        const val LOCAL_SCOPE = "local"
+    }
+
+    override fun toString(): String = "$scope/$flightName"
+}
+
+/**
+ * Progress of a flight that has been durably written to every destination.
+ *
+ * @param committedBatches The number of batches, counted from the start of the payload, that have all been committed.
+ * @param committedRows The number of payload rows in those batches, i.e. the position in the payload to resume from.
+ * @param position The key columns of the last committed row, to help locate it in the source.
+ */
+data class FlightCheckpoint(
+        val key: CheckpointKey,
+        val committedBatches: Long,
+        val committedRows: Long,
+        val position: Map<String, Any?>,
+        val updated: OffsetDateTime
+)
+
+/**
+ * Stores the latest checkpoint of each flight, so that a failed integration can be resumed after the last committed
+ * batch instead of from the start of its payload.
+ */
+interface CheckpointStore {
+    fun load(key: CheckpointKey): FlightCheckpoint?
+
+    fun save(checkpoint: FlightCheckpoint)
+
+    fun clear(key: CheckpointKey)
+}
+
+/**
+ * Keeps one json file per flight in [directory]. Files are replaced atomically, so a crash while saving leaves the
+ * previous checkpoint in place.
+ */
+class LocalFileCheckpointStore(private val directory: Path) : CheckpointStore {
+    init {
+        Files.createDirectories(directory)
+    }
+
+    override fun load(key: CheckpointKey): FlightCheckpoint? {
+        val file = fileOf(key)
+        return if (Files.exists(file)) mapper.readValue(file.toFile()) else null
+    }
+
+    override fun save(checkpoint: FlightCheckpoint) {
+        val file = fileOf(checkpoint.key)
+        val tmp = Files.createTempFile(directory, file.fileName.toString(), ".tmp")
+        Files.write(tmp, mapper.writeValueAsBytes(checkpoint))
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+
+    override fun clear(key: CheckpointKey) {
+        Files.deleteIfExists(fileOf(key))
+    }
+
+    private fun fileOf(key: CheckpointKey): Path {
+        val name = "${key.scope}-${key.flightName}".replace(Regex("[^A-Za-z0-9._-]"), "_")
+        return directory.resolve("$name.json")
+    }
+}
+
+/**
+ * Keeps checkpoints in a hazelcast map shared by all shuttle servers.
+ */
+class HazelcastCheckpointStore(hazelcastInstance: HazelcastInstance) : CheckpointStore {
+    private val checkpoints: IMap<String, String> = hazelcastInstance.getMap(CHECKPOINTS_MAP)
+
+    override fun load(key: CheckpointKey): FlightCheckpoint? {
+        return checkpoints[key.toString()]?.let { mapper.readValue(it) }
+    }
+
+    override fun save(checkpoint: FlightCheckpoint) {
+        checkpoints[checkpoint.key.toString()] = mapper.writeValueAsString(checkpoint)
+    }
+
+    override fun clear(key: CheckpointKey) {
+        checkpoints.delete(key.toString())
+    }
+}
@@ -0,0 +1,53 @@
+package com.openlattice.shuttle.checkpoint
+
+import org.slf4j.LoggerFactory
+import java.time.OffsetDateTime
+
+/**
+ * Turns batches that commit out of order into a checkpoint of the longest run of committed batches from the start of
+ * the payload. Batch ids are numbered from one, after the batches committed by [resumedFrom].
+ */
+class CheckpointTracker(
+        private val store: CheckpointStore,
+        private val key: CheckpointKey,
+        resumedFrom: FlightCheckpoint?
+) {
+    companion object {
+        private val logger = LoggerFactory.getLogger(CheckpointTracker::class.java)
+    }
+
+    private val batchOffset = resumedFrom?.committedBatches ?: 0L
+    private var committedBatches = 0L
+    private var committedRows = resumedFrom?.committedRows ?: 0L
+    private val pending = sortedMapOf<Long, PendingBatch>()
+
+    @Synchronized
+    fun committed(batchId: Long, rows: Int, lastRow: Map<String, Any?>) {
+        pending[batchId] = PendingBatch(rows, lastRow)
+
+        var last: PendingBatch? = null
+        while (pending.isNotEmpty() && pending.firstKey() == committedBatches + 1) {
+            last = pending.remove(pending.firstKey())!!
+            committedBatches++
+            committedRows += last.rows
+        }
+
+        if (last != null) {
+            try {
+                store.save(
+                        FlightCheckpoint(
+                                key,
+                                batchOffset + committedBatches,
+                                committedRows,
+                                last.lastRow,
+                                OffsetDateTime.now()
+                        )
+                )
+            } catch (ex: Exception) {
+                logger.warn("Unable to save checkpoint of flight {} after batch {}", key, batchId, ex)
+            }
+        }
+    }
+
+    private class PendingBatch(val rows: Int, val lastRow: Map<String, Any?>)
+}
@@ -0,0 +1,23 @@
+package com.openlattice.shuttle.controllers
+
+import com.openlattice.shuttle.api.METRICS
+import com.openlattice.shuttle.metrics.PrometheusTextFormat
+import com.openlattice.shuttle.metrics.ShuttleMetrics
+import org.springframework.web.bind.annotation.GetMapping
+import org.springframework.web.bind.annotation.RequestMapping
+import org.springframework.web.bind.annotation.RestController
+
+/**
+ * Exposes the integration metrics of this shuttle server for prometheus to scrape. Metrics are tagged with flight and
+ * entity set names, so like every other endpoint it requires an authenticated caller, i.e. a scrape config with a
+ * bearer token.
+ */
+@RestController
+@RequestMapping(METRICS)
+class MetricsController {
+
+    @GetMapping(produces = [PrometheusTextFormat.CONTENT_TYPE])
+    fun scrape(): String {
+        return PrometheusTextFormat.render(ShuttleMetrics.taggedMetrics())
+    }
+}
@@ -27,23 +27,39 @@ import com.geekbeast.util.attempt
 import com.openlattice.data.*
 import com.openlattice.data.integration.*
 import com.openlattice.data.integration.Entity
+import com.openlattice.client.RetrofitFactory
 import com.openlattice.data.util.PostgresDataHasher
+import com.openlattice.shuttle.payload.SpooledBinary
+import okhttp3.MediaType
+import okhttp3.Request
+import okhttp3.RequestBody
+import okio.BufferedSink
 import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
 import org.slf4j.LoggerFactory
+import java.io.IOException
 import java.util.*
-import java.util.stream.Collectors
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
 
 private val logger = LoggerFactory.getLogger(S3Destination::class.java)
 const val MAX_DELAY_MILLIS = 60 * 1000L
 const val MAX_RETRY_COUNT = 22
 
+private val OCTET_STREAM = MediaType.parse("application/octet-stream")
+
+/**
+ * Spooled binaries are streamed to their presigned urls directly, since the S3 api only accepts byte arrays.
+ */
+private val spooledUploadClient by lazy { RetrofitFactory.okHttpClient().build() }
+
 /**
  *
  * @author Matthew Tamayo-Rios &lt;matthew@openlattice.com&gt;
  */
 abstract class BaseS3Destination(
         private val s3Api: S3Api,
-        private val generatePresignedUrlsFun: (List<S3EntityData>, PropertyUpdateType) -> List<String>
+        private val generatePresignedUrlsFun: (List<S3EntityData>, PropertyUpdateType) -> List<String>,
+        private val uploadExecutor: S3UploadExecutor
 ) : IntegrationDestination {
     override fun integrateEntities(
             data: Collection<Entity>,
@@ -59,17 +75,19 @@ abstract class BaseS3Destination(
                 entity.details.entries.flatMap { (propertyTypeId, properties) ->
                     try {
                         properties.map {
-                            S3EntityData(
-                                    entity.entitySetId,
-                                    entityKeyId,
-                                    propertyTypeId,
-                                    PostgresDataHasher.hashObjectToHex(it, EdmPrimitiveTypeKind.Binary)
-                            ) to it as ByteArray
+                            // spooled binaries were hashed the same way while being spooled, so they are not read back.
+                            val binary: Any = it as? SpooledBinary ?: it as ByteArray
+                            val hash = if (binary is SpooledBinary) {
+                                binary.hash
+                            } else {
+                                PostgresDataHasher.hashObjectToHex(binary, EdmPrimitiveTypeKind.Binary)
+                            }
+                            S3EntityData(entity.entitySetId, entityKeyId, propertyTypeId, hash) to binary
                         }
                     } catch (ex: Exception) {
                         if (ex is ClassCastException) {
                             logger.error(
-                                    "Expected byte array, but found wrong data type for upload (entitySetId=${entity.key.entitySetId}, entityKeyId=$entityKeyId, PropertType=$propertyTypeId).",
+                                    "Expected byte array or spooled binary, but found wrong data type for upload (entitySetId=${entity.key.entitySetId}, entityKeyId=$entityKeyId, PropertType=$propertyTypeId).",
                                     ex
                             )
                         }
@@ -104,45 +122,67 @@ abstract class BaseS3Destination(
         }
     }
 
+    /**
+     * Uploads all values on the [uploadExecutor] and waits for them, failing with the first upload that ran out of
+     * retries.
+     */
     private fun uploadToS3WithRetry(
-            s3entitiesAndValues: List<Pair<S3EntityData, ByteArray>>,
+            s3entitiesAndValues: List<Pair<S3EntityData, Any>>,
             propertyUpdateType: PropertyUpdateType
     ) {
-        var currentRetryCount = 0
-        val retryStrategy = ExponentialBackoff(MAX_DELAY_MILLIS)
-
         val (s3entities, values) = s3entitiesAndValues.unzip()
-        val presignedUrls = attempt(retryStrategy, MAX_RETRY_COUNT) {
+        val presignedUrls = attempt(ExponentialBackoff(MAX_DELAY_MILLIS), MAX_RETRY_COUNT) {
             generatePresignedUrlsFun(s3entities, propertyUpdateType)
         }
 
-        var s3eds = s3entities
-                .mapIndexed { index, s3EntityData ->
-                    Triple(s3EntityData, presignedUrls[index], values[index])
+        val uploads = s3entities.mapIndexed { index, s3ed ->
+            val url = presignedUrls[index]
+            val binary = values[index]
+            val size = if (binary is SpooledBinary) binary.size else (binary as ByteArray).size.toLong()
+            uploadExecutor.upload(url, size) {
+                try {
+                    if (binary is SpooledBinary) {
+                        writeToS3(url, binary)
+                    } else {
+                        s3Api.writeToS3(url, binary as ByteArray)
+                    }
+                } catch (ex: Exception) {
+                    logger.warn(
+                            "Encountered an issue when uploading data (entitySetId=${s3ed.entitySetId}, " +
+                                    "entityKeyId=${s3ed.entityKeyId}, PropertType=${s3ed.propertyTypeId}).",
+                            ex
+                    )
+                    throw ex
                 }
+            }
+        }
 
-        while (s3eds.isNotEmpty() && (currentRetryCount <= MAX_RETRY_COUNT)) {
-            s3eds = s3eds
-                    .parallelStream()
-                    .filter { (s3ed, url, bytes) ->
-                        attempt(retryStrategy, MAX_RETRY_COUNT) {
-                            try {
-                                s3Api.writeToS3(url, bytes)
-                                false
-                            } catch (ex: Exception) {
-                                logger.warn(
-                                        "Encountered an issue when uploading data (entitySetId=${s3ed.entitySetId}, " +
-                                                "entityKeyId=${s3ed.entityKeyId}, PropertType=${s3ed.propertyTypeId}). " +
-                                                "Retrying...",
-                                        ex
-                                )
-                                throw ex
-                            }
-                        }
-                    }
-                    .collect(Collectors.toList())
+        try {
+            CompletableFuture.allOf(*uploads.toTypedArray()).join()
+        } catch (ex: CompletionException) {
+            throw ex.cause ?: ex
         }
+    }
+
+    /**
+     * Streams [binary] from its spool file to [url], without reading it into memory.
+     */
+    private fun writeToS3(url: String, binary: SpooledBinary) {
+        val body = object : RequestBody() {
+            override fun contentType(): MediaType? = OCTET_STREAM
+
+            override fun contentLength(): Long = binary.size
 
+            override fun writeTo(sink: BufferedSink) {
+                binary.openStream().use { it.copyTo(sink.outputStream()) }
+            }
+        }
+        val request = Request.Builder().url(url).put(body).build()
+        spooledUploadClient.newCall(request).execute().use { response ->
+            if (!response.isSuccessful) {
+                throw IOException("Upload of spooled binary failed with ${response.code()} ${response.message()}.")
+            }
+        }
     }
 
     override fun accepts(): StorageDestination {
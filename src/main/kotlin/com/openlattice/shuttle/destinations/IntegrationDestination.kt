@@ -26,13 +26,14 @@ import com.openlattice.data.PropertyUpdateType
 import com.openlattice.data.UpdateType
 import com.openlattice.data.integration.Association
 import com.openlattice.data.integration.Entity
+import java.io.Closeable
 import java.util.*
 
 /**
  *
  * @author Matthew Tamayo-Rios &lt;matthew@openlattice.com&gt;
  */
-interface IntegrationDestination {
+interface IntegrationDestination : Closeable {
 
     fun integrateEntities(
         data: Collection<Entity>,
@@ -48,4 +49,9 @@ interface IntegrationDestination {
     ): Long
 
     fun accepts(): StorageDestination
+
+    /**
+     * Releases the resources of this destination. Called by whoever created it, once nothing writes to it anymore.
+     */
+    override fun close() {}
 }
@@ -21,13 +21,13 @@
 
 package com.openlattice.shuttle.destinations
 
-import com.geekbeast.mappers.mappers.ObjectMappers
-import com.fasterxml.jackson.module.kotlin.readValue
 import com.google.common.base.Stopwatch
 import com.google.common.collect.ImmutableList
+import com.google.common.util.concurrent.ThreadFactoryBuilder
 import com.openlattice.data.*
 import com.openlattice.data.integration.Association
 import com.openlattice.data.integration.Entity
+import com.openlattice.data.storage.partitions.getPartition
 import com.openlattice.data.storage.postgres.updateEntitySql
 import com.openlattice.data.storage.postgres.updateVersionsForPropertyTypesInEntitiesInEntitySet
 import com.openlattice.data.storage.postgres.upsertPropertyValueSql
@@ -38,144 +38,253 @@ import com.openlattice.edm.type.PropertyType
 import com.openlattice.graph.EDGES_UPSERT_SQL
 import com.openlattice.graph.bindColumnsForEdge
 import com.openlattice.postgres.JsonDeserializer
+import com.openlattice.postgres.PostgresColumn.VERSION
+import com.openlattice.postgres.PostgresColumn.VERSIONS
+import com.openlattice.postgres.PostgresDataTables
 import com.geekbeast.postgres.PostgresArrays
 import com.openlattice.shuttle.MissionParameters
 import com.openlattice.shuttle.util.DataStoreType
+import com.zaxxer.hikari.HikariDataSource
 import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
+import org.postgresql.PGConnection
+import org.postgresql.copy.PGCopyOutputStream
 import org.slf4j.LoggerFactory
 import java.security.InvalidParameterException
 import java.sql.Connection
 import java.sql.PreparedStatement
+import java.sql.Statement
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  *
  * @author Matthew Tamayo-Rios &lt;matthew@openlattice.com&gt;
+ *
+ * @param maxConnections The most connections of the shared pool of [targetDataStore] that this destination uses at the
+ * same time, or null to use as many as the pool allows.
  */
 class PostgresDestination(
         private val entitySets: Map<UUID, EntitySet>,
         private val entityTypes: Map<UUID, EntityType>,
         private val propertyTypes: Map<UUID, PropertyType>,
         private val targetDataStore: DataStoreType,
-        private val parameters: MissionParameters
+        private val parameters: MissionParameters,
+        maxConnections: Int? = null
 ) : IntegrationDestination {
 
     companion object {
         private val logger = LoggerFactory.getLogger(PostgresDestination::class.java)
-        private val mapper = ObjectMappers.newJsonMapper()
     }
 
+    private val writeExecutorDelegate = lazy {
+        Executors.newFixedThreadPool(
+                parameters.postgresWrites.writerThreads,
+                ThreadFactoryBuilder().setNameFormat("postgres-writer-%d").setDaemon(true).build()
+        )
+    }
+    private val writeExecutor by writeExecutorDelegate
+    private val connectionPermits = maxConnections?.let { Semaphore(it) }
+
     override fun integrateEntities(
             data: Collection<Entity>,
             entityKeyIds: Map<EntityKey, UUID>,
             updateTypes: Map<UUID, UpdateType>,
             propertyUpdateTypes: Map<UUID, PropertyUpdateType>
     ): Long {
-        val hds = parameters.getTargetHikariDataSource(targetDataStore)
+        val sw = Stopwatch.createStarted()
+        val partialReplacePropertyTypeIds = data.flatMap { it.details.keys }.toSet()
 
-        return hds.connection.use { connection ->
+        /*
+         * Entities are routed to connections by the partition they are stored in, so every partition is written by a
+         * single connection. Within a connection entities are written grouped by partition and in entity key id
+         * order, so concurrent writers never wait on each other's rows.
+         */
+        val entitiesByEntitySet = data.groupBy({ it.entitySetId }, { normalize(entityKeyIds, it) })
+        val partitionedEntities = entitiesByEntitySet.mapValues { (entitySetId, entities) ->
+            val partitions = entitySets.getValue(entitySetId).partitions.toList()
+            entities.groupBy { getPartition(it.first, partitions) }
+        }
+        val lanesByPartition = assignLanes(
+                partitionedEntities.values
+                        .flatMap { it.entries }
+                        .groupingBy { it.key }
+                        .fold(0) { count, (_, entities) -> count + entities.size }
+        )
+        val lanes = List(lanesByPartition.values.distinct().size) { lane ->
+            partitionedEntities.flatMap { (entitySetId, entitiesByPartition) ->
+                entitiesByPartition.entries
+                        .filter { lanesByPartition.getValue(it.key) == lane }
+                        .sortedBy { it.key }
+                        .flatMap { (_, entities) -> entities.sortedBy { it.first } }
+                        .chunked(parameters.postgresWrites.entitySetSliceSize)
+                        .map { slice -> EntitySetWrite(entitySetId, slice.toMap(LinkedHashMap(slice.size))) }
+            }
+        }
 
-            val sw = Stopwatch.createStarted()
+        val stats = WriteStats()
+        val count = writeConcurrently(lanes) { connection, lane ->
             val upsertPropertyValues = mutableMapOf<UUID, PreparedStatement>()
             val updatePropertyValueVersion = connection.prepareStatement(
                     updateVersionsForPropertyTypesInEntitiesInEntitySet()
             )
-            val count = data
-                    .groupBy({ it.entitySetId }, { normalize(entityKeyIds, it) })
-                    .map { (entitySetId, entities) ->
-                        logger.info("Integrating entity set {}", entitySets.getValue(entitySetId).name)
-                        val esSw = Stopwatch.createStarted()
-                        val entitySet = entitySets.getValue(entitySetId)
-
-                        val partitions = entitySet.partitions.toList()
-
-                        val baseVersion = System.currentTimeMillis()
-                        val tombstoneVersion = baseVersion
-                        val writeVersion = baseVersion + 1
-                        val relevantPropertyTypes = entityTypes
-                                .getValue(entitySets.getValue(entitySetId).entityTypeId)
-                                .properties
-                                .associateWith(propertyTypes::getValue)
-                        val propertyTypeIdsArr = when (updateTypes.getValue(entitySetId)) {
-                            UpdateType.Replace -> PostgresArrays.createUuidArray(
-                                    connection,
-                                    relevantPropertyTypes.keys
-                            )
-                            UpdateType.PartialReplace -> PostgresArrays.createUuidArray(
-                                    connection,
-                                    data.flatMap { it.details.keys }.toSet()
-                            )
-                            else -> PostgresArrays.createUuidArray(connection, setOf())
-                        }
-
-                        val writeVersionArray = PostgresArrays.createLongArray(connection, writeVersion)
-                        val writeVersionArrayconnection = PostgresArrays.createLongArray(connection, writeVersion)
-                        logger.info(
-                                "Preparing queries for entity set {} took {} ms",
-                                entitySets.getValue(entitySetId).name,
-                                esSw.elapsed(TimeUnit.MILLISECONDS)
-                        )
-                        val partSw = Stopwatch.createStarted()
-                        val entityMap = entities.toMap()
-                        val entityKeyIdsArr = PostgresArrays.createUuidArray(connection, entityMap.keys)
-
-                        when (updateTypes.getValue(entitySetId)) {
-                            UpdateType.Replace, UpdateType.PartialReplace -> tombstone(
-                                    updatePropertyValueVersion,
-                                    entitySet,
-                                    entityKeyIdsArr,
-                                    propertyTypeIdsArr,
-                                    tombstoneVersion
-                            )
-                        }
-
-                        val committedProperties = upsertEntities(
-                                connection,
-                                upsertPropertyValues,
-                                entitySet,
-                                entityMap,
-                                relevantPropertyTypes,
-                                writeVersionArrayconnection,
-                                writeVersion,
-                                propertyUpdateTypes.getValue(entitySetId)
-                        )
+            lane.sumOf { write ->
+                writeEntitySet(
+                        connection,
+                        upsertPropertyValues,
+                        updatePropertyValueVersion,
+                        write,
+                        updateTypes.getValue(write.entitySetId),
+                        propertyUpdateTypes.getValue(write.entitySetId),
+                        partialReplacePropertyTypeIds,
+                        stats
+                )
+            }
+        }
 
-                        logger.info(
-                                "Upserted $committedProperties properties entity set {} in {} ms ",
-                                partSw.elapsed(TimeUnit.MILLISECONDS)
-                        )
+        logger.info(
+                "Integrated ${data.size} entities and update $count rows with {} statements in {} round trips in ${
+                    sw.elapsed(
+                            TimeUnit.MILLISECONDS
+                    )
+                } ms.",
+                stats.statements.get(),
+                stats.roundTrips.get()
+        )
+        return data.size.toLong()
+    }
 
-                        commitEntities(
-                                connection,
-                                entitySetId,
-                                entityMap.keys,
-                                writeVersionArray,
-                                writeVersion
-                        )
-                        val esCount = entityMap.size.toLong()
-                        logger.info(
-                                "Integrated $esCount entities and $committedProperties properties for entity set {} in {} ms",
-                                entitySets.getValue(entitySetId).name,
-                                partSw.elapsed(TimeUnit.MILLISECONDS)
-                        )
-                        logger.info(
-                                "Integrated $esCount entities for entity set {} in {} ms",
-                                entitySets.getValue(entitySetId).name,
-                                esSw.elapsed(TimeUnit.MILLISECONDS)
-                        )
-                        esCount
-                    }.sum()
+    /**
+     * Assigns partitions to at most [PostgresWriteConfiguration.connectionFanOut] lanes, balanced by the number of
+     * rows in each partition. Lanes are numbered from zero.
+     */
+    private fun assignLanes(rowsByPartition: Map<Int, Int>): Map<Int, Int> {
+        val laneCount = rowsByPartition.size.coerceAtMost(parameters.postgresWrites.connectionFanOut).coerceAtLeast(1)
+        val laneSizes = LongArray(laneCount)
+        return rowsByPartition.entries.sortedByDescending { it.value }.associate { (partition, rows) ->
+            val lane = laneSizes.indices.minByOrNull { laneSizes[it] }!!
+            laneSizes[lane] += rows.toLong()
+            partition to lane
+        }
+    }
 
-            logger.info(
-                    "Integrated ${data.size} entities and update $count rows in ${
-                        sw.elapsed(
-                                TimeUnit.MILLISECONDS
-                        )
-                    } ms."
-            )
-            data.size.toLong()
+    /**
+     * Runs every lane on its own pooled connection and returns the sum of the lane results.
+     */
+    private fun <T> writeConcurrently(lanes: List<List<T>>, writeLane: (Connection, List<T>) -> Long): Long {
+        val hds = parameters.getTargetHikariDataSource(targetDataStore)
+        if (lanes.size <= 1) {
+            return lanes.sumOf { lane -> withConnection(hds) { connection -> writeLane(connection, lane) } }
         }
+
+        return lanes
+                .map { lane -> writeExecutor.submit(Callable { withConnection(hds) { writeLane(it, lane) } }) }
+                .sumOf { future ->
+                    try {
+                        future.get()
+                    } catch (ex: ExecutionException) {
+                        throw ex.cause ?: ex
+                    }
+                }
+    }
+
+    private fun <T> withConnection(hds: HikariDataSource, action: (Connection) -> T): T {
+        connectionPermits?.acquire()
+        try {
+            return hds.connection.use(action)
+        } finally {
+            connectionPermits?.release()
+        }
+    }
+
+    private fun writeEntitySet(
+            connection: Connection,
+            upsertPropertyValues: MutableMap<UUID, PreparedStatement>,
+            updatePropertyValueVersion: PreparedStatement,
+            write: EntitySetWrite,
+            updateType: UpdateType,
+            propertyUpdateType: PropertyUpdateType,
+            partialReplacePropertyTypeIds: Set<UUID>,
+            stats: WriteStats
+    ): Long {
+        val entitySetId = write.entitySetId
+        val entitySet = entitySets.getValue(entitySetId)
+        logger.info("Integrating {} entities of entity set {}", write.entities.size, entitySet.name)
+        val esSw = Stopwatch.createStarted()
+
+        val baseVersion = System.currentTimeMillis()
+        val tombstoneVersion = baseVersion
+        val writeVersion = baseVersion + 1
+        val relevantPropertyTypes = entityTypes
+                .getValue(entitySet.entityTypeId)
+                .properties
+                .associateWith(propertyTypes::getValue)
+        val propertyTypeIdsArr = when (updateType) {
+            UpdateType.Replace -> PostgresArrays.createUuidArray(connection, relevantPropertyTypes.keys)
+            UpdateType.PartialReplace -> PostgresArrays.createUuidArray(connection, partialReplacePropertyTypeIds)
+            else -> PostgresArrays.createUuidArray(connection, setOf())
+        }
+
+        val writeVersionArray = PostgresArrays.createLongArray(connection, writeVersion)
+        logger.info(
+                "Preparing queries for entity set {} took {} ms",
+                entitySet.name,
+                esSw.elapsed(TimeUnit.MILLISECONDS)
+        )
+        val partSw = Stopwatch.createStarted()
+        val entityMap = write.entities
+        val entityKeyIdsArr = PostgresArrays.createUuidArray(connection, entityMap.keys)
+
+        when (updateType) {
+            UpdateType.Replace, UpdateType.PartialReplace -> {
+                tombstone(
+                        updatePropertyValueVersion,
+                        entitySet,
+                        entityKeyIdsArr,
+                        propertyTypeIdsArr,
+                        tombstoneVersion
+                )
+                stats.recordRoundTrip(1)
+            }
+        }
+
+        val committedProperties = upsertEntities(
+                connection,
+                upsertPropertyValues,
+                entitySet,
+                entityMap,
+                relevantPropertyTypes,
+                writeVersionArray,
+                writeVersion,
+                propertyUpdateType,
+                stats
+        )
+
+        logger.info(
+                "Upserted $committedProperties properties entity set {} in {} ms ",
+                entitySet.name,
+                partSw.elapsed(TimeUnit.MILLISECONDS)
+        )
+
+        commitEntities(
+                connection,
+                entitySetId,
+                entityMap.keys,
+                writeVersionArray,
+                writeVersion
+        )
+        stats.recordRoundTrip(entityMap.size)
+        val esCount = entityMap.size.toLong()
+        logger.info(
+                "Integrated $esCount entities and $committedProperties properties for entity set {} in {} ms",
+                entitySet.name,
+                esSw.elapsed(TimeUnit.MILLISECONDS)
+        )
+        return esCount
     }
 
     override fun integrateAssociations(
@@ -201,6 +310,12 @@ class PostgresDestination(
         return data.size.toLong()
     }
 
+    override fun close() {
+        if (writeExecutorDelegate.isInitialized()) {
+            writeExecutor.shutdown()
+        }
+    }
+
     override fun accepts(): StorageDestination {
         return StorageDestination.POSTGRES
     }
@@ -212,31 +327,69 @@ class PostgresDestination(
                 .toSet()
                 .associateWith { entitySetId -> entitySets.getValue(entitySetId).partitions.toList() }
 
-        val hds = parameters.getTargetHikariDataSource(targetDataStore)
-        return hds.connection.use { connection ->
-            val ps = connection.prepareStatement(EDGES_UPSERT_SQL)
-            val version = System.currentTimeMillis()
-            val versions = PostgresArrays.createLongArray(connection, ImmutableList.of(version))
+        /*
+         * Edges are stored in the partition of their source entity, so they are routed and ordered the same way as
+         * entity writes.
+         */
+        val edgesByPartition = keys.groupBy { edge ->
+            getPartition(edge.src.entityKeyId, partitionsByEntitySet.getValue(edge.src.entitySetId))
+        }
+        val lanesByPartition = assignLanes(edgesByPartition.mapValues { it.value.size })
+        val lanes = List(lanesByPartition.values.distinct().size) { lane ->
+            edgesByPartition.entries
+                    .filter { lanesByPartition.getValue(it.key) == lane }
+                    .sortedBy { it.key }
+                    .flatMap { (_, edges) ->
+                        edges.sortedWith(compareBy({ it.src.entityKeyId }, { it.dst.entityKeyId }, { it.edge.entityKeyId }))
+                    }
+        }
 
+        val version = System.currentTimeMillis()
+        return writeConcurrently(lanes) { connection, lane ->
+            val versions = PostgresArrays.createLongArray(connection, ImmutableList.of(version))
+            val ps = connection.prepareStatement(EDGES_UPSERT_SQL)
             ps.use {
-                keys.forEach { dataEdgeKey ->
+                lane.forEach { dataEdgeKey ->
                     bindColumnsForEdge(ps, dataEdgeKey, version, versions)
                 }
 
-                ps.executeBatch().sum().toLong()
+                rowCount(ps.executeBatch())
             }
         }
     }
 
-
+    /**
+     * Normalizes property values to the java types expected by the data table. Values are converted directly from the
+     * datatype of their property type by [normalizePropertyValue]. Only values that need parsing or validation, or of
+     * datatypes that are not converted directly, are normalized by [JsonDeserializer.validateFormatAndNormalize] from
+     * their [jsonValue], as they would be if read from a request.
+     */
     private fun normalize(entityKeyIds: Map<EntityKey, UUID>, entity: Entity): Pair<UUID, Map<UUID, Set<Any>>> {
         val sw = Stopwatch.createStarted()
-        val propertyValues = mapper.readValue<Map<UUID, Set<Any>>>(mapper.writeValueAsBytes(entity.details))
-        val validatedPropertyValues = JsonDeserializer.validateFormatAndNormalize(propertyValues, propertyTypes) {
-            "Error validating during integration"
+        val normalizedPropertyValues = mutableMapOf<UUID, MutableSet<Any>>()
+        val propertyValues = mutableMapOf<UUID, MutableSet<Any>>()
+
+        entity.details.forEach { (propertyTypeId, values) ->
+            val datatype = propertyTypes[propertyTypeId]?.datatype
+            values.forEach { value ->
+                val normalized = datatype?.let { normalizePropertyValue(it, value) }
+                if (normalized != null) {
+                    normalizedPropertyValues.getOrPut(propertyTypeId) { LinkedHashSet(values.size) }.add(normalized)
+                } else {
+                    propertyValues.getOrPut(propertyTypeId) { LinkedHashSet(values.size) }.add(jsonValue(value))
+                }
+            }
+        }
+
+        if (propertyValues.isNotEmpty()) {
+            JsonDeserializer.validateFormatAndNormalize(propertyValues, propertyTypes) {
+                "Error validating during integration"
+            }.forEach { (propertyTypeId, values) ->
+                normalizedPropertyValues.getOrPut(propertyTypeId) { LinkedHashSet(values.size) }.addAll(values)
+            }
         }
         logger.debug("Normalizing took {} ms", sw.elapsed(TimeUnit.MILLISECONDS))
-        return entityKeyIds.getValue(entity.key) to validatedPropertyValues
+        return entityKeyIds.getValue(entity.key) to normalizedPropertyValues
     }
 
     private fun upsertEntities(
@@ -248,6 +401,7 @@ class PostgresDestination(
             versionArray: java.sql.Array,
             version: Long,
             propertyUpdateType: PropertyUpdateType,
+            stats: WriteStats,
             entitySetId: UUID = entitySet.id
     ): Long {
 
@@ -260,34 +414,72 @@ class PostgresDestination(
 
         //Update property values. We use multiple prepared statements in batch while re-using ARRAY[version].
 
+        /*
+         * Values of property types whose datatype can be copied are staged for a set based upsert when the batch is
+         * large enough, all others are written with batched statements.
+         */
+        val propertyValueCount = entities.values.sumOf { entityData -> entityData.values.sumOf { it.size } }
+        val bulkLoad = useBulkLoad(propertyValueCount)
+        val staged = mutableMapOf<UUID, StagedPropertyValues>()
+        val partitions = entitySet.partitions.toList()
 
-        return entities.entries.sumOf { (entityKeyId, entityData) ->
-            entityData.map { (propertyTypeId, values) ->
-                val upsertPropertyValue = upsertPropertyValues.getOrPut(propertyTypeId) {
-                    val pt = propertyTypes[propertyTypeId] ?: abortInsert(entitySetId, entityKeyId)
-                    connection.prepareStatement(upsertPropertyValueSql(pt, propertyUpdateType))
-                }
-
-                values.map { value ->
-                    val dataType = propertyTypes.getValue(propertyTypeId).datatype
-
-                    val (propertyHash, insertValue) = getPropertyHash(
-                            value,
-                            dataType
-                    )
-
-                    upsertPropertyValue.setObject(1, entitySetId)
-                    upsertPropertyValue.setObject(2, entityKeyId)
-                    upsertPropertyValue.setObject(3, propertyTypeId)
-                    upsertPropertyValue.setObject(4, propertyHash)
-                    upsertPropertyValue.setObject(5, version)
-                    upsertPropertyValue.setArray(6, versionArray)
-                    upsertPropertyValue.setObject(7, insertValue)
-                    upsertPropertyValue.addBatch()
+        /*
+         * Rows are accumulated across entities and property types and only sent once enough rows or bytes are
+         * pending, so that each round trip carries a full batch.
+         */
+        val pendingBatches = PendingBatches(
+                parameters.postgresWrites.flushRows,
+                parameters.postgresWrites.flushBytes,
+                stats
+        )
+        entities.forEach { (entityKeyId, entityData) ->
+            entityData.forEach { (propertyTypeId, values) ->
+                val pt = propertyTypes[propertyTypeId] ?: abortInsert(entitySetId, entityKeyId)
+                val copyType = if (bulkLoad) CopyType.forDatatype(pt.datatype) else null
+                if (copyType != null) {
+                    val stagedValues = staged.getOrPut(propertyTypeId) {
+                        StagedPropertyValues(entitySetId, propertyTypeId, copyType)
+                    }
+                    val partition = getPartition(entityKeyId, partitions)
+                    values.forEach { value ->
+                        stagedValues.add(entityKeyId, partition, PostgresDataHasher.hashObject(value, pt.datatype), value)
+                    }
+                } else {
+                    val upsertPropertyValue = upsertPropertyValues.getOrPut(propertyTypeId) {
+                        connection.prepareStatement(upsertPropertyValueSql(pt, propertyUpdateType))
+                    }
+
+                    values.forEach { value ->
+                        val rowBytes = bindPropertyValue(
+                                upsertPropertyValue,
+                                entitySetId,
+                                entityKeyId,
+                                propertyTypeId,
+                                pt.datatype,
+                                value,
+                                version,
+                                versionArray
+                        )
+                        pendingBatches.added(upsertPropertyValue, rowBytes)
+                    }
                 }
             }
-            upsertPropertyValues.values.sumOf { it.executeBatch().sum().toLong() }
         }
+        return pendingBatches.flush() + staged.values.sumOf { stagedValues ->
+            upsertStaged(
+                    connection,
+                    stagedValues,
+                    propertyTypes.getValue(stagedValues.propertyTypeId),
+                    version,
+                    versionArray,
+                    propertyUpdateType,
+                    stats
+            )
+        }
+    }
+
+    private fun useBulkLoad(rowCount: Int): Boolean {
+        return parameters.postgresWrites.bulkLoad && rowCount >= parameters.postgresWrites.bulkLoadThreshold
     }
 
     private fun tombstone(
@@ -336,16 +528,232 @@ class PostgresDestination(
         return numUpdates
     }
 
-    private fun getPropertyHash(
-            value: Any,
-            dataType: EdmPrimitiveTypeKind
-    ): Pair<ByteArray, Any> {
-        return PostgresDataHasher.hashObject(value, dataType) to value
+}
+
+/**
+ * Sums the update counts of a batch. Batches rewritten into multi-row inserts by the driver do not report per row
+ * counts, so each of their rows is counted once.
+ */
+internal fun rowCount(updateCounts: IntArray): Long {
+    return updateCounts.sumOf { if (it == Statement.SUCCESS_NO_INFO) 1L else it.toLong() }
+}
+
+/**
+ * Binds a single property value to the upsert of [upsertPropertyValueSql] and adds it to the batch of the statement.
+ * Returns the estimated size of the row.
+ */
+internal fun bindPropertyValue(
+        upsertPropertyValue: PreparedStatement,
+        entitySetId: UUID,
+        entityKeyId: UUID,
+        propertyTypeId: UUID,
+        dataType: EdmPrimitiveTypeKind,
+        value: Any,
+        version: Long,
+        versionArray: java.sql.Array
+): Int {
+    val propertyHash = PostgresDataHasher.hashObject(value, dataType)
+
+    upsertPropertyValue.setObject(1, entitySetId)
+    upsertPropertyValue.setObject(2, entityKeyId)
+    upsertPropertyValue.setObject(3, propertyTypeId)
+    upsertPropertyValue.setObject(4, propertyHash)
+    upsertPropertyValue.setObject(5, version)
+    upsertPropertyValue.setArray(6, versionArray)
+    upsertPropertyValue.setObject(7, value)
+    upsertPropertyValue.addBatch()
+
+    return FIXED_PROPERTY_ROW_BYTES + propertyHash.size + when (value) {
+        is String -> value.length
+        is ByteArray -> value.size
+        else -> Long.SIZE_BYTES * 2
     }
 }
 
+/**
+ * Copies [staged] into a temporary staging table that lives as long as the pooled connection and upserts it into
+ * the data table with a single statement. Runs in the transaction of [connection], like the batched statements.
+ */
+internal fun upsertStaged(
+        connection: Connection,
+        staged: StagedPropertyValues,
+        propertyType: PropertyType,
+        version: Long,
+        versionArray: java.sql.Array,
+        propertyUpdateType: PropertyUpdateType,
+        stats: WriteStats
+): Long {
+    val stagingTable = "shuttle_staging_${staged.copyType.name.toLowerCase()}"
+    connection.createStatement().use { stmt ->
+        stmt.execute(createStagingTableSql(stagingTable, staged.copyType))
+        stats.recordRoundTrip(1)
+        stmt.execute("TRUNCATE $stagingTable")
+        stats.recordRoundTrip(1)
+    }
+
+    val copyIn = connection.unwrap(PGConnection::class.java)
+            .copyAPI
+            .copyIn("COPY $stagingTable FROM STDIN (FORMAT BINARY)")
+    PGCopyOutputStream(copyIn).use { staged.writeTo(it) }
+    stats.recordRoundTrip(1)
+
+    val upsert = upsertStagedPropertyValuesSql(stagingTable, propertyType, propertyUpdateType)
+    return connection.prepareStatement(upsert.sql).use { ps ->
+        upsert.boundColumns.forEachIndexed { index, column ->
+            when (column) {
+                VERSION.name -> ps.setLong(index + 1, version)
+                else -> ps.setArray(index + 1, versionArray)
+            }
+        }
+        val updated = ps.executeUpdate().toLong()
+        stats.recordRoundTrip(1)
+        updated
+    }
+}
+
+private fun createStagingTableSql(stagingTable: String, copyType: CopyType): String {
+    val columns = StagedPropertyValues.STAGING_COLUMNS.joinToString(",") { (name, type) -> "$name ${type.sql}" }
+    return "CREATE TEMPORARY TABLE IF NOT EXISTS $stagingTable ($columns,value ${copyType.sql})"
+}
+
+/**
+ * An upsert of staged property values, whose parameters bind the data table columns in [boundColumns], in order.
+ */
+internal class StagedUpsertSql(val sql: String, val boundColumns: List<String>)
+
+private val UPSERT_PROPERTY_VALUE_PATTERN = Regex(
+        """\s*INSERT INTO\s+(\S+)\s*\((.*?)\)\s*VALUES\s*\((.*)\)\s*(ON CONFLICT.*)""",
+        setOf(RegexOption.IGNORE_CASE, RegexOption.DOT_MATCHES_ALL)
+)
+
+/**
+ * Upserts the rows of [stagingTable] into the data table. Staged rows are unique per data table key, so no row is
+ * affected twice.
+ *
+ * The statement is derived from the single row upsert of [upsertPropertyValueSql], so that both write paths share its
+ * columns, its version and last write expressions and its conflict clause. Columns that are staged are selected from
+ * the staging table, and every other column keeps the expression it has in the single row upsert, which may only bind
+ * the write version or the array of write versions.
+ */
+internal fun upsertStagedPropertyValuesSql(
+        stagingTable: String,
+        propertyType: PropertyType,
+        propertyUpdateType: PropertyUpdateType
+): StagedUpsertSql {
+    val upsertSql = upsertPropertyValueSql(propertyType, propertyUpdateType)
+    val (table, columnList, valueList, conflictClause) = UPSERT_PROPERTY_VALUE_PATTERN.matchEntire(upsertSql)
+            ?.destructured
+            ?: throw IllegalStateException("Unable to stage values for property value upsert: $upsertSql")
+    val columns = splitTopLevel(columnList)
+    val values = splitTopLevel(valueList)
+    val valueColumn = PostgresDataTables.getColumnDefinition(propertyType.postgresIndexType, propertyType.datatype).name
+    val stagedColumns = StagedPropertyValues.STAGING_COLUMNS.map { it.first }
+    check(columns.size == values.size && columns.containsAll(stagedColumns + valueColumn) && '?' !in conflictClause) {
+        "Unable to stage values for property value upsert: $upsertSql"
+    }
+
+    val boundColumns = mutableListOf<String>()
+    val selected = columns.zip(values).map { (column, value) ->
+        when (column) {
+            valueColumn -> "value"
+            in stagedColumns -> column
+            else -> {
+                repeat(value.count { it == '?' }) { boundColumns.add(column) }
+                value
+            }
+        }
+    }
+    check(boundColumns.all { it == VERSION.name || it == VERSIONS.name }) {
+        "Unable to stage values for property value upsert binding $boundColumns: $upsertSql"
+    }
+
+    return StagedUpsertSql(
+            "INSERT INTO $table (${columns.joinToString(",")}) " +
+                    "SELECT ${selected.joinToString(",")} FROM $stagingTable $conflictClause",
+            boundColumns
+    )
+}
+
+/**
+ * Splits a comma separated sql list, ignoring commas within parentheses or quotes.
+ */
+private fun splitTopLevel(sql: String): List<String> {
+    val items = mutableListOf<String>()
+    var depth = 0
+    var quoted = false
+    var start = 0
+    sql.forEachIndexed { index, c ->
+        when {
+            c == '\'' -> quoted = !quoted
+            quoted -> {}
+            c == '(' -> depth++
+            c == ')' -> depth--
+            c == ',' && depth == 0 -> {
+                items.add(sql.substring(start, index).trim())
+                start = index + 1
+            }
+        }
+    }
+    items.add(sql.substring(start).trim())
+    return items
+}
+
+private const val FIXED_PROPERTY_ROW_BYTES = 3 * 16 + 2 * Long.SIZE_BYTES
+
 private fun abortInsert(entitySetId: UUID, entityKeyId: UUID): Nothing {
     throw InvalidParameterException(
             "Cannot insert property type not in authorized property types for entity $entityKeyId from entity set $entitySetId."
     )
 }
+
+/**
+ * Entities of a single entity set, keyed by entity key id in write order, that are written by one connection.
+ */
+private class EntitySetWrite(val entitySetId: UUID, val entities: Map<UUID, Map<UUID, Set<Any>>>)
+
+/**
+ * Rows and round trips sent to the database while integrating a single batch.
+ */
+internal class WriteStats {
+    val statements = AtomicLong()
+    val roundTrips = AtomicLong()
+
+    fun recordRoundTrip(statementCount: Int) {
+        statements.addAndGet(statementCount.toLong())
+        roundTrips.incrementAndGet()
+    }
+}
+
+/**
+ * Tracks rows added to the batches of several prepared statements and executes all pending batches once
+ * [flushRows] rows or [flushBytes] estimated bytes are pending.
+ */
+private class PendingBatches(private val flushRows: Int, private val flushBytes: Long, private val stats: WriteStats) {
+    private val pending = LinkedHashMap<PreparedStatement, Int>()
+    private var pendingRows = 0
+    private var pendingBytes = 0L
+    private var updated = 0L
+
+    fun added(ps: PreparedStatement, rowBytes: Int) {
+        pending.merge(ps, 1, Int::plus)
+        pendingRows++
+        pendingBytes += rowBytes
+        if (pendingRows >= flushRows || pendingBytes >= flushBytes) {
+            flush()
+        }
+    }
+
+    /**
+     * Executes all pending batches and returns the number of rows updated by this and all previous flushes.
+     */
+    fun flush(): Long {
+        pending.forEach { (ps, rows) ->
+            updated += rowCount(ps.executeBatch())
+            stats.recordRoundTrip(rows)
+        }
+        pending.clear()
+        pendingRows = 0
+        pendingBytes = 0
+        return updated
+    }
+}
@@ -33,8 +33,9 @@ import com.openlattice.data.integration.S3EntityData
 class PostgresS3Destination(
         private val postgresDestination: PostgresDestination,
         s3Api: S3Api,
-        generatePresignedUrlsFun: (List<S3EntityData>, PropertyUpdateType) -> List<String>
-) : BaseS3Destination(s3Api, generatePresignedUrlsFun) {
+        generatePresignedUrlsFun: (List<S3EntityData>, PropertyUpdateType) -> List<String>,
+        uploadExecutor: S3UploadExecutor
+) : BaseS3Destination(s3Api, generatePresignedUrlsFun, uploadExecutor) {
     override fun createAssociations(entities: Set<DataEdgeKey>): Long {
         return postgresDestination.createEdges(entities)
     }
@@ -0,0 +1,87 @@
+package com.openlattice.shuttle.destinations
+
+import com.openlattice.postgres.JsonDeserializer
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
+import java.time.Instant
+import java.time.LocalDate
+import java.time.LocalTime
+import java.time.OffsetDateTime
+import java.time.ZoneOffset
+import java.time.ZonedDateTime
+import java.time.temporal.TemporalAccessor
+import java.util.*
+
+/**
+ * Converts a property value produced by a transform to the java type that the data table stores for [datatype], the
+ * type [JsonDeserializer.validateFormatAndNormalize] produces for it. Returns null if the value cannot be converted
+ * without parsing or validation, in which case it has to be normalized from its [jsonValue].
+ */
+internal fun normalizePropertyValue(datatype: EdmPrimitiveTypeKind, value: Any): Any? {
+    return when (datatype) {
+        EdmPrimitiveTypeKind.String -> value as? String
+        EdmPrimitiveTypeKind.Guid -> when (value) {
+            is UUID -> value
+            is String -> try {
+                UUID.fromString(value)
+            } catch (ex: IllegalArgumentException) {
+                null
+            }
+            else -> null
+        }
+        EdmPrimitiveTypeKind.Boolean -> value as? Boolean
+        EdmPrimitiveTypeKind.Int64 -> when (value) {
+            is Long -> value
+            is Int -> value.toLong()
+            is Short -> value.toLong()
+            is Byte -> value.toLong()
+            else -> null
+        }
+        EdmPrimitiveTypeKind.Int32 -> when (value) {
+            is Int -> value
+            is Short -> value.toInt()
+            is Byte -> value.toInt()
+            is Long -> if (value in Int.MIN_VALUE..Int.MAX_VALUE) value.toInt() else null
+            else -> null
+        }
+        EdmPrimitiveTypeKind.Int16 -> when (value) {
+            is Short -> value
+            is Byte -> value.toShort()
+            is Int -> if (value in Short.MIN_VALUE..Short.MAX_VALUE) value.toShort() else null
+            is Long -> if (value in Short.MIN_VALUE..Short.MAX_VALUE) value.toShort() else null
+            else -> null
+        }
+        EdmPrimitiveTypeKind.Double -> when (value) {
+            is Double -> value
+            // widened through its decimal representation, as it would be when written as json.
+            is Float -> value.toString().toDouble()
+            is Long -> value.toDouble()
+            is Int -> value.toDouble()
+            is Short -> value.toDouble()
+            is Byte -> value.toDouble()
+            else -> null
+        }
+        EdmPrimitiveTypeKind.Date -> value as? LocalDate
+        EdmPrimitiveTypeKind.DateTimeOffset -> when (value) {
+            is OffsetDateTime -> value
+            is ZonedDateTime -> value.toOffsetDateTime()
+            is Instant -> value.atOffset(ZoneOffset.UTC)
+            else -> null
+        }
+        EdmPrimitiveTypeKind.TimeOfDay -> value as? LocalTime
+        else -> null
+    }
+}
+
+/**
+ * The value as it would be read back from its json representation, i.e. the input that
+ * [JsonDeserializer.validateFormatAndNormalize] expects.
+ */
+internal fun jsonValue(value: Any): Any {
+    return when (value) {
+        is String, is Boolean, is Number, is Collection<*>, is Map<*, *> -> value
+        is ByteArray -> Base64.getEncoder().encodeToString(value)
+        is UUID, is TemporalAccessor -> value.toString()
+        is Enum<*> -> value.name
+        else -> value.toString()
+    }
+}
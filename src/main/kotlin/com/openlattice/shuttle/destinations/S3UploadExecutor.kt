@@ -0,0 +1,145 @@
+package com.openlattice.shuttle.destinations
+
+import com.codahale.metrics.Gauge
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import com.openlattice.shuttle.S3UploadConfiguration
+import com.openlattice.shuttle.metrics.ShuttleMetrics
+import org.slf4j.LoggerFactory
+import java.net.URI
+import java.util.ArrayDeque
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Runs uploads of binary values to presigned urls on a dedicated pool of I/O threads, instead of on the common
+ * fork-join pool that CPU bound work in the JVM shares. At most [S3UploadConfiguration.maxConcurrentPerHost] uploads
+ * to the same host run at a time; further uploads to that host wait in a queue without holding a thread.
+ *
+ * Failed uploads are retried with exponential backoff and full jitter. Retries are scheduled on a timer instead of
+ * sleeping, so a backoff never parks an upload thread.
+ *
+ * Executors are shared by every destination and integration job with an equal configuration, see [shared].
+ */
+class S3UploadExecutor private constructor(private val configuration: S3UploadConfiguration) {
+    companion object {
+        private val logger = LoggerFactory.getLogger(S3UploadExecutor::class.java)
+        private val executors = ConcurrentHashMap<S3UploadConfiguration, S3UploadExecutor>()
+
+        private val inFlightBytes = AtomicLong()
+        private val queuedUploads = AtomicLong()
+        private val uploads = ShuttleMetrics.meter("s3-uploads")
+        private val retries = ShuttleMetrics.counter("s3-upload-retries")
+        private val failures = ShuttleMetrics.meter("s3-upload-failures")
+
+        init {
+            ShuttleMetrics.gauge("s3-upload-in-flight-bytes") { Gauge { inFlightBytes.get() } }
+            ShuttleMetrics.gauge("s3-upload-queued") { Gauge { queuedUploads.get() } }
+        }
+
+        @JvmStatic
+        fun shared(configuration: S3UploadConfiguration): S3UploadExecutor {
+            return executors.computeIfAbsent(configuration) { S3UploadExecutor(it) }
+        }
+    }
+
+    private val uploadPool = Executors.newFixedThreadPool(
+            configuration.threads,
+            ThreadFactoryBuilder().setNameFormat("s3-upload-%d").setDaemon(true).build()
+    )
+    private val retryTimer = Executors.newSingleThreadScheduledExecutor(
+            ThreadFactoryBuilder().setNameFormat("s3-upload-retry-%d").setDaemon(true).build()
+    )
+    private val hosts = ConcurrentHashMap<String, HostQueue>()
+
+    /**
+     * Uploads [size] bytes to [url] by calling [write] until it succeeds or runs out of retries. The returned future
+     * fails with the exception of the last attempt.
+     */
+    fun upload(url: String, size: Long, write: () -> Unit): CompletableFuture<Void?> {
+        val result = CompletableFuture<Void?>()
+        val host = hosts.computeIfAbsent(URI(url).host ?: "") { HostQueue() }
+        submit(host, Upload(size, write, result))
+        return result
+    }
+
+    private fun submit(host: HostQueue, upload: Upload) {
+        queuedUploads.incrementAndGet()
+        val runNow = synchronized(host) {
+            if (host.running < configuration.maxConcurrentPerHost) {
+                host.running++
+                true
+            } else {
+                host.pending.addLast(upload)
+                false
+            }
+        }
+        if (runNow) {
+            uploadPool.execute { run(host, upload) }
+        }
+    }
+
+    private fun run(host: HostQueue, upload: Upload) {
+        queuedUploads.decrementAndGet()
+        inFlightBytes.addAndGet(upload.size)
+        try {
+            upload.write()
+            uploads.mark()
+            upload.result.complete(null)
+        } catch (ex: Exception) {
+            if (upload.attempt >= configuration.maxRetries) {
+                failures.mark()
+                upload.result.completeExceptionally(ex)
+            } else {
+                retries.inc()
+                val delay = backoff(upload.attempt)
+                logger.debug("Retrying upload in {} ms after attempt {} failed.", delay, upload.attempt + 1)
+                retryTimer.schedule(Runnable { submit(host, upload.retry()) }, delay, TimeUnit.MILLISECONDS)
+            }
+        } catch (err: Throwable) {
+            upload.result.completeExceptionally(err)
+            throw err
+        } finally {
+            inFlightBytes.addAndGet(-upload.size)
+            next(host)?.let { uploadPool.execute { run(host, it) } }
+        }
+    }
+
+    /**
+     * Hands the slot of a finished upload to the next upload waiting on the same host, if any.
+     */
+    private fun next(host: HostQueue): Upload? {
+        return synchronized(host) {
+            val next = host.pending.pollFirst()
+            if (next == null) {
+                host.running--
+            }
+            next
+        }
+    }
+
+    private fun backoff(attempt: Int): Long {
+        val ceiling = Math.min(
+                configuration.maxRetryDelayMillis,
+                configuration.initialRetryDelayMillis shl Math.min(attempt, 30)
+        )
+        return ThreadLocalRandom.current().nextLong(ceiling + 1)
+    }
+
+    private class HostQueue {
+        var running = 0
+        val pending = ArrayDeque<Upload>()
+    }
+
+    private class Upload(
+            val size: Long,
+            val write: () -> Unit,
+            val result: CompletableFuture<Void?>,
+            val attempt: Int = 0
+    ) {
+        fun retry(): Upload = Upload(size, write, result, attempt + 1)
+    }
+}
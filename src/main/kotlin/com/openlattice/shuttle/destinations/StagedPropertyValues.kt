@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.shuttle.destinations
+
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
+import java.io.BufferedOutputStream
+import java.io.DataOutputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.time.LocalDate
+import java.time.LocalTime
+import java.time.OffsetDateTime
+import java.time.ZoneOffset
+import java.time.temporal.ChronoUnit
+import java.util.*
+
+private const val COPY_BUFFER_SIZE = 65536
+private val PG_EPOCH_DATE = LocalDate.of(2000, 1, 1)
+private val PG_EPOCH = PG_EPOCH_DATE.atStartOfDay().toInstant(ZoneOffset.UTC)
+internal val COPY_SIGNATURE = byteArrayOf(
+        'P'.toByte(), 'G'.toByte(), 'C'.toByte(), 'O'.toByte(), 'P'.toByte(), 'Y'.toByte(), '\n'.toByte(),
+        0xFF.toByte(), '\r'.toByte(), '\n'.toByte(), 0
+)
+
+/**
+ * Property values of a single property type of an entity set, collected for a binary `COPY` into a staging table with
+ * the columns in [STAGING_COLUMNS] and a value column of type [copyType].
+ *
+ * A value is staged at most once per entity, even if it is added several times, since a set based upsert fails when
+ * it affects the same row twice.
+ */
+internal class StagedPropertyValues(
+        val entitySetId: UUID,
+        val propertyTypeId: UUID,
+        val copyType: CopyType
+) {
+    companion object {
+        /**
+         * The staging table columns that precede the value column, in copy order.
+         */
+        val STAGING_COLUMNS = listOf(
+                "entity_set_id" to CopyType.UUID,
+                "id" to CopyType.UUID,
+                "partition" to CopyType.INT4,
+                "property_type_id" to CopyType.UUID,
+                "hash" to CopyType.BYTEA
+        )
+    }
+
+    private val rows = LinkedHashMap<StagedKey, StagedRow>()
+
+    val size: Int
+        get() = rows.size
+
+    /**
+     * Stages [value] of entity [entityKeyId], unless the same value of that entity is already staged. Returns whether
+     * the value was staged.
+     */
+    fun add(entityKeyId: UUID, partition: Int, hash: ByteArray, value: Any): Boolean {
+        return rows.putIfAbsent(StagedKey(entityKeyId, ByteBuffer.wrap(hash)), StagedRow(partition, hash, value)) == null
+    }
+
+    /**
+     * Writes all staged rows to [out] in the postgres binary copy format.
+     */
+    fun writeTo(out: OutputStream) {
+        val data = DataOutputStream(BufferedOutputStream(out, COPY_BUFFER_SIZE))
+        data.write(COPY_SIGNATURE)
+        data.writeInt(0) // flags
+        data.writeInt(0) // header extension length
+        rows.forEach { (key, row) ->
+            data.writeShort(STAGING_COLUMNS.size + 1)
+            CopyType.UUID.write(data, entitySetId)
+            CopyType.UUID.write(data, key.entityKeyId)
+            CopyType.INT4.write(data, row.partition)
+            CopyType.UUID.write(data, propertyTypeId)
+            CopyType.BYTEA.write(data, row.hash)
+            copyType.write(data, row.value)
+        }
+        data.writeShort(-1)
+        data.flush()
+    }
+
+    private data class StagedKey(val entityKeyId: UUID, val hash: ByteBuffer)
+
+    private class StagedRow(val partition: Int, val hash: ByteArray, val value: Any)
+}
+
+/**
+ * Postgres binary COPY encodings for the java types that property values of each datatype are normalized to.
+ */
+internal enum class CopyType(val sql: String) {
+    UUID("uuid") {
+        override fun write(out: DataOutputStream, value: Any) {
+            value as java.util.UUID
+            out.writeInt(16)
+            out.writeLong(value.mostSignificantBits)
+            out.writeLong(value.leastSignificantBits)
+        }
+    },
+    INT8("bigint") {
+        override fun write(out: DataOutputStream, value: Any) {
+            out.writeInt(8)
+            out.writeLong(value as Long)
+        }
+    },
+    INT4("integer") {
+        override fun write(out: DataOutputStream, value: Any) {
+            out.writeInt(4)
+            out.writeInt(value as Int)
+        }
+    },
+    INT2("smallint") {
+        override fun write(out: DataOutputStream, value: Any) {
+            out.writeInt(2)
+            out.writeShort((value as Short).toInt())
+        }
+    },
+    FLOAT8("double precision") {
+        override fun write(out: DataOutputStream, value: Any) {
+            out.writeInt(8)
+            out.writeDouble(value as Double)
+        }
+    },
+    BOOL("boolean") {
+        override fun write(out: DataOutputStream, value: Any) {
+            out.writeInt(1)
+            out.writeByte(if (value as Boolean) 1 else 0)
+        }
+    },
+    TEXT("text") {
+        override fun write(out: DataOutputStream, value: Any) {
+            val bytes = (value as String).toByteArray(StandardCharsets.UTF_8)
+            out.writeInt(bytes.size)
+            out.write(bytes)
+        }
+    },
+    BYTEA("bytea") {
+        override fun write(out: DataOutputStream, value: Any) {
+            value as ByteArray
+            out.writeInt(value.size)
+            out.write(value)
+        }
+    },
+    DATE("date") {
+        override fun write(out: DataOutputStream, value: Any) {
+            out.writeInt(4)
+            out.writeInt(ChronoUnit.DAYS.between(PG_EPOCH_DATE, value as LocalDate).toInt())
+        }
+    },
+    TIMESTAMPTZ("timestamptz") {
+        override fun write(out: DataOutputStream, value: Any) {
+            out.writeInt(8)
+            out.writeLong(ChronoUnit.MICROS.between(PG_EPOCH, (value as OffsetDateTime).toInstant()))
+        }
+    },
+    TIME("time") {
+        override fun write(out: DataOutputStream, value: Any) {
+            out.writeInt(8)
+            out.writeLong((value as LocalTime).toNanoOfDay() / 1_000)
+        }
+    };
+
+    abstract fun write(out: DataOutputStream, value: Any)
+
+    companion object {
+        /**
+         * The encoding of normalized values of [datatype], or null if values of [datatype] cannot be staged.
+         */
+        @JvmStatic
+        fun forDatatype(datatype: EdmPrimitiveTypeKind): CopyType? {
+            return when (datatype) {
+                EdmPrimitiveTypeKind.String -> TEXT
+                EdmPrimitiveTypeKind.Guid -> UUID
+                EdmPrimitiveTypeKind.Boolean -> BOOL
+                EdmPrimitiveTypeKind.Int64 -> INT8
+                EdmPrimitiveTypeKind.Int32 -> INT4
+                EdmPrimitiveTypeKind.Int16 -> INT2
+                EdmPrimitiveTypeKind.Double -> FLOAT8
+                EdmPrimitiveTypeKind.Date -> DATE
+                EdmPrimitiveTypeKind.DateTimeOffset -> TIMESTAMPTZ
+                EdmPrimitiveTypeKind.TimeOfDay -> TIME
+                else -> null
+            }
+        }
+    }
+}
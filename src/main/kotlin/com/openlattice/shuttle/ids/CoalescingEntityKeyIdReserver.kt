@@ -0,0 +1,171 @@
+package com.openlattice.shuttle.ids
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import com.openlattice.data.EntityKey
+import com.openlattice.shuttle.EntityKeyIdReservationConfiguration
+import org.slf4j.LoggerFactory
+import java.util.*
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Merges entity key id reservations from all threads, and on the shuttle server from all jobs, into larger calls to
+ * the id service.
+ *
+ * Keys requested by callers are queued and sent in batches of up to [EntityKeyIdReservationConfiguration.maxBatchSize]
+ * keys, collected for at most [EntityKeyIdReservationConfiguration.windowMillis] milliseconds, with at most
+ * [EntityKeyIdReservationConfiguration.concurrentCalls] calls in flight. A key that is already waiting on a call is
+ * not requested again, and every caller waiting on it receives the same id.
+ *
+ * Closing the reserver waits at most [EntityKeyIdReservationConfiguration.closeTimeoutMillis] milliseconds for calls in
+ * flight, and fails every reservation that has not completed by then.
+ */
+class CoalescingEntityKeyIdReserver(
+        private val reserveEntityKeyIds: (Set<EntityKey>) -> Iterable<UUID>,
+        configuration: EntityKeyIdReservationConfiguration
+) : AutoCloseable {
+    companion object {
+        private val logger = LoggerFactory.getLogger(CoalescingEntityKeyIdReserver::class.java)
+        private const val POLL_MILLIS = 100L
+    }
+
+    private val windowNanos = TimeUnit.MILLISECONDS.toNanos(configuration.windowMillis)
+    private val closeTimeoutMillis = configuration.closeTimeoutMillis
+    private val maxBatchSize = configuration.maxBatchSize
+    private val pending = LinkedBlockingQueue<EntityKey>()
+    private val inFlight = ConcurrentHashMap<EntityKey, CompletableFuture<UUID>>()
+    private val callPermits = Semaphore(configuration.concurrentCalls)
+    private val callExecutor = Executors.newFixedThreadPool(
+            configuration.concurrentCalls,
+            ThreadFactoryBuilder().setNameFormat("entity-key-id-reserver-%d").setDaemon(true).build()
+    )
+    private val calls = AtomicLong()
+    private val reservedKeys = AtomicLong()
+
+    @Volatile
+    private var running = true
+
+    @Volatile
+    private var terminated = false
+    private val dispatcher = Thread(::dispatch, "entity-key-id-dispatcher")
+
+    init {
+        dispatcher.isDaemon = true
+        dispatcher.start()
+    }
+
+    /**
+     * Returns the entity key ids of [entityKeys], blocking until every key has been reserved.
+     */
+    fun reserve(entityKeys: Set<EntityKey>): Map<EntityKey, UUID> {
+        check(running) { "Entity key id reserver has been closed." }
+        val futures = entityKeys.associateWith { entityKey ->
+            inFlight.computeIfAbsent(entityKey) {
+                pending.add(it)
+                CompletableFuture()
+            }
+        }
+        if (terminated) {
+            // closed while the keys were being queued, after close failed the reservations in flight.
+            failInFlight()
+        }
+
+        return try {
+            futures.mapValues { it.value.get() }
+        } catch (ex: ExecutionException) {
+            throw ex.cause ?: ex
+        }
+    }
+
+    /**
+     * Returns the average number of keys per call to the id service.
+     */
+    fun averageBatchSize(): Double {
+        val callCount = calls.get()
+        return if (callCount == 0L) 0.0 else reservedKeys.get().toDouble() / callCount
+    }
+
+    override fun close() {
+        running = false
+        val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(closeTimeoutMillis)
+        dispatcher.interrupt()
+        dispatcher.join(closeTimeoutMillis.coerceAtLeast(1))
+        callExecutor.shutdown()
+        val remainingNanos = (deadline - System.nanoTime()).coerceAtLeast(0)
+        if (!callExecutor.awaitTermination(remainingNanos, TimeUnit.NANOSECONDS)) {
+            logger.warn("Entity key id calls did not finish within {} ms of closing.", closeTimeoutMillis)
+            callExecutor.shutdownNow()
+        }
+        terminated = true
+        failInFlight()
+    }
+
+    private fun failInFlight() {
+        val closed = IllegalStateException("Entity key id reserver has been closed.")
+        inFlight.keys.toList().forEach { inFlight.remove(it)?.completeExceptionally(closed) }
+    }
+
+    private fun dispatch() {
+        try {
+            while (running) {
+                dispatchNextBatch()
+            }
+        } catch (ex: InterruptedException) {
+            // interrupted by close.
+        }
+    }
+
+    private fun dispatchNextBatch() {
+        callPermits.acquire()
+        val first = pending.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)
+        if (first == null) {
+            callPermits.release()
+            return
+        }
+
+        val batch = LinkedHashSet<EntityKey>()
+        batch.add(first)
+        val drained = mutableListOf<EntityKey>()
+        val deadline = System.nanoTime() + windowNanos
+        try {
+            while (batch.size < maxBatchSize) {
+                pending.drainTo(drained, maxBatchSize - batch.size)
+                batch.addAll(drained)
+                drained.clear()
+
+                val remainingNanos = deadline - System.nanoTime()
+                if (batch.size >= maxBatchSize || remainingNanos <= 0) {
+                    break
+                }
+                batch.add(pending.poll(remainingNanos, TimeUnit.NANOSECONDS) ?: break)
+            }
+            callExecutor.execute { call(batch) }
+        } catch (ex: Exception) {
+            // interrupted or rejected by close, before the batch was handed to a call.
+            batch.forEach { inFlight.remove(it)?.completeExceptionally(ex) }
+            callPermits.release()
+            if (ex is InterruptedException) {
+                throw ex
+            }
+        }
+    }
+
+    private fun call(batch: Set<EntityKey>) {
+        try {
+            val entityKeyIds = reserveEntityKeyIds(batch).toList()
+            check(entityKeyIds.size == batch.size) {
+                "Requested ${batch.size} entity key ids, but received ${entityKeyIds.size}."
+            }
+            calls.incrementAndGet()
+            reservedKeys.addAndGet(batch.size.toLong())
+            batch.zip(entityKeyIds).forEach { (entityKey, entityKeyId) ->
+                inFlight.remove(entityKey)?.complete(entityKeyId)
+            }
+            logger.debug("Reserved {} entity key ids in one call", batch.size)
+        } catch (ex: Exception) {
+            batch.forEach { inFlight.remove(it)?.completeExceptionally(ex) }
+        } finally {
+            callPermits.release()
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.openlattice.shuttle.ids
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.google.common.hash.Hashing
+import com.openlattice.data.EntityKey
+import com.openlattice.shuttle.EntityKeyIdCacheConfiguration
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.util.*
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Hit and miss counts of an [EntityKeyIdCache].
+ */
+data class EntityKeyIdCacheStats(val hits: Long, val misses: Long, val size: Long) {
+    val hitRate: Double
+        get() = if (hits + misses == 0L) 0.0 else hits.toDouble() / (hits + misses)
+}
+
+/**
+ * Remembers the entity key ids of entity keys that were already reserved, so that only keys that were not seen before
+ * have to be sent to the id service.
+ */
+interface EntityKeyIdCache {
+    companion object {
+        @JvmStatic
+        fun create(configuration: EntityKeyIdCacheConfiguration): EntityKeyIdCache {
+            return when {
+                !configuration.enabled -> NoOpEntityKeyIdCache
+                configuration.offHeap -> OffHeapEntityKeyIdCache(configuration.maximumSize)
+                else -> OnHeapEntityKeyIdCache(configuration.maximumSize)
+            }
+        }
+    }
+
+    /**
+     * Returns the cached entity key ids of [entityKeys]. Keys that are not cached are missing from the result.
+     */
+    fun getAll(entityKeys: Set<EntityKey>): Map<EntityKey, UUID>
+
+    fun putAll(entityKeyIds: Map<EntityKey, UUID>)
+
+    fun stats(): EntityKeyIdCacheStats
+}
+
+object NoOpEntityKeyIdCache : EntityKeyIdCache {
+    override fun getAll(entityKeys: Set<EntityKey>): Map<EntityKey, UUID> = mapOf()
+
+    override fun putAll(entityKeyIds: Map<EntityKey, UUID>) {}
+
+    override fun stats() = EntityKeyIdCacheStats(0, 0, 0)
+}
+
+/**
+ * Least recently used cache of at most [maximumSize] entity key ids on the heap.
+ */
+class OnHeapEntityKeyIdCache(maximumSize: Long) : EntityKeyIdCache {
+    private val cache: Cache<EntityKey, UUID> = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .recordStats()
+            .build()
+
+    override fun getAll(entityKeys: Set<EntityKey>): Map<EntityKey, UUID> = cache.getAllPresent(entityKeys)
+
+    override fun putAll(entityKeyIds: Map<EntityKey, UUID>) = cache.putAll(entityKeyIds)
+
+    override fun stats(): EntityKeyIdCacheStats {
+        val stats = cache.stats()
+        return EntityKeyIdCacheStats(stats.hitCount(), stats.missCount(), cache.size())
+    }
+}
+
+/**
+ * Cache of entity key ids in direct memory, so that tens of millions of ids can be cached without adding to heap and
+ * garbage collection pressure.
+ *
+ * Entity keys are stored as a 128 bit murmur3 fingerprint next to their entity key id in an open addressing table of
+ * [capacity] slots, split into independently locked segments. Slots are never removed, so a lookup stops at the
+ * first empty slot. When all slots within the probe distance of a key are taken, the slot the key hashes to is
+ * overwritten.
+ */
+class OffHeapEntityKeyIdCache(capacity: Long) : EntityKeyIdCache {
+    companion object {
+        private const val SLOT_BYTES = 32
+        private const val MAX_PROBES = 8
+        private const val MAX_SEGMENT_SLOTS = Int.MAX_VALUE / SLOT_BYTES
+        private val hashFunction = Hashing.murmur3_128()
+
+        private fun fingerprint(entityKey: EntityKey): LongArray {
+            val hash = hashFunction.newHasher()
+                    .putLong(entityKey.entitySetId.mostSignificantBits)
+                    .putLong(entityKey.entitySetId.leastSignificantBits)
+                    .putString(entityKey.entityId, StandardCharsets.UTF_8)
+                    .hash()
+                    .asBytes()
+            val buffer = ByteBuffer.wrap(hash)
+            return longArrayOf(buffer.long, buffer.long)
+        }
+    }
+
+    private val segmentCount = (capacity / MAX_SEGMENT_SLOTS + 1).coerceAtLeast(64).toInt()
+    private val segmentSlots = (capacity / segmentCount).coerceIn(MAX_PROBES.toLong(), MAX_SEGMENT_SLOTS.toLong()).toInt()
+    private val segments = Array(segmentCount) { ByteBuffer.allocateDirect(segmentSlots * SLOT_BYTES) }
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+    private val size = AtomicLong()
+
+    override fun getAll(entityKeys: Set<EntityKey>): Map<EntityKey, UUID> {
+        val entityKeyIds = mutableMapOf<EntityKey, UUID>()
+        entityKeys.forEach { entityKey ->
+            val id = get(fingerprint(entityKey))
+            if (id != null) {
+                entityKeyIds[entityKey] = id
+            }
+        }
+        hits.addAndGet(entityKeyIds.size.toLong())
+        misses.addAndGet((entityKeys.size - entityKeyIds.size).toLong())
+        return entityKeyIds
+    }
+
+    override fun putAll(entityKeyIds: Map<EntityKey, UUID>) {
+        entityKeyIds.forEach { (entityKey, id) -> put(fingerprint(entityKey), id) }
+    }
+
+    override fun stats() = EntityKeyIdCacheStats(hits.get(), misses.get(), size.get())
+
+    private fun get(fingerprint: LongArray): UUID? {
+        val segment = segmentOf(fingerprint)
+        synchronized(segment) {
+            var slot = homeSlot(fingerprint)
+            repeat(MAX_PROBES) {
+                val offset = slot * SLOT_BYTES
+                val hi = segment.getLong(offset)
+                val lo = segment.getLong(offset + 8)
+                when {
+                    hi == 0L && lo == 0L -> return null
+                    hi == fingerprint[0] && lo == fingerprint[1] -> {
+                        return UUID(segment.getLong(offset + 16), segment.getLong(offset + 24))
+                    }
+                }
+                slot = (slot + 1) % segmentSlots
+            }
+        }
+        return null
+    }
+
+    private fun put(fingerprint: LongArray, id: UUID) {
+        val segment = segmentOf(fingerprint)
+        synchronized(segment) {
+            val home = homeSlot(fingerprint)
+            var slot = home
+            var target = home
+            for (probe in 0 until MAX_PROBES) {
+                val offset = slot * SLOT_BYTES
+                val hi = segment.getLong(offset)
+                val lo = segment.getLong(offset + 8)
+                if (hi == 0L && lo == 0L) {
+                    size.incrementAndGet()
+                    target = slot
+                    break
+                } else if (hi == fingerprint[0] && lo == fingerprint[1]) {
+                    target = slot
+                    break
+                }
+                slot = (slot + 1) % segmentSlots
+            }
+
+            val offset = target * SLOT_BYTES
+            segment.putLong(offset, fingerprint[0])
+            segment.putLong(offset + 8, fingerprint[1])
+            segment.putLong(offset + 16, id.mostSignificantBits)
+            segment.putLong(offset + 24, id.leastSignificantBits)
+        }
+    }
+
+    private fun segmentOf(fingerprint: LongArray): ByteBuffer {
+        return segments[Math.floorMod(fingerprint[0], segmentCount)]
+    }
+
+    private fun homeSlot(fingerprint: LongArray): Int {
+        return Math.floorMod(fingerprint[1], segmentSlots)
+    }
+}
@@ -0,0 +1,47 @@
+package com.openlattice.shuttle.ids
+
+import com.google.common.hash.Hasher
+import com.google.common.hash.Hashing
+import com.google.common.io.BaseEncoding
+import java.util.*
+
+/**
+ * Default entity ids that are a 128 bit murmur3 hash of the key property values, encoded as 22 url-safe base64
+ * characters. Values are streamed into the hash, so that no intermediate string is built for string and binary values,
+ * and every id takes the same space in entity keys regardless of how long its key values are.
+ *
+ * Values are length prefixed, so that moving characters between adjacent key values changes the id. The values of a
+ * single property are a set, so their order does not change the id.
+ */
+object HashedEntityIds {
+    private val hashFunction = Hashing.murmur3_128()
+    private val encoding = BaseEncoding.base64Url().omitPadding()
+
+    /**
+     * @param key The ordered primary key property type ids of the entity set.
+     */
+    @JvmStatic
+    fun generate(key: Set<UUID>, properties: Map<UUID, Set<Any>>): String {
+        val hasher = hashFunction.newHasher()
+        key.forEach { propertyTypeId ->
+            val values = properties[propertyTypeId] ?: setOf()
+            hasher.putInt(values.size)
+            when (values.size) {
+                0 -> Unit
+                1 -> putValue(hasher, values.first())
+                else -> hasher.putBytes(
+                        Hashing.combineUnordered(values.map { putValue(hashFunction.newHasher(), it).hash() }).asBytes()
+                )
+            }
+        }
+        return encoding.encode(hasher.hash().asBytes())
+    }
+
+    private fun putValue(hasher: Hasher, value: Any): Hasher {
+        return when (value) {
+            is String -> hasher.putInt(value.length).putString(value, Charsets.UTF_8)
+            is ByteArray -> hasher.putInt(value.size).putBytes(value)
+            else -> putValue(hasher, value.toString())
+        }
+    }
+}
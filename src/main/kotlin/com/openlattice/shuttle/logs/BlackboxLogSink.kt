@@ -0,0 +1,139 @@
+package com.openlattice.shuttle.logs
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import com.hazelcast.map.IMap
+import com.openlattice.data.EntityKey
+import com.openlattice.data.EntityKeyIdService
+import com.openlattice.data.PropertyUpdateType
+import com.openlattice.data.UpdateType
+import com.openlattice.data.integration.Entity
+import com.openlattice.edm.EntitySet
+import com.openlattice.hazelcast.processors.shuttle.UpdateIntegrationStatusEntryProcessor
+import com.openlattice.shuttle.IntegrationJob
+import com.openlattice.shuttle.IntegrationStatus
+import com.openlattice.shuttle.destinations.IntegrationDestination
+import org.slf4j.LoggerFactory
+import java.time.OffsetDateTime
+import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+const val DEFAULT_MAX_BUFFERED_LOGS = 256
+const val DEFAULT_LOG_FLUSH_INTERVAL_MILLIS = 5_000L
+
+/**
+ * Buffers the logs of a single integration job and writes them to the job's log entity set in the background, either
+ * every [flushIntervalMillis] or as soon as [maxBufferedLogs] log entries are waiting. Status updates are only sent to
+ * the integration jobs map when the status of the job actually changes.
+ *
+ * Failures are written synchronously, since a failed job usually exits the process before the next flush.
+ */
+class BlackboxLogSink(
+        private val jobId: UUID,
+        private val logEntitySet: EntitySet,
+        private val ptidsByBlackboxProperty: Map<BlackboxProperty, UUID>,
+        private val logsDestination: IntegrationDestination,
+        private val idService: EntityKeyIdService,
+        private val integrationJobs: IMap<UUID, IntegrationJob>,
+        private val maxBufferedLogs: Int = DEFAULT_MAX_BUFFERED_LOGS,
+        flushIntervalMillis: Long = DEFAULT_LOG_FLUSH_INTERVAL_MILLIS
+) : AutoCloseable {
+    companion object {
+        private val logger = LoggerFactory.getLogger(BlackboxLogSink::class.java)
+    }
+
+    private val buffer = ConcurrentLinkedQueue<LogEntry>()
+    private val buffered = AtomicInteger()
+    private val sequence = AtomicLong()
+    private var lastStatus: IntegrationStatus? = null
+    private val statusLock = Any()
+    private val flusher = Executors.newSingleThreadScheduledExecutor(
+            ThreadFactoryBuilder().setNameFormat("blackbox-$jobId").setDaemon(true).build()
+    )
+
+    init {
+        flusher.scheduleWithFixedDelay(::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS)
+    }
+
+    fun log(flightName: String, log: Set<String>, status: IntegrationStatus) {
+        buffer.add(LogEntry(flightName, log, status, OffsetDateTime.now(), sequence.incrementAndGet()))
+
+        /*
+         * Status updates are sent under the same lock that tracks the last status, so that concurrent updates reach
+         * the integration jobs map in the order they were tracked.
+         */
+        synchronized(statusLock) {
+            if (lastStatus != status) {
+                lastStatus = status
+                integrationJobs.executeOnKey(jobId, UpdateIntegrationStatusEntryProcessor(status))
+            }
+        }
+
+        val pending = buffered.incrementAndGet()
+        if (status == IntegrationStatus.FAILED) {
+            flush()
+        } else if (pending >= maxBufferedLogs && !flusher.isShutdown) {
+            flusher.execute(::flush)
+        }
+    }
+
+    @Synchronized
+    fun flush() {
+        val entries = mutableListOf<LogEntry>()
+        while (true) {
+            entries.add(buffer.poll() ?: break)
+        }
+
+        if (entries.isEmpty()) {
+            return
+        }
+        buffered.addAndGet(-entries.size)
+
+        try {
+            val logEntitySetId = logEntitySet.id
+            val entities = entries.map { entry ->
+                val entityId = logEntitySetId.toString() + entry.flightName + jobId + entry.timestamp + entry.sequence
+                Entity(EntityKey(logEntitySetId, entityId), generateLogPropertyData(entry))
+            }
+            val entityKeys = entities.mapTo(LinkedHashSet(entities.size)) { it.key }
+            val entityKeyIds = entityKeys.zip(idService.reserveEntityKeyIds(entityKeys)).toMap()
+
+            logsDestination.integrateEntities(
+                    entities,
+                    entityKeyIds,
+                    mapOf(logEntitySetId to UpdateType.Merge),
+                    mapOf(logEntitySetId to PropertyUpdateType.Unversioned)
+            )
+        } catch (ex: Exception) {
+            logger.error("Unable to store {} log entries for integration job {}", entries.size, jobId, ex)
+        }
+    }
+
+    override fun close() {
+        flusher.shutdown()
+        flusher.awaitTermination(1, TimeUnit.MINUTES)
+        flush()
+        logsDestination.close()
+    }
+
+    private fun generateLogPropertyData(entry: LogEntry): Map<UUID, Set<Any>> {
+        val logPropertyData = mutableMapOf<UUID, Set<Any>>()
+        logPropertyData[ptidsByBlackboxProperty.getValue(BlackboxProperty.JOB_ID)] = setOf(jobId)
+        logPropertyData[ptidsByBlackboxProperty.getValue(BlackboxProperty.NAME)] = setOf(entry.flightName)
+        logPropertyData[ptidsByBlackboxProperty.getValue(BlackboxProperty.LOG)] = entry.log
+        logPropertyData[ptidsByBlackboxProperty.getValue(BlackboxProperty.TIME_LOGGED)] = setOf(entry.timestamp)
+        logPropertyData[ptidsByBlackboxProperty.getValue(BlackboxProperty.STATUS)] = setOf(entry.status)
+        return logPropertyData
+    }
+
+    private data class LogEntry(
+            val flightName: String,
+            val log: Set<String>,
+            val status: IntegrationStatus,
+            val timestamp: OffsetDateTime,
+            val sequence: Long
+    )
+}
@@ -0,0 +1,86 @@
+package com.openlattice.shuttle.metrics
+
+import com.codahale.metrics.Counter
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.Histogram
+import com.codahale.metrics.Meter
+import com.codahale.metrics.Metric
+import com.codahale.metrics.Snapshot
+import com.codahale.metrics.Timer
+import java.util.concurrent.TimeUnit
+
+/**
+ * Renders tagged metrics in the Prometheus text exposition format, version 0.0.4. Tags become labels, counters and
+ * meters become counters, timers become summaries in seconds, histograms become summaries, and numeric gauges
+ * become gauges.
+ */
+object PrometheusTextFormat {
+    const val CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8"
+
+    private const val PREFIX = "shuttle_"
+    private val quantiles = listOf("0.5", "0.75", "0.95", "0.99")
+    private val nanosPerSecond = TimeUnit.SECONDS.toNanos(1).toDouble()
+
+    @JvmStatic
+    fun render(metrics: List<Pair<TaggedName, Metric>>): String {
+        val out = StringBuilder()
+        metrics.groupBy { it.first.name }.forEach { (name, family) ->
+            val first = family.first().second
+            val type = when (first) {
+                is Counter, is Meter -> "counter"
+                is Timer, is Histogram -> "summary"
+                is Gauge<*> -> "gauge"
+                else -> return@forEach
+            }
+            val familyName = familyName(name, first)
+            out.append("# TYPE ").append(familyName).append(' ').append(type).append('\n')
+            family.forEach { (taggedName, metric) -> render(out, familyName, taggedName.tags, metric) }
+        }
+        return out.toString()
+    }
+
+    private fun familyName(name: String, metric: Metric): String {
+        val base = PREFIX + name.replace(Regex("[^a-zA-Z0-9_]"), "_")
+        return when (metric) {
+            is Counter, is Meter -> base + "_total"
+            is Timer -> base + "_seconds"
+            else -> base
+        }
+    }
+
+    private fun render(out: StringBuilder, familyName: String, tags: List<Pair<String, String>>, metric: Metric) {
+        when (metric) {
+            is Counter -> sample(out, familyName, tags, metric.count.toDouble())
+            is Meter -> sample(out, familyName, tags, metric.count.toDouble())
+            is Timer -> summary(out, familyName, tags, metric.snapshot, metric.count, nanosPerSecond)
+            is Histogram -> summary(out, familyName, tags, metric.snapshot, metric.count, 1.0)
+            is Gauge<*> -> (metric.value as? Number)?.let { sample(out, familyName, tags, it.toDouble()) }
+        }
+    }
+
+    private fun summary(
+        out: StringBuilder,
+        familyName: String,
+        tags: List<Pair<String, String>>,
+        snapshot: Snapshot,
+        count: Long,
+        scale: Double
+    ) {
+        quantiles.forEach { quantile ->
+            sample(out, familyName, tags + ("quantile" to quantile), snapshot.getValue(quantile.toDouble()) / scale)
+        }
+        sample(out, familyName + "_count", tags, count.toDouble())
+    }
+
+    private fun sample(out: StringBuilder, name: String, tags: List<Pair<String, String>>, value: Double) {
+        out.append(name)
+        if (tags.isNotEmpty()) {
+            tags.joinTo(out, ",", "{", "}") { (key, tagValue) -> "$key=\"${escape(tagValue)}\"" }
+        }
+        out.append(' ').append(value).append('\n')
+    }
+
+    private fun escape(value: String): String {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")
+    }
+}
@@ -0,0 +1,237 @@
+package com.openlattice.shuttle.metrics
+
+import com.codahale.metrics.Counter
+import com.codahale.metrics.ExponentiallyDecayingReservoir
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.Histogram
+import com.codahale.metrics.Meter
+import com.codahale.metrics.Metric
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.Slf4jReporter
+import com.codahale.metrics.Timer
+import com.openlattice.shuttle.CompiledFlight
+import com.openlattice.shuttle.destinations.StorageDestination
+import com.openlattice.shuttle.util.MemoryBudget
+import org.slf4j.LoggerFactory
+import java.io.Closeable
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import javax.management.ObjectName
+
+const val FLIGHT_TAG = "flight"
+const val ENTITY_SET_TAG = "entity_set"
+const val DESTINATION_TAG = "destination"
+const val STAGE_TAG = "stage"
+const val POOL_TAG = "pool"
+
+/**
+ * The name of a metric and the tags that tell apart its instances, such as the flight or destination it measures.
+ */
+data class TaggedName(val name: String, val tags: List<Pair<String, String>>) {
+    /**
+     * The name the metric is registered under, for example `transform{flight=cases}`.
+     */
+    val registryName: String = if (tags.isEmpty()) {
+        name
+    } else {
+        tags.joinToString(",", "$name{", "}") { (key, value) -> "$key=$value" }
+    }
+}
+
+/**
+ * Metrics of every integration run in this JVM. Metrics are logged every minute, and are exposed over JMX as [JMX_NAME]
+ * and, on the shuttle server, in the Prometheus text format. Metrics of a flight are removed once it has finished, see
+ * [release], while metrics across flights are kept for the lifetime of the JVM.
+ */
+object ShuttleMetrics {
+    const val JMX_NAME = "com.openlattice.shuttle:type=ShuttleMetrics"
+
+    private val logger = LoggerFactory.getLogger(ShuttleMetrics::class.java)
+    private val names = ConcurrentHashMap<String, TaggedName>()
+    private val retainedTags = ConcurrentHashMap<Pair<String, String>, Int>()
+
+    @JvmStatic
+    val registry = MetricRegistry()
+
+    /**
+     * Entities that have been reserved an id and written, across all flights.
+     */
+    @JvmStatic
+    val uploads: Meter = meter("uploads")
+
+    /**
+     * Batches that have been transformed, across all flights.
+     */
+    @JvmStatic
+    val transforms: Meter = meter("transforms")
+
+    private val reporter = Slf4jReporter.forRegistry(registry)
+        .outputTo(logger)
+        .convertRatesTo(TimeUnit.SECONDS)
+        .convertDurationsTo(TimeUnit.MILLISECONDS)
+        .build()
+
+    init {
+        register("in-flight-bytes", listOf()) { Gauge { MemoryBudget.totalInFlightBytes() } }
+        reporter.start(1, TimeUnit.MINUTES)
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(ShuttleMetricsView(), ObjectName(JMX_NAME))
+        } catch (ex: Exception) {
+            logger.warn("Unable to register shuttle metrics with JMX.", ex)
+        }
+    }
+
+    @JvmStatic
+    fun meter(name: String, vararg tags: Pair<String, String>): Meter {
+        return register(name, tags.toList()) { Meter() }
+    }
+
+    @JvmStatic
+    fun counter(name: String, vararg tags: Pair<String, String>): Counter {
+        return register(name, tags.toList()) { Counter() }
+    }
+
+    @JvmStatic
+    fun timer(name: String, vararg tags: Pair<String, String>): Timer {
+        return register(name, tags.toList()) { Timer() }
+    }
+
+    @JvmStatic
+    fun histogram(name: String, vararg tags: Pair<String, String>): Histogram {
+        return register(name, tags.toList()) { Histogram(ExponentiallyDecayingReservoir()) }
+    }
+
+    @JvmStatic
+    fun <T> gauge(name: String, vararg tags: Pair<String, String>, create: () -> Gauge<T>): Gauge<T> {
+        return register(name, tags.toList(), create)
+    }
+
+    /**
+     * Keeps the metrics tagged with [tag] registered until [release] has been called as often as [retain].
+     */
+    @JvmStatic
+    fun retain(tag: Pair<String, String>) {
+        retainedTags.merge(tag, 1, Int::plus)
+    }
+
+    /**
+     * Removes the metrics tagged with [tag] once they are no longer retained, so that the registry does not grow with
+     * every flight and entity set integrated by a long running shuttle server.
+     */
+    @JvmStatic
+    fun release(tag: Pair<String, String>) {
+        retainedTags.computeIfPresent(tag) { _, retained ->
+            if (retained > 1) {
+                retained - 1
+            } else {
+                names.values.filter { tag in it.tags }.forEach {
+                    registry.remove(it.registryName)
+                    names.remove(it.registryName)
+                }
+                null
+            }
+        }
+    }
+
+    /**
+     * Metrics in the registry along with their tagged names, sorted by name.
+     */
+    @JvmStatic
+    fun taggedMetrics(): List<Pair<TaggedName, Metric>> {
+        return registry.metrics.mapNotNull { (registryName, metric) -> names[registryName]?.let { it to metric } }
+            .sortedBy { it.first.registryName }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun <T : Metric> register(name: String, tags: List<Pair<String, String>>, create: () -> T): T {
+        val taggedName = TaggedName(name, tags)
+        names.putIfAbsent(taggedName.registryName, taggedName)
+        registry.metrics[taggedName.registryName]?.let { return it as T }
+        return try {
+            registry.register(taggedName.registryName, create())
+        } catch (ex: IllegalArgumentException) {
+            // another thread registered the metric first.
+            registry.metrics.getValue(taggedName.registryName) as T
+        }
+    }
+}
+
+/**
+ * The metrics of a single flight, with per entity set metrics in the order of the definitions of [compiledFlight].
+ *
+ * The metrics stay registered until every [FlightMetrics] of the flight has been closed.
+ */
+class FlightMetrics(compiledFlight: CompiledFlight) : Closeable {
+    private val flight = (FLIGHT_TAG to compiledFlight.flight.name).also { ShuttleMetrics.retain(it) }
+    private val closed = AtomicBoolean(false)
+
+    val rowsRead: Meter = ShuttleMetrics.meter("rows-read", flight)
+    val rowsDropped: Meter = ShuttleMetrics.meter("rows-dropped", flight)
+    val batchRows: Histogram = ShuttleMetrics.histogram("batch-rows", flight)
+    val transformTime: Timer = ShuttleMetrics.timer("transform", flight)
+    val entityKeyIdTime: Timer = ShuttleMetrics.timer("entity-key-ids", flight)
+    val batchTime: Timer = ShuttleMetrics.timer("batch", flight)
+
+    /**
+     * Entities not created because the condition of their definition did not hold, by entity definition.
+     */
+    val entitiesDropped: Array<Meter> = compiledFlight.entities
+        .map { ShuttleMetrics.meter("entities-dropped", flight, ENTITY_SET_TAG to it.definition.entitySetName) }
+        .toTypedArray()
+
+    /**
+     * Associations not created because the condition of their definition did not hold, by association definition.
+     */
+    val associationsDropped: Array<Meter> = compiledFlight.associations
+        .map { ShuttleMetrics.meter("associations-dropped", flight, ENTITY_SET_TAG to it.definition.entitySetName) }
+        .toTypedArray()
+
+    fun entityWriteTime(destination: StorageDestination): Timer {
+        return ShuttleMetrics.timer("entity-writes", flight, DESTINATION_TAG to destination.name)
+    }
+
+    fun associationWriteTime(destination: StorageDestination): Timer {
+        return ShuttleMetrics.timer("association-writes", flight, DESTINATION_TAG to destination.name)
+    }
+
+    fun entitiesWritten(destination: StorageDestination, entitySetName: String): Meter {
+        return ShuttleMetrics.meter(
+            "entities-written", flight, ENTITY_SET_TAG to entitySetName, DESTINATION_TAG to destination.name
+        )
+    }
+
+    fun associationsWritten(destination: StorageDestination, entitySetName: String): Meter {
+        return ShuttleMetrics.meter(
+            "associations-written", flight, ENTITY_SET_TAG to entitySetName, DESTINATION_TAG to destination.name
+        )
+    }
+
+    /**
+     * Attempts of [stage] that failed and were retried.
+     */
+    fun retries(stage: String): Counter = ShuttleMetrics.counter("retries", flight, STAGE_TAG to stage)
+
+    /**
+     * Rows, entities or associations that failed at [stage] on their own and were quarantined.
+     */
+    fun quarantined(stage: String): Meter = ShuttleMetrics.meter("quarantined", flight, STAGE_TAG to stage)
+
+    /**
+     * Latency of each pipeline stage for [destinations], and of whole batches, in pipeline order.
+     */
+    fun stageLatencies(destinations: Collection<StorageDestination>): Map<String, Timer> {
+        val latencies = linkedMapOf("transform" to transformTime, "entity-key-ids" to entityKeyIdTime)
+        destinations.forEach { latencies["entity-writes-${it.name.toLowerCase()}"] = entityWriteTime(it) }
+        destinations.forEach { latencies["association-writes-${it.name.toLowerCase()}"] = associationWriteTime(it) }
+        latencies["batch"] = batchTime
+        return latencies
+    }
+
+    override fun close() {
+        if (closed.compareAndSet(false, true)) {
+            ShuttleMetrics.release(flight)
+        }
+    }
+}
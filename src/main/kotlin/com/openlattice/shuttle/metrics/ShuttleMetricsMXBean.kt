@@ -0,0 +1,46 @@
+package com.openlattice.shuttle.metrics
+
+import com.codahale.metrics.Counting
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.Metered
+import com.codahale.metrics.Sampling
+import java.util.concurrent.TimeUnit
+
+/**
+ * Flattened view of [ShuttleMetrics] for JMX clients such as jconsole or a JMX exporter attached to the CLI.
+ */
+interface ShuttleMetricsMXBean {
+    /**
+     * Current values keyed by registry name and statistic, for example `transform{flight=cases}.p99_ms`.
+     */
+    val metrics: Map<String, Double>
+}
+
+class ShuttleMetricsView : ShuttleMetricsMXBean {
+    override val metrics: Map<String, Double>
+        get() {
+            val values = sortedMapOf<String, Double>()
+            ShuttleMetrics.taggedMetrics().forEach { (taggedName, metric) ->
+                val name = taggedName.registryName
+                if (metric is Counting) {
+                    values["$name.count"] = metric.count.toDouble()
+                }
+                if (metric is Metered) {
+                    values["$name.m1_rate"] = metric.oneMinuteRate
+                }
+                if (metric is Sampling) {
+                    // timers sample nanoseconds, histograms sample plain values.
+                    val scale = if (metric is Metered) TimeUnit.MILLISECONDS.toNanos(1).toDouble() else 1.0
+                    val suffix = if (metric is Metered) "_ms" else ""
+                    val snapshot = metric.snapshot
+                    values["$name.p50$suffix"] = snapshot.median / scale
+                    values["$name.p99$suffix"] = snapshot.get99thPercentile() / scale
+                    values["$name.max$suffix"] = snapshot.max / scale
+                }
+                if (metric is Gauge<*>) {
+                    (metric.value as? Number)?.let { values[name] = it.toDouble() }
+                }
+            }
+            return values
+        }
+}
@@ -1,5 +1,6 @@
 package com.openlattice.shuttle.payload
 
+import com.fasterxml.jackson.dataformat.csv.CsvParser
 import com.openlattice.shuttle.util.CsvUtil
 import org.slf4j.LoggerFactory
 import java.io.File
@@ -12,14 +13,36 @@ private val logger = LoggerFactory.getLogger(CsvPayload::class.java)
  * @author Matthew Tamayo-Rios &lt;matthew@openlattice.com&gt;
  */
 open class CsvPayload(val path: String) : Payload {
+    /**
+     * Rows are read in file order.
+     */
+    override fun isStablyOrdered(): Boolean = true
+
     override fun getPayload(): Iterable<Map<String, Any?>> {
         try {
             return object : Iterable<Map<String, Any?>> {
                 override fun iterator(): Iterator<Map<String, Any?>> {
-                    return CsvUtil.newDefaultMapper()
-                            .readerFor(Map::class.java)
-                            .with(CsvUtil.newDefaultSchemaFromHeader())
-                            .readValues<Map<String, Any?>>(File(path))
+                    val lines = CsvUtil.newDefaultMapper()
+                            .readerFor(Array<String?>::class.java)
+                            .with(CsvParser.Feature.WRAP_AS_ARRAY)
+                            .readValues<Array<String?>>(File(path))
+                    if (!lines.hasNext()) {
+                        return emptyList<Map<String, Any?>>().iterator()
+                    }
+
+                    val schema = RowSchema(headerColumns(lines.next()))
+                    val duplicates = schema.columns.indices
+                            .groupBy { schema.columns[it] }
+                            .values
+                            .filter { it.size > 1 }
+                    return lines.asSequence().map<Array<String?>, Map<String, Any?>> { values ->
+                        val trailingComma = values.size == schema.size + 1 && values.last().isNullOrEmpty()
+                        check(values.size <= schema.size || trailingComma) {
+                            "Too many entries: expected at most ${schema.size} columns, found ${values.size} in $path"
+                        }
+                        duplicates.forEach { indices -> keepLastDuplicate(values, indices) }
+                        IndexedRow(schema, values)
+                    }.iterator()
                 }
             }
         } catch (e: IOException) {
@@ -27,4 +50,21 @@ open class CsvPayload(val path: String) : Payload {
             return listOf()
         }
     }
+}
+
+/**
+ * Column names read from the header line the way a jackson header schema reads them: names are trimmed, and a trailing
+ * empty name left by a trailing comma is dropped.
+ */
+private fun headerColumns(header: Array<String?>): List<String> {
+    val columns = header.map { it.orEmpty().trim() }
+    return if (columns.lastOrNull()?.isEmpty() == true) columns.dropLast(1) else columns
+}
+
+/**
+ * A jackson header schema reads a row into a map, so when several columns share a name the last of them present in
+ * the row wins. Rows read the first column of each name, which is given that value.
+ */
+private fun keepLastDuplicate(values: Array<String?>, indices: List<Int>) {
+    indices.lastOrNull { it < values.size }?.let { values[indices.first()] = values[it] }
 }
\ No newline at end of file
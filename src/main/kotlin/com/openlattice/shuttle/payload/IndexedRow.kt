@@ -0,0 +1,67 @@
+package com.openlattice.shuttle.payload
+
+import java.util.AbstractMap.SimpleImmutableEntry
+
+/**
+ * Column names of the rows read from a payload, shared by all of its rows. When a name is used by several columns,
+ * the first of them is used, as with [java.sql.ResultSet.getObject].
+ */
+class RowSchema(val columns: List<String>) {
+    private val indices = HashMap<String, Int>(columns.size * 2)
+
+    /**
+     * Indices of the first column with each name, in column order.
+     */
+    val distinctIndices: IntArray
+
+    init {
+        columns.forEachIndexed { index, column -> indices.putIfAbsent(column, index) }
+        distinctIndices = columns.indices.filter { indices[columns[it]] == it }.toIntArray()
+    }
+
+    val size: Int
+        get() = columns.size
+
+    /**
+     * Returns the index of [column], or -1 if there is no such column.
+     */
+    fun indexOf(column: String): Int = indices[column] ?: -1
+}
+
+/**
+ * A payload row stored as an array of values addressed by the index of their column in a shared [RowSchema]. Rows can
+ * be read by column index, or through the read-only [Map] view that transformations and conditions expect.
+ *
+ * A row may have fewer values than its schema has columns, for example a short line in a csv file. The missing
+ * trailing columns are absent from the map view.
+ */
+class IndexedRow(val schema: RowSchema, private val values: Array<out Any?>) : AbstractMap<String, Any?>() {
+    private val length = minOf(values.size, schema.size)
+
+    operator fun get(index: Int): Any? = if (index in 0 until length) values[index] else null
+
+    override fun get(key: String): Any? = get(schema.indexOf(key))
+
+    override fun containsKey(key: String): Boolean = schema.indexOf(key) in 0 until length
+
+    override val size: Int
+        get() = if (length == schema.size) {
+            schema.distinctIndices.size
+        } else {
+            schema.distinctIndices.count { it < length }
+        }
+
+    override val entries: Set<Map.Entry<String, Any?>>
+        get() = object : AbstractSet<Map.Entry<String, Any?>>() {
+            private val present = schema.distinctIndices.filter { it < length }
+
+            override val size: Int
+                get() = present.size
+
+            override fun iterator(): Iterator<Map.Entry<String, Any?>> {
+                return present.asSequence()
+                        .map { SimpleImmutableEntry(schema.columns[it], values[it]) }
+                        .iterator()
+            }
+        }
+}
@@ -8,6 +8,7 @@ import org.slf4j.LoggerFactory
 import java.sql.ResultSet
 import java.sql.SQLException
 import java.sql.Timestamp
+import java.sql.Types
 import java.time.OffsetDateTime
 import java.time.ZoneId
 import java.util.TimeZone
@@ -17,34 +18,39 @@ const val DEFAULT_PERMITS_PER_SECOND = 10_000.0
 internal const val DEFAULT_FETCH_SIZE = 50_000
 
 
+private val UTC = ZoneId.of("UTC")
+private val BINARY_TYPES = setOf(Types.BINARY, Types.VARBINARY, Types.LONGVARBINARY, Types.BLOB)
+
 /**
  *
  * @author Matthew Tamayo-Rios &lt;matthew@openlattice.com&gt;
+ * @param binarySpool When set, binary columns are streamed into the spool as they are read, and rows hold a
+ * [SpooledBinary] instead of a byte array.
  */
-
-private val UTC = ZoneId.of("UTC")
-
 class JdbcPayload @JvmOverloads constructor(
         permitsPerSecond: Double = DEFAULT_PERMITS_PER_SECOND,
         val hds: HikariDataSource,
         val sql: String,
         val fetchSize: Int = DEFAULT_FETCH_SIZE,
-        val rateLimited: Boolean = true
+        val rateLimited: Boolean = true,
+        private val binarySpool: BinarySpool? = null
 ) : Payload {
     private val rateLimiter = RateLimiter.create(if (rateLimited) permitsPerSecond else Double.MAX_VALUE)
-    private lateinit var columns: List<String>
+    private lateinit var schema: RowSchema
+    private lateinit var binaryColumns: BooleanArray
 
     override fun getPayload(): BasePostgresIterable<Map<String, Any?>> {
         TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
 
         return BasePostgresIterable(StatementHolderSupplier(hds, sql, fetchSize)) { rs ->
-            if (!::columns.isInitialized) {
-                columns = getColumnNames(rs)
+            if (!::schema.isInitialized) {
+                schema = RowSchema(getColumnNames(rs))
+                binaryColumns = getBinaryColumns(rs)
             }
 
             if (rateLimited) rateLimiter.acquire()
 
-            read(columns, rs)
+            read(schema, rs, binaryColumns, binarySpool)
         }
 
     }
@@ -60,17 +66,36 @@ private fun getColumnNames(rs: ResultSet): List<String> {
     }
 }
 
-private fun read(columns: List<String>, rs: ResultSet): Map<String, Any?> {
-    return columns.associateWith { col ->
-        try {
-            when (val obj: Any? = rs.getObject(col)) {
-                is ByteArray -> obj
-                is Timestamp -> OffsetDateTime.ofInstant(obj.toInstant(), UTC).toString()
-                else -> obj?.toString()
+private fun getBinaryColumns(rs: ResultSet): BooleanArray {
+    try {
+        val rsm = rs.metaData
+        return BooleanArray(rsm.columnCount) { BINARY_TYPES.contains(rsm.getColumnType(it + 1)) }
+    } catch (e: SQLException) {
+        throw IllegalStateException("ResultSummary Set Iterator initialization failed")
+    }
+}
+
+/**
+ * Reads the current row of [rs]. A column that cannot be read holds [Unit], as it always has, so that flights can tell
+ * it apart from a null value.
+ */
+internal fun read(schema: RowSchema, rs: ResultSet, binaryColumns: BooleanArray, spool: BinarySpool?): Map<String, Any?> {
+    val values = arrayOfNulls<Any?>(schema.size)
+    schema.distinctIndices.forEach { index ->
+        values[index] = try {
+            if (spool != null && binaryColumns[index]) {
+                rs.getBinaryStream(index + 1)?.let(spool::spool)
+            } else {
+                when (val obj: Any? = rs.getObject(index + 1)) {
+                    is ByteArray -> obj
+                    is Timestamp -> OffsetDateTime.ofInstant(obj.toInstant(), UTC).toString()
+                    else -> obj?.toString()
+                }
             }
 
         } catch (e: SQLException) {
-            logger.error("Unable to read col {}.", col, e)
+            logger.error("Unable to read col {}.", schema.columns[index], e)
         }
     }
+    return IndexedRow(schema, values)
 }
\ No newline at end of file
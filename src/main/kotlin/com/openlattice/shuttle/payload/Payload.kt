@@ -6,4 +6,10 @@ package com.openlattice.shuttle.payload
  */
 interface Payload {
     fun getPayload(): Iterable<Map<String, Any?>>
+
+    /**
+     * Whether [getPayload] returns the same rows in the same order on every call, so that a run can be resumed by
+     * skipping the rows committed by a previous run.
+     */
+    fun isStablyOrdered(): Boolean = false
 }
@@ -0,0 +1,164 @@
+package com.openlattice.shuttle.payload
+
+import com.google.common.hash.Hashing
+import com.google.common.hash.HashingInputStream
+import com.google.common.io.BaseEncoding
+import com.openlattice.data.util.PostgresDataHasher
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
+import org.slf4j.LoggerFactory
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.lang.ref.Cleaner
+import java.util.AbstractMap.SimpleImmutableEntry
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+
+private val logger = LoggerFactory.getLogger(SpooledBinary::class.java)
+private val cleaner = Cleaner.create()
+private val PROBE = "shuttle binary spool".toByteArray(Charsets.UTF_8)
+
+/**
+ * Binary property hashes are the murmur3 128 bit hash of the value, hex encoded. Spooled values are hashed while they
+ * are streamed, so the encoding used by [PostgresDataHasher] is looked up once with a probe value. If the hasher no
+ * longer matches, spooling fails instead of writing values under hashes that differ from unspooled values.
+ */
+private val hashFunction = Hashing.murmur3_128()
+private val hexEncoding: BaseEncoding by lazy {
+    val expected = PostgresDataHasher.hashObjectToHex(PROBE, EdmPrimitiveTypeKind.Binary)
+    val hash = hashFunction.hashBytes(PROBE).asBytes()
+    listOf(BaseEncoding.base16().lowerCase(), BaseEncoding.base16()).firstOrNull { it.encode(hash) == expected }
+            ?: throw IllegalStateException(
+                    "Binary values are no longer hashed with ${hashFunction}, so they cannot be hashed while spooled."
+            )
+}
+
+/**
+ * A binary value that was streamed into a local file while it was read, so that rows and batches only hold a handle
+ * to it instead of its bytes. The file is deleted by [delete] once the value has been written, or at the latest once
+ * the handle is no longer reachable.
+ *
+ * @param hash The hash of the content, computed while it was spooled. It is the same hash that
+ * [PostgresDataHasher.hashObjectToHex] computes for the value.
+ */
+class SpooledBinary internal constructor(val file: Path, val size: Long, val hash: String) {
+    private val cleanable = cleaner.register(this, DeleteSpoolFile(file))
+
+    fun openStream(): InputStream = Files.newInputStream(file)
+
+    /**
+     * Deletes the spooled file. The value cannot be read anymore afterwards.
+     */
+    fun delete() {
+        cleanable.clean()
+    }
+
+    /**
+     * Reads the whole value into memory, for destinations that can only be sent bytes.
+     */
+    fun readBytes(): ByteArray = Files.readAllBytes(file)
+
+    override fun toString(): String = "SpooledBinary(size=$size, hash=$hash)"
+}
+
+/**
+ * A read-only view of a row holding spooled binaries, in which they read as the byte arrays they would have been
+ * without a spool. Flight conditions, generators and transforms are applied to this view, so they never see a
+ * [SpooledBinary]. Only the values that are looked up are read into memory, each at most once per row.
+ *
+ * @param spooled The row as read, for the binary properties that stream spooled values to their destination.
+ */
+class MaterializedRow(val spooled: Map<String, Any?>) : AbstractMap<String, Any?>() {
+    private val materialized = HashMap<String, ByteArray>(0)
+
+    override fun get(key: String): Any? = materialize(key, spooled[key])
+
+    override fun containsKey(key: String): Boolean = spooled.containsKey(key)
+
+    override val size: Int
+        get() = spooled.size
+
+    override val entries: Set<Map.Entry<String, Any?>>
+        get() = spooled.entries.mapTo(LinkedHashSet(spooled.size)) { (key, value) ->
+            SimpleImmutableEntry(key, materialize(key, value))
+        }
+
+    private fun materialize(key: String, value: Any?): Any? {
+        return if (value is SpooledBinary) materialized.getOrPut(key) { value.readBytes() } else value
+    }
+}
+
+/**
+ * Must not reference the [SpooledBinary] it cleans up after, otherwise the handle never becomes unreachable.
+ */
+private class DeleteSpoolFile(private val file: Path) : Runnable {
+    override fun run() {
+        try {
+            Files.deleteIfExists(file)
+        } catch (ex: IOException) {
+            logger.warn("Unable to delete spooled binary {}.", file, ex)
+        }
+    }
+}
+
+/**
+ * Spools binary values into files in a directory of its own below [root], hashing them on the way. The directory is
+ * deleted when the spool is closed, and when the JVM exits before that.
+ */
+class BinarySpool(root: Path) : Closeable {
+    companion object {
+        /**
+         * Deletes everything left in [root] by spools of processes that did not exit cleanly. Must only be called
+         * before any spool in [root] is created.
+         */
+        @JvmStatic
+        fun clear(root: Path) {
+            if (Files.isDirectory(root)) {
+                logger.info("Clearing binary spool directory {}", root)
+                Files.list(root).use { paths -> paths.forEach(::deleteRecursively) }
+            }
+        }
+
+        private fun deleteRecursively(path: Path) {
+            try {
+                if (Files.isDirectory(path)) {
+                    Files.list(path).use { paths -> paths.forEach(::deleteRecursively) }
+                }
+                Files.deleteIfExists(path)
+            } catch (ex: IOException) {
+                logger.warn("Unable to delete spooled binary {}.", path, ex)
+            }
+        }
+    }
+
+    private val directory: Path = Files.createTempDirectory(Files.createDirectories(root), "spool")
+    private val shutdownHook = Thread({ deleteRecursively(directory) }, "binary-spool-cleanup")
+
+    init {
+        Runtime.getRuntime().addShutdownHook(shutdownHook)
+    }
+
+    fun spool(input: InputStream): SpooledBinary {
+        val file = Files.createTempFile(directory, "binary", ".bin")
+        return try {
+            HashingInputStream(hashFunction, input).use { hashing ->
+                val size = Files.copy(hashing, file, StandardCopyOption.REPLACE_EXISTING)
+                SpooledBinary(file, size, hexEncoding.encode(hashing.hash().asBytes()))
+            }
+        } catch (ex: IOException) {
+            Files.deleteIfExists(file)
+            throw ex
+        }
+    }
+
+    override fun close() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook)
+        } catch (ex: IllegalStateException) {
+            // the JVM is already shutting down and runs the hook itself.
+            return
+        }
+        deleteRecursively(directory)
+    }
+}
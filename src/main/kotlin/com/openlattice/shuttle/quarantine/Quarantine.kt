@@ -0,0 +1,225 @@
+package com.openlattice.shuttle.quarantine
+
+import com.fasterxml.jackson.core.JsonProcessingException
+import com.geekbeast.mappers.mappers.ObjectMappers
+import com.geekbeast.retrofit.RhizomeRetrofitCallException
+import org.slf4j.LoggerFactory
+import java.io.BufferedWriter
+import java.io.Closeable
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.sql.SQLException
+import java.sql.SQLRecoverableException
+import java.sql.SQLTransientException
+import java.time.DateTimeException
+import java.time.OffsetDateTime
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.LongAdder
+
+private val mapper = ObjectMappers.newJsonMapper()
+private const val SAMPLE_LENGTH = 200
+private const val MAX_CAUSE_DEPTH = 16
+
+/**
+ * Connection exceptions, transaction rollbacks such as deadlocks, insufficient resources and operator intervention.
+ */
+private val TRANSIENT_SQL_STATE_CLASSES = listOf("08", "40", "53", "57")
+
+/**
+ * Data exceptions, such as invalid values or casts, and integrity constraint violations.
+ */
+private val DATA_SQL_STATE_CLASSES = listOf("22", "23")
+
+/**
+ * A row, entity or association that failed to integrate on its own, along with where and why it failed.
+ *
+ * @param stage The pipeline stage that failed, e.g. `transform` or `entity-writes-postgres`.
+ * @param definition The entity or association definition that failed, when it could be determined.
+ * @param record The payload row for transform failures, or the entity or association for write failures.
+ */
+data class QuarantinedRecord(
+        val flightName: String,
+        val batchId: Long,
+        val stage: String,
+        val definition: String?,
+        val record: Any?,
+        val error: String,
+        val message: String?,
+        val quarantined: OffsetDateTime
+)
+
+/**
+ * Dead letter file for records that fail to integrate. Records are appended to [file] as json lines and flushed
+ * immediately, so that they survive a run that fails later on. The first [summaryRecords] records of each flight are
+ * kept in memory for the summary printed at the end of the flight.
+ */
+class Quarantine(private val file: Path, private val summaryRecords: Int) : Closeable {
+    companion object {
+        private val logger = LoggerFactory.getLogger(Quarantine::class.java)
+    }
+
+    private val writer: BufferedWriter
+    private val counts = ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>>()
+    private val samples = ConcurrentHashMap<String, MutableList<QuarantinedRecord>>()
+
+    init {
+        file.toAbsolutePath().parent?.let { Files.createDirectories(it) }
+        writer = Files.newBufferedWriter(file, Charsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+    }
+
+    fun add(flightName: String, batchId: Long, stage: String, definition: String?, record: Any?, ex: Exception) {
+        val quarantined = QuarantinedRecord(
+                flightName,
+                batchId,
+                stage,
+                definition,
+                record,
+                ex.javaClass.name,
+                ex.message,
+                OffsetDateTime.now()
+        )
+        val line = try {
+            mapper.writeValueAsString(quarantined)
+        } catch (jpe: JsonProcessingException) {
+            mapper.writeValueAsString(quarantined.copy(record = stringify(record)))
+        }
+        synchronized(writer) {
+            writer.write(line)
+            writer.newLine()
+            writer.flush()
+        }
+
+        counts.getOrPut(flightName) { ConcurrentHashMap() }
+                .getOrPut("$stage ${definition ?: "(unknown definition)"}") { LongAdder() }
+                .increment()
+        val flightSamples = samples.getOrPut(flightName) { mutableListOf() }
+        synchronized(flightSamples) {
+            if (flightSamples.size < summaryRecords) {
+                flightSamples += quarantined
+            }
+        }
+        logger.warn("Quarantined a record of flight {} in batch {} at stage {}.", flightName, batchId, stage, ex)
+    }
+
+    fun count(flightName: String): Long {
+        return counts[flightName]?.values?.sumOf { it.sum() } ?: 0L
+    }
+
+    /**
+     * Lists the number of quarantined records of [flightName] by stage and definition, followed by the first of them.
+     */
+    fun summary(flightName: String): String {
+        val lines = mutableListOf("Quarantined ${count(flightName)} records of flight $flightName in $file.")
+        counts[flightName]?.toSortedMap()?.forEach { (location, count) -> lines += "  ${count.sum()} at $location" }
+        samples[flightName]?.let { flightSamples ->
+            synchronized(flightSamples) {
+                flightSamples.forEach { quarantined ->
+                    val record = stringify(quarantined.record)
+                    lines += "  batch ${quarantined.batchId}, ${quarantined.stage}: ${quarantined.error}: " +
+                            "${quarantined.message}\n    " +
+                            if (record.length > SAMPLE_LENGTH) record.take(SAMPLE_LENGTH) + "..." else record
+                }
+            }
+        }
+        return lines.joinToString("\n")
+    }
+
+    override fun close() {
+        synchronized(writer) {
+            writer.close()
+        }
+    }
+
+    private fun stringify(record: Any?): String {
+        return try {
+            mapper.writeValueAsString(record)
+        } catch (jpe: JsonProcessingException) {
+            record.toString()
+        }
+    }
+}
+
+/**
+ * Isolates the items that make [action] fail, given that [action] already failed on all of [items] with [failure].
+ * Both halves are retried recursively, [accept] receives the result of every part that succeeds and [reject] every
+ * item that fails on its own. Isolating k bad items out of n takes on the order of k log n calls of [action].
+ *
+ * Failures that are not [isolatable], e.g. because the destination is down, are rethrown instead of bisected, since
+ * they would otherwise reject every item.
+ */
+fun <T, R> bisect(
+        items: List<T>,
+        failure: Exception,
+        action: (List<T>) -> R,
+        accept: (R) -> Unit,
+        reject: (T, Exception) -> Unit,
+        isolatable: (Exception) -> Boolean = { true }
+) {
+    if (!isolatable(failure)) {
+        throw failure
+    }
+    if (items.size <= 1) {
+        items.forEach { reject(it, failure) }
+        return
+    }
+    val middle = items.size / 2
+    for (half in listOf(items.subList(0, middle), items.subList(middle, items.size))) {
+        val result = try {
+            action(half)
+        } catch (ex: Exception) {
+            bisect(half, ex, action, accept, reject, isolatable)
+            continue
+        }
+        accept(result)
+    }
+}
+
+/**
+ * Whether [ex] was caused by the environment rather than by the records being processed, i.e. the same records could
+ * succeed once the source, destination or network recovers.
+ */
+fun isTransientError(ex: Throwable): Boolean {
+    return causes(ex).any { cause ->
+        when (cause) {
+            is SQLTransientException, is SQLRecoverableException -> true
+            is SQLException -> cause.sqlStates().any { state ->
+                TRANSIENT_SQL_STATE_CLASSES.any { state.startsWith(it) }
+            }
+            is RhizomeRetrofitCallException -> cause.code == 408 || cause.code == 429 || cause.code >= 500
+            is IOException, is TimeoutException, is InterruptedException -> true
+            else -> false
+        }
+    }
+}
+
+/**
+ * Whether [ex] was caused by the records being written, i.e. constraint violations, invalid values, casts or values
+ * that fail to parse. Only such failures are worth bisecting down to single records.
+ */
+fun isDataError(ex: Throwable): Boolean {
+    if (isTransientError(ex)) {
+        return false
+    }
+    return causes(ex).any { cause ->
+        when (cause) {
+            is SQLException -> cause.sqlStates().any { state -> DATA_SQL_STATE_CLASSES.any { state.startsWith(it) } }
+            is RhizomeRetrofitCallException -> cause.code == 400 || cause.code == 422
+            is IllegalArgumentException, is DateTimeException, is ClassCastException -> true
+            else -> false
+        }
+    }
+}
+
+private fun causes(ex: Throwable): Sequence<Throwable> {
+    return generateSequence(ex) { it.cause?.takeIf { cause -> cause !== it } }.take(MAX_CAUSE_DEPTH)
+}
+
+/**
+ * Batch update failures report the state of the failing statement in their next exception.
+ */
+private fun SQLException.sqlStates(): List<String> {
+    return generateSequence(this) { it.nextException }.take(MAX_CAUSE_DEPTH).mapNotNull { it.sqlState }.toList()
+}
@@ -0,0 +1,122 @@
+package com.openlattice.shuttle.util
+
+import com.codahale.metrics.Gauge
+import com.openlattice.shuttle.metrics.POOL_TAG
+import com.openlattice.shuttle.metrics.ShuttleMetrics
+import com.zaxxer.hikari.HikariConfig
+import com.zaxxer.hikari.HikariDataSource
+import org.slf4j.LoggerFactory
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Connection pool statistics for a single pool in the [HikariDataSourceRegistry].
+ */
+data class PoolStats(
+        val poolName: String,
+        val active: Int,
+        val idle: Int,
+        val pending: Int,
+        val total: Int
+)
+
+/**
+ * Shares connection pools to the target data stores across batches and integration jobs. A pool is created the first
+ * time a data store is requested with a given configuration and reused for every later request with an equal
+ * configuration. Jobs that are limited to fewer connections share the pool and limit themselves, see
+ * [com.openlattice.shuttle.destinations.PostgresDestination], so there is one pool per data store for the lifetime of
+ * the JVM. All pools are closed when the JVM shuts down.
+ *
+ * Every pool gets a unique name, made of the configured pool name, or `shuttle-` and the data store, followed by a
+ * sequence number. The active, idle, pending and total connections of each pool are registered as gauges in
+ * [ShuttleMetrics], tagged with the pool name, so they are reported over JMX and to prometheus.
+ */
+object HikariDataSourceRegistry {
+    private const val REWRITE_BATCHED_INSERTS = "reWriteBatchedInserts"
+    private val logger = LoggerFactory.getLogger(HikariDataSourceRegistry::class.java)
+    private val dataSources = ConcurrentHashMap<PoolKey, HikariDataSource>()
+    private val poolCounter = AtomicInteger()
+
+    init {
+        Runtime.getRuntime().addShutdownHook(Thread { closeAll() })
+    }
+
+    /**
+     * Returns the shared pool for [dataStore] with [config]. When [rewriteBatchedInserts] is set and [config] does not
+     * configure it either way, the postgres driver of the pool is asked to rewrite batched inserts into multi-row
+     * inserts.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun getDataSource(
+            dataStore: DataStoreType,
+            config: Properties,
+            rewriteBatchedInserts: Boolean = false
+    ): HikariDataSource {
+        val snapshot = Properties()
+        snapshot.putAll(config)
+        return dataSources.computeIfAbsent(PoolKey(dataStore, snapshot, rewriteBatchedInserts)) { key ->
+            val hikariConfig = HikariConfig(key.config)
+            // pools with different configurations may share a configured name, which hikari also names metrics by.
+            val baseName = hikariConfig.poolName
+                    ?.takeIf { it.isNotBlank() }
+                    ?: "shuttle-${dataStore.name.toLowerCase()}"
+            hikariConfig.poolName = "$baseName-${poolCounter.incrementAndGet()}"
+            if (key.rewriteBatchedInserts && !configures(hikariConfig, REWRITE_BATCHED_INSERTS)) {
+                logger.info("Enabling {} on connection pool {}", REWRITE_BATCHED_INSERTS, hikariConfig.poolName)
+                hikariConfig.addDataSourceProperty(REWRITE_BATCHED_INSERTS, true)
+            }
+            logger.info("Creating connection pool {} for data store {}", hikariConfig.poolName, dataStore)
+            HikariDataSource(hikariConfig).also(::registerGauges)
+        }
+    }
+
+    @JvmStatic
+    fun stats(): List<PoolStats> {
+        return dataSources.values.mapNotNull { hds ->
+            hds.hikariPoolMXBean?.let { pool ->
+                PoolStats(
+                        hds.poolName,
+                        pool.activeConnections,
+                        pool.idleConnections,
+                        pool.threadsAwaitingConnection,
+                        pool.totalConnections
+                )
+            }
+        }
+    }
+
+    @JvmStatic
+    fun closeAll() {
+        dataSources.keys.toList().forEach { key ->
+            dataSources.remove(key)?.let { hds ->
+                logger.info("Closing connection pool {}", hds.poolName)
+                hds.close()
+                ShuttleMetrics.release(POOL_TAG to hds.poolName)
+            }
+        }
+    }
+
+    private fun registerGauges(hds: HikariDataSource) {
+        val pool = POOL_TAG to hds.poolName
+        ShuttleMetrics.retain(pool)
+        ShuttleMetrics.gauge("pool-active-connections", pool) { Gauge { hds.hikariPoolMXBean?.activeConnections ?: 0 } }
+        ShuttleMetrics.gauge("pool-idle-connections", pool) { Gauge { hds.hikariPoolMXBean?.idleConnections ?: 0 } }
+        ShuttleMetrics.gauge("pool-pending-threads", pool) {
+            Gauge { hds.hikariPoolMXBean?.threadsAwaitingConnection ?: 0 }
+        }
+        ShuttleMetrics.gauge("pool-total-connections", pool) { Gauge { hds.hikariPoolMXBean?.totalConnections ?: 0 } }
+    }
+
+    private fun configures(hikariConfig: HikariConfig, property: String): Boolean {
+        return hikariConfig.dataSourceProperties.containsKey(property) ||
+                hikariConfig.jdbcUrl?.contains("$property=", ignoreCase = true) == true
+    }
+
+    private data class PoolKey(
+            val dataStore: DataStoreType,
+            val config: Properties,
+            val rewriteBatchedInserts: Boolean
+    )
+}
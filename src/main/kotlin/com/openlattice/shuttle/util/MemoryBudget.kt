@@ -0,0 +1,111 @@
+package com.openlattice.shuttle.util
+
+import com.openlattice.data.integration.Association
+import com.openlattice.data.integration.Entity
+import com.openlattice.shuttle.destinations.AddressedDataHolder
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+private const val OBJECT_BYTES = 16L
+private const val REFERENCE_BYTES = 8L
+private const val MAP_ENTRY_BYTES = 48L
+private const val UUID_BYTES = 32L
+
+/**
+ * Limits the estimated bytes of batches in flight to [maxBytes]. A batch that is larger than the whole budget is still
+ * admitted once nothing else is in flight, so that oversized batches slow the integration down instead of stalling it.
+ */
+class MemoryBudget(val maxBytes: Long) {
+    companion object {
+        private val totalInFlightBytes = AtomicLong()
+
+        /**
+         * Estimated bytes in flight across all budgets in this JVM.
+         */
+        @JvmStatic
+        fun totalInFlightBytes(): Long = totalInFlightBytes.get()
+    }
+
+    private val lock = ReentrantLock()
+    private val released = lock.newCondition()
+    private var inFlightBytes = 0L
+
+    /**
+     * Blocks until [bytes] fit in the budget and reserves them.
+     */
+    fun acquire(bytes: Long) {
+        lock.withLock {
+            while (inFlightBytes > 0 && inFlightBytes + bytes > maxBytes) {
+                released.await()
+            }
+            add(bytes)
+        }
+    }
+
+    /**
+     * Adjusts a reservation to a new estimate without blocking, which may temporarily exceed the budget.
+     */
+    fun adjust(deltaBytes: Long) {
+        lock.withLock {
+            add(deltaBytes)
+            if (deltaBytes < 0) {
+                released.signalAll()
+            }
+        }
+    }
+
+    fun release(bytes: Long) = adjust(-bytes)
+
+    fun inFlightBytes(): Long = lock.withLock { inFlightBytes }
+
+    private fun add(bytes: Long) {
+        inFlightBytes += bytes
+        totalInFlightBytes.addAndGet(bytes)
+    }
+}
+
+/**
+ * Rough estimates of the heap retained by payload rows and transformed batches. Estimates only need to be
+ * proportional to the real footprint, so that wide rows and binary values weigh more than narrow ones.
+ */
+object SizeEstimator {
+    @JvmStatic
+    fun estimateRows(rows: List<Map<String, Any?>>): Long {
+        return rows.sumOf { row -> OBJECT_BYTES + row.entries.sumOf { MAP_ENTRY_BYTES + estimate(it.key) + estimate(it.value) } }
+    }
+
+    @JvmStatic
+    fun estimate(batch: AddressedDataHolder): Long {
+        return batch.entities.values.sumOf { entities -> entities.sumOf(::estimate) } +
+                batch.associations.values.sumOf { associations -> associations.sumOf(::estimate) }
+    }
+
+    private fun estimate(entity: Entity): Long {
+        return OBJECT_BYTES + UUID_BYTES + estimate(entity.key.entityId) + estimateDetails(entity.details)
+    }
+
+    private fun estimate(association: Association): Long {
+        return OBJECT_BYTES + 3 * (UUID_BYTES + OBJECT_BYTES) +
+                estimate(association.key.entityId) +
+                estimate(association.src.entityId) +
+                estimate(association.dst.entityId) +
+                estimateDetails(association.details)
+    }
+
+    private fun estimateDetails(details: Map<*, Collection<*>>): Long {
+        return details.values.sumOf { values -> MAP_ENTRY_BYTES + UUID_BYTES + estimate(values) }
+    }
+
+    private fun estimate(value: Any?): Long {
+        return when (value) {
+            null -> 0
+            is String -> OBJECT_BYTES + 24 + value.length.toLong()
+            is ByteArray -> OBJECT_BYTES + value.size
+            is Map<*, *> -> OBJECT_BYTES + value.entries.sumOf { MAP_ENTRY_BYTES + estimate(it.key) + estimate(it.value) }
+            is Collection<*> -> OBJECT_BYTES + value.sumOf { REFERENCE_BYTES + estimate(it) }
+            is Array<*> -> OBJECT_BYTES + value.sumOf { REFERENCE_BYTES + estimate(it) }
+            else -> OBJECT_BYTES + 16
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.openlattice.shuttle
+
+import org.junit.Assert
+import org.junit.Test
+
+class AdaptiveBatchSizerTest {
+    private val configuration = AdaptiveBatchConfiguration(
+            enabled = true,
+            targetBatchMillis = 1_000,
+            minBatchSize = 100,
+            maxBatchSize = 100_000
+    )
+    private val noPressure = { MemoryPressure(0.1, 0.0) }
+
+    @Test
+    fun testGrowsTowardsTargetLatency() {
+        val sizer = AdaptiveBatchSizer(1_000, configuration, noPressure)
+        Assert.assertEquals(2_000, sizer.record(1_000, 100))
+        Assert.assertEquals(4_000, sizer.record(2_000, 200))
+        repeat(10) { sizer.record(sizer.nextBatchSize(), sizer.nextBatchSize() / 10L) }
+        Assert.assertEquals(10_000.0, sizer.nextBatchSize().toDouble(), 1.0)
+    }
+
+    @Test
+    fun testShrinksWhenDestinationsSlowDown() {
+        val sizer = AdaptiveBatchSizer(10_000, configuration, noPressure)
+        Assert.assertEquals(5_000, sizer.record(10_000, 10_000))
+        repeat(10) { sizer.record(sizer.nextBatchSize(), sizer.nextBatchSize() * 10L) }
+        Assert.assertEquals(100, sizer.nextBatchSize())
+    }
+
+    @Test
+    fun testBacksOffUnderMemoryPressure() {
+        var pressure = MemoryPressure(0.9, 0.0)
+        val sizer = AdaptiveBatchSizer(10_000, configuration) { pressure }
+        Assert.assertEquals(5_000, sizer.record(10_000, 100))
+        pressure = MemoryPressure(0.1, 0.5)
+        Assert.assertEquals(2_500, sizer.record(5_000, 50))
+        pressure = MemoryPressure(0.1, 0.0)
+        Assert.assertEquals(5_000, sizer.record(2_500, 25))
+    }
+
+    @Test
+    fun testAdaptiveChunks() {
+        val sizes = mutableListOf(2, 3, 1)
+        val chunks = (1..10).asSequence().adaptiveChunks { sizes.removeAt(0).also { sizes.add(it) } }.toList()
+        Assert.assertEquals(listOf(listOf(1, 2), listOf(3, 4, 5), listOf(6), listOf(7, 8), listOf(9, 10)), chunks)
+    }
+}
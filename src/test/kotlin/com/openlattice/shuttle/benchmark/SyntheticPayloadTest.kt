@@ -0,0 +1,59 @@
+package com.openlattice.shuttle.benchmark
+
+import org.junit.Assert
+import org.junit.Test
+
+class SyntheticPayloadTest {
+
+    @Test
+    fun testPayloadIsRepeatable() {
+        val payload = SyntheticPayload(BenchmarkConfiguration(rows = 100, binaryColumns = listOf("blob")))
+        val first = payload.getPayload().toList()
+        val second = payload.getPayload().toList()
+
+        Assert.assertEquals(100, first.size)
+        first.zip(second).forEach { (a, b) ->
+            Assert.assertEquals(a["id"], b["id"])
+            Assert.assertEquals(a["column0"], b["column0"])
+            Assert.assertArrayEquals(a["blob"] as ByteArray, b["blob"] as ByteArray)
+        }
+    }
+
+    @Test
+    fun testColumnCardinality() {
+        val rows = SyntheticPayload(BenchmarkConfiguration(rows = 10_000, cardinality = 10)).getPayload().toList()
+
+        Assert.assertEquals(10, rows.map { it["column3"] }.toSet().size)
+        Assert.assertEquals(10_000, rows.map { it["id"] }.toSet().size)
+    }
+
+    @Test
+    fun testDuplicateKeyRatio() {
+        val rows = SyntheticPayload(BenchmarkConfiguration(rows = 10_000, duplicateKeyRatio = 0.25))
+                .getPayload()
+                .toList()
+        val duplicates = rows.size - rows.map { it["id"] }.toSet().size
+
+        Assert.assertEquals(2_500.0, duplicates.toDouble(), 250.0)
+    }
+
+    @Test
+    fun testBinarySizes() {
+        val sizes = BinarySizeConfiguration(minBytes = 10, maxBytes = 1_000, distribution = BinarySizeDistribution.LOG_UNIFORM)
+        val rows = SyntheticPayload(
+                BenchmarkConfiguration(rows = 1_000, binaryColumns = listOf("blob"), binarySizes = sizes)
+        ).getPayload().map { (it["blob"] as ByteArray).size }
+
+        Assert.assertTrue(rows.all { it in 10..1_000 })
+        Assert.assertTrue(rows.count { it < 100 } > rows.count { it >= 100 } / 2)
+
+        val fixed = SyntheticPayload(
+                BenchmarkConfiguration(
+                        rows = 10,
+                        binaryColumns = listOf("blob"),
+                        binarySizes = sizes.copy(distribution = BinarySizeDistribution.FIXED)
+                )
+        ).getPayload().map { (it["blob"] as ByteArray).size }
+        Assert.assertEquals(setOf(10), fixed.toSet())
+    }
+}
@@ -0,0 +1,93 @@
+package com.openlattice.shuttle.checkpoint
+
+import org.junit.Assert
+import org.junit.Test
+import java.nio.file.Files
+import java.time.OffsetDateTime
+
+class CheckpointTrackerTest {
+    private val key = CheckpointKey("job", "cases")
+
+    @Test
+    fun testCheckpointsLongestRunOfCommittedBatches() {
+        val store = InMemoryCheckpointStore()
+        val tracker = CheckpointTracker(store, key, null)
+
+        tracker.committed(2, 20, mapOf("id" to 2))
+        Assert.assertNull(store.load(key))
+
+        tracker.committed(1, 10, mapOf("id" to 1))
+        assertCheckpoint(store.load(key), 2, 30, mapOf("id" to 2))
+
+        tracker.committed(4, 40, mapOf("id" to 4))
+        assertCheckpoint(store.load(key), 2, 30, mapOf("id" to 2))
+
+        tracker.committed(3, 30, mapOf("id" to 3))
+        assertCheckpoint(store.load(key), 4, 100, mapOf("id" to 4))
+        Assert.assertEquals(2, store.saves)
+    }
+
+    @Test
+    fun testResumedCheckpointsContinueFromPreviousRun() {
+        val store = InMemoryCheckpointStore()
+        val previous = FlightCheckpoint(key, 5, 3_000_000_000L, mapOf("id" to 5), OffsetDateTime.now())
+        val tracker = CheckpointTracker(store, key, previous)
+
+        tracker.committed(1, 10, mapOf("id" to 6))
+
+        assertCheckpoint(store.load(key), 6, 3_000_000_010L, mapOf("id" to 6))
+    }
+
+    @Test
+    fun testFailedSavesDoNotFailTheBatch() {
+        val store = object : CheckpointStore {
+            override fun load(key: CheckpointKey): FlightCheckpoint? = null
+            override fun save(checkpoint: FlightCheckpoint) = throw IllegalStateException("Hazelcast is down")
+            override fun clear(key: CheckpointKey) {}
+        }
+        CheckpointTracker(store, key, null).committed(1, 10, mapOf())
+    }
+
+    @Test
+    fun testLocalFileStoreKeepsJobsApart() {
+        val store = LocalFileCheckpointStore(Files.createTempDirectory("checkpoints"))
+        val other = CheckpointKey("other-job", key.flightName)
+        store.save(FlightCheckpoint(key, 1, 10, mapOf("id" to "a"), OffsetDateTime.now()))
+        store.save(FlightCheckpoint(other, 2, 20, mapOf("id" to "b"), OffsetDateTime.now()))
+
+        assertCheckpoint(store.load(key), 1, 10, mapOf("id" to "a"))
+        assertCheckpoint(store.load(other), 2, 20, mapOf("id" to "b"))
+
+        store.clear(key)
+        Assert.assertNull(store.load(key))
+        Assert.assertNotNull(store.load(other))
+    }
+
+    private fun assertCheckpoint(
+            checkpoint: FlightCheckpoint?,
+            committedBatches: Long,
+            committedRows: Long,
+            position: Map<String, Any?>
+    ) {
+        Assert.assertNotNull(checkpoint)
+        Assert.assertEquals(committedBatches, checkpoint!!.committedBatches)
+        Assert.assertEquals(committedRows, checkpoint.committedRows)
+        Assert.assertEquals(position, checkpoint.position)
+    }
+
+    private class InMemoryCheckpointStore : CheckpointStore {
+        private val checkpoints = mutableMapOf<CheckpointKey, FlightCheckpoint>()
+        var saves = 0
+
+        override fun load(key: CheckpointKey): FlightCheckpoint? = checkpoints[key]
+
+        override fun save(checkpoint: FlightCheckpoint) {
+            saves++
+            checkpoints[checkpoint.key] = checkpoint
+        }
+
+        override fun clear(key: CheckpointKey) {
+            checkpoints.remove(key)
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.openlattice.shuttle.destinations
+
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
+import org.junit.Assert
+import org.junit.Test
+import java.time.Instant
+import java.time.LocalDate
+import java.time.LocalTime
+import java.time.OffsetDateTime
+import java.time.ZoneId
+import java.time.ZoneOffset
+import java.util.*
+
+class PropertyValueNormalizationTest {
+
+    @Test
+    fun testString() {
+        assertNormalized(EdmPrimitiveTypeKind.String, "a", "a")
+        assertNotNormalized(EdmPrimitiveTypeKind.String, 1)
+    }
+
+    @Test
+    fun testGuid() {
+        val id = UUID.randomUUID()
+        assertNormalized(EdmPrimitiveTypeKind.Guid, id, id)
+        assertNormalized(EdmPrimitiveTypeKind.Guid, id.toString(), id)
+        assertNotNormalized(EdmPrimitiveTypeKind.Guid, "not a uuid")
+    }
+
+    @Test
+    fun testBoolean() {
+        assertNormalized(EdmPrimitiveTypeKind.Boolean, true, true)
+        assertNotNormalized(EdmPrimitiveTypeKind.Boolean, "true")
+    }
+
+    @Test
+    fun testInt64() {
+        assertNormalized(EdmPrimitiveTypeKind.Int64, Long.MAX_VALUE, Long.MAX_VALUE)
+        assertNormalized(EdmPrimitiveTypeKind.Int64, 42, 42L)
+        assertNormalized(EdmPrimitiveTypeKind.Int64, 42.toShort(), 42L)
+        assertNotNormalized(EdmPrimitiveTypeKind.Int64, "42")
+    }
+
+    @Test
+    fun testInt32() {
+        assertNormalized(EdmPrimitiveTypeKind.Int32, 42, 42)
+        assertNormalized(EdmPrimitiveTypeKind.Int32, 42L, 42)
+        assertNotNormalized(EdmPrimitiveTypeKind.Int32, Int.MAX_VALUE + 1L)
+        assertNotNormalized(EdmPrimitiveTypeKind.Int32, 4.2)
+    }
+
+    @Test
+    fun testInt16() {
+        assertNormalized(EdmPrimitiveTypeKind.Int16, 42.toShort(), 42.toShort())
+        assertNormalized(EdmPrimitiveTypeKind.Int16, -42, (-42).toShort())
+        assertNotNormalized(EdmPrimitiveTypeKind.Int16, Short.MAX_VALUE + 1)
+        assertNotNormalized(EdmPrimitiveTypeKind.Int16, 1L shl 40)
+    }
+
+    @Test
+    fun testDouble() {
+        assertNormalized(EdmPrimitiveTypeKind.Double, 4.2, 4.2)
+        assertNormalized(EdmPrimitiveTypeKind.Double, 0.1f, 0.1)
+        assertNormalized(EdmPrimitiveTypeKind.Double, 42, 42.0)
+        assertNormalized(EdmPrimitiveTypeKind.Double, 42L, 42.0)
+        assertNotNormalized(EdmPrimitiveTypeKind.Double, "4.2")
+    }
+
+    @Test
+    fun testDate() {
+        val date = LocalDate.of(2020, 2, 29)
+        assertNormalized(EdmPrimitiveTypeKind.Date, date, date)
+        assertNotNormalized(EdmPrimitiveTypeKind.Date, "2020-02-29")
+    }
+
+    @Test
+    fun testDateTimeOffset() {
+        val dateTime = OffsetDateTime.of(2020, 2, 29, 12, 30, 0, 0, ZoneOffset.ofHours(-5))
+        assertNormalized(EdmPrimitiveTypeKind.DateTimeOffset, dateTime, dateTime)
+        assertNormalized(
+                EdmPrimitiveTypeKind.DateTimeOffset,
+                dateTime.atZoneSameInstant(ZoneId.of("America/New_York")),
+                dateTime
+        )
+        assertNormalized(
+                EdmPrimitiveTypeKind.DateTimeOffset,
+                Instant.ofEpochSecond(0),
+                OffsetDateTime.of(1970, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC)
+        )
+        assertNotNormalized(EdmPrimitiveTypeKind.DateTimeOffset, "2020-02-29T12:30:00-05:00")
+    }
+
+    @Test
+    fun testTimeOfDay() {
+        val time = LocalTime.of(23, 59, 59)
+        assertNormalized(EdmPrimitiveTypeKind.TimeOfDay, time, time)
+        assertNotNormalized(EdmPrimitiveTypeKind.TimeOfDay, "23:59:59")
+    }
+
+    @Test
+    fun testOtherDatatypesAreNotNormalized() {
+        assertNotNormalized(EdmPrimitiveTypeKind.Binary, byteArrayOf(1, 2))
+        assertNotNormalized(EdmPrimitiveTypeKind.GeographyPoint, "47.6,-122.3")
+    }
+
+    @Test
+    fun testJsonValue() {
+        val id = UUID.randomUUID()
+        Assert.assertEquals("a", jsonValue("a"))
+        Assert.assertEquals(42, jsonValue(42))
+        Assert.assertEquals(true, jsonValue(true))
+        Assert.assertEquals(id.toString(), jsonValue(id))
+        Assert.assertEquals("AQI=", jsonValue(byteArrayOf(1, 2)))
+        Assert.assertEquals("2020-02-29", jsonValue(LocalDate.of(2020, 2, 29)))
+        Assert.assertEquals(
+                "2020-02-29T12:30-05:00",
+                jsonValue(OffsetDateTime.of(2020, 2, 29, 12, 30, 0, 0, ZoneOffset.ofHours(-5)))
+        )
+        Assert.assertEquals(mapOf("content-type" to "image/png"), jsonValue(mapOf("content-type" to "image/png")))
+    }
+
+    private fun assertNormalized(datatype: EdmPrimitiveTypeKind, value: Any, expected: Any) {
+        val normalized = normalizePropertyValue(datatype, value)
+        Assert.assertEquals(expected, normalized)
+        Assert.assertEquals(expected.javaClass, normalized!!.javaClass)
+    }
+
+    private fun assertNotNormalized(datatype: EdmPrimitiveTypeKind, value: Any) {
+        Assert.assertNull(normalizePropertyValue(datatype, value))
+    }
+}
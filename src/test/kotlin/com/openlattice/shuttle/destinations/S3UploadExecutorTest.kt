@@ -0,0 +1,64 @@
+package com.openlattice.shuttle.destinations
+
+import com.openlattice.shuttle.S3UploadConfiguration
+import org.junit.Assert
+import org.junit.Test
+import java.io.IOException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class S3UploadExecutorTest {
+    private val executor = S3UploadExecutor.shared(
+            S3UploadConfiguration(
+                    threads = 8,
+                    maxConcurrentPerHost = 2,
+                    maxRetries = 3,
+                    initialRetryDelayMillis = 1,
+                    maxRetryDelayMillis = 10
+            )
+    )
+
+    @Test
+    fun testRetriesUntilUploadSucceeds() {
+        val attempts = AtomicInteger()
+        executor.upload("https://bucket.example.com/a", 10) {
+            if (attempts.incrementAndGet() < 3) {
+                throw IOException("Connection reset")
+            }
+        }.get(10, TimeUnit.SECONDS)
+        Assert.assertEquals(3, attempts.get())
+    }
+
+    @Test
+    fun testFailsAfterMaxRetries() {
+        val attempts = AtomicInteger()
+        val upload = executor.upload("https://bucket.example.com/b", 10) {
+            attempts.incrementAndGet()
+            throw IOException("Connection reset")
+        }
+        try {
+            upload.join()
+            Assert.fail("Upload should have failed.")
+        } catch (ex: CompletionException) {
+            Assert.assertTrue(ex.cause is IOException)
+        }
+        Assert.assertEquals(4, attempts.get())
+    }
+
+    @Test
+    fun testLimitsConcurrentUploadsPerHost() {
+        val running = AtomicInteger()
+        val maxRunning = AtomicInteger()
+        val uploads = (1..20).map {
+            executor.upload("https://limited.example.com/$it", 10) {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max)
+                Thread.sleep(5)
+                running.decrementAndGet()
+            }
+        }
+        CompletableFuture.allOf(*uploads.toTypedArray()).get(10, TimeUnit.SECONDS)
+        Assert.assertTrue(maxRunning.get() <= 2)
+    }
+}
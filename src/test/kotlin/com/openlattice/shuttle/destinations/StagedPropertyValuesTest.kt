@@ -0,0 +1,166 @@
+package com.openlattice.shuttle.destinations
+
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
+import org.junit.Assert
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.time.LocalDate
+import java.time.LocalDateTime
+import java.time.LocalTime
+import java.time.OffsetDateTime
+import java.time.ZoneOffset
+import java.util.*
+
+/**
+ * Encoded values are decoded independently of [CopyType], following the postgres binary send functions of each type.
+ */
+class StagedPropertyValuesTest {
+    private val pgEpoch = LocalDateTime.of(2000, 1, 1, 0, 0)
+
+    @Test
+    fun testUuid() {
+        val value = UUID.randomUUID()
+        roundTrip(CopyType.UUID, value) { UUID(it.readLong(), it.readLong()) }
+    }
+
+    @Test
+    fun testInt8() {
+        roundTrip(CopyType.INT8, Long.MIN_VALUE) { it.readLong() }
+        roundTrip(CopyType.INT8, 1234567890123L) { it.readLong() }
+    }
+
+    @Test
+    fun testInt4() {
+        roundTrip(CopyType.INT4, -42) { it.readInt() }
+    }
+
+    @Test
+    fun testInt2() {
+        roundTrip(CopyType.INT2, (-1234).toShort()) { it.readShort() }
+    }
+
+    @Test
+    fun testFloat8() {
+        roundTrip(CopyType.FLOAT8, -1.5e-300) { it.readDouble() }
+    }
+
+    @Test
+    fun testBool() {
+        roundTrip(CopyType.BOOL, true) { it.readByte() == 1.toByte() }
+        roundTrip(CopyType.BOOL, false) { it.readByte() == 1.toByte() }
+    }
+
+    @Test
+    fun testText() {
+        val value = "zażółć gęślą jaźń 😀"
+        val decoded = decode(CopyType.TEXT, value) { input, length ->
+            String(ByteArray(length).also { input.readFully(it) }, Charsets.UTF_8)
+        }
+        Assert.assertEquals(value, decoded)
+    }
+
+    @Test
+    fun testBytea() {
+        val value = byteArrayOf(0, -1, 127, -128)
+        val decoded = decode(CopyType.BYTEA, value) { input, length -> ByteArray(length).also { input.readFully(it) } }
+        Assert.assertArrayEquals(value, decoded)
+    }
+
+    @Test
+    fun testDate() {
+        listOf(LocalDate.of(2000, 1, 1), LocalDate.of(1969, 7, 20), LocalDate.of(2038, 1, 19)).forEach { value ->
+            roundTrip(CopyType.DATE, value) { pgEpoch.toLocalDate().plusDays(it.readInt().toLong()) }
+        }
+    }
+
+    @Test
+    fun testTimestamptz() {
+        val value = OffsetDateTime.of(1989, 11, 9, 18, 53, 0, 123_456_000, ZoneOffset.ofHours(1))
+        val decoded = decode(CopyType.TIMESTAMPTZ, value) { input, _ ->
+            OffsetDateTime.of(pgEpoch, ZoneOffset.UTC).plusNanos(input.readLong() * 1_000)
+        }
+        Assert.assertTrue(value.isEqual(decoded))
+    }
+
+    @Test
+    fun testTime() {
+        val value = LocalTime.of(23, 59, 59, 999_999_000)
+        roundTrip(CopyType.TIME, value) { LocalTime.ofNanoOfDay(it.readLong() * 1_000) }
+    }
+
+    @Test
+    fun testEveryCopyTypeIsCovered() {
+        val covered = setOf(
+                CopyType.UUID, CopyType.INT8, CopyType.INT4, CopyType.INT2, CopyType.FLOAT8, CopyType.BOOL,
+                CopyType.TEXT, CopyType.BYTEA, CopyType.DATE, CopyType.TIMESTAMPTZ, CopyType.TIME
+        )
+        Assert.assertEquals(CopyType.values().toSet(), covered)
+        Assert.assertNull(CopyType.forDatatype(EdmPrimitiveTypeKind.Binary))
+    }
+
+    @Test
+    fun testDuplicateKeysAreStagedOnce() {
+        val entitySetId = UUID.randomUUID()
+        val propertyTypeId = UUID.randomUUID()
+        val first = UUID.randomUUID()
+        val second = UUID.randomUUID()
+        val staged = StagedPropertyValues(entitySetId, propertyTypeId, CopyType.TEXT)
+
+        Assert.assertTrue(staged.add(first, 3, byteArrayOf(1, 2), "a"))
+        Assert.assertFalse(staged.add(first, 3, byteArrayOf(1, 2), "a"))
+        Assert.assertTrue(staged.add(first, 3, byteArrayOf(1, 3), "b"))
+        Assert.assertTrue(staged.add(second, 5, byteArrayOf(1, 2), "a"))
+        Assert.assertEquals(3, staged.size)
+
+        val out = ByteArrayOutputStream()
+        staged.writeTo(out)
+        val input = DataInputStream(ByteArrayInputStream(out.toByteArray()))
+        val signature = ByteArray(COPY_SIGNATURE.size).also { input.readFully(it) }
+        Assert.assertArrayEquals(COPY_SIGNATURE, signature)
+        Assert.assertEquals(0, input.readInt())
+        Assert.assertEquals(0, input.readInt())
+
+        val rows = (1..3).map {
+            Assert.assertEquals(StagedPropertyValues.STAGING_COLUMNS.size + 1, input.readShort().toInt())
+            Assert.assertEquals(16, input.readInt())
+            Assert.assertEquals(entitySetId, UUID(input.readLong(), input.readLong()))
+            Assert.assertEquals(16, input.readInt())
+            val entityKeyId = UUID(input.readLong(), input.readLong())
+            Assert.assertEquals(4, input.readInt())
+            val partition = input.readInt()
+            Assert.assertEquals(16, input.readInt())
+            Assert.assertEquals(propertyTypeId, UUID(input.readLong(), input.readLong()))
+            val hash = ByteArray(input.readInt()).also { input.readFully(it) }
+            val value = String(ByteArray(input.readInt()).also { input.readFully(it) }, Charsets.UTF_8)
+            listOf(entityKeyId, partition, hash.toList(), value)
+        }
+        Assert.assertEquals(-1, input.readShort().toInt())
+        Assert.assertEquals(-1, input.read())
+        Assert.assertEquals(
+                listOf(
+                        listOf(first, 3, listOf<Byte>(1, 2), "a"),
+                        listOf(first, 3, listOf<Byte>(1, 3), "b"),
+                        listOf(second, 5, listOf<Byte>(1, 2), "a")
+                ),
+                rows
+        )
+    }
+
+    private fun <T : Any> roundTrip(type: CopyType, value: T, read: (DataInputStream) -> Any) {
+        Assert.assertEquals(value, decode(type, value) { input, _ -> read(input) })
+    }
+
+    private fun <R> decode(type: CopyType, value: Any, read: (DataInputStream, Int) -> R): R {
+        val out = ByteArrayOutputStream()
+        DataOutputStream(out).use { type.write(it, value) }
+        val input = DataInputStream(ByteArrayInputStream(out.toByteArray()))
+        val length = input.readInt()
+        Assert.assertEquals(out.size() - Int.SIZE_BYTES, length)
+        val decoded = read(input, length)
+        Assert.assertEquals("Decoding must consume the whole value.", -1, input.read())
+        return decoded
+    }
+}
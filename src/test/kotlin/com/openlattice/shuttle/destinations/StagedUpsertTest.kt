@@ -0,0 +1,180 @@
+package com.openlattice.shuttle.destinations
+
+import com.openlattice.data.PropertyUpdateType
+import com.openlattice.data.storage.partitions.getPartition
+import com.openlattice.data.storage.postgres.upsertPropertyValueSql
+import com.openlattice.data.util.PostgresDataHasher
+import com.openlattice.edm.type.PropertyType
+import com.openlattice.postgres.IndexType
+import com.openlattice.postgres.PostgresTable.DATA
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
+import org.junit.After
+import org.junit.Assert
+import org.junit.Assume
+import org.junit.Before
+import org.junit.Test
+import org.mockito.Mockito
+import java.sql.Connection
+import java.sql.DriverManager
+import java.util.*
+
+/**
+ * Writes the same property values with the batched single row upsert and with the staged upsert, into data tables of
+ * two schemas, and compares the rows they leave. Runs against the postgres database at the jdbc url in the
+ * SHUTTLE_TEST_POSTGRES_URL environment variable, and is skipped when it is not set.
+ */
+class StagedUpsertTest {
+    private val entitySetId = UUID.randomUUID()
+    private val partitions = listOf(1, 2, 3)
+    private val entityKeyIds = (0 until 20).map { UUID.randomUUID() }
+    private val suffix = UUID.randomUUID().toString().replace("-", "").take(12)
+    private val batchedSchema = "shuttle_batched_$suffix"
+    private val stagedSchema = "shuttle_staged_$suffix"
+    private lateinit var connection: Connection
+
+    @Before
+    fun connect() {
+        val url = System.getenv("SHUTTLE_TEST_POSTGRES_URL")
+        Assume.assumeTrue("SHUTTLE_TEST_POSTGRES_URL is not set.", !url.isNullOrBlank())
+        connection = DriverManager.getConnection(url)
+        connection.createStatement().use { stmt ->
+            listOf(batchedSchema, stagedSchema).forEach { schema ->
+                stmt.execute("CREATE SCHEMA $schema")
+                stmt.execute("SET search_path TO $schema")
+                stmt.execute(DATA.createTableQuery())
+            }
+        }
+        connection.autoCommit = false
+    }
+
+    @After
+    fun dropSchemas() {
+        if (!this::connection.isInitialized) {
+            return
+        }
+        connection.rollback()
+        connection.autoCommit = true
+        connection.createStatement().use { stmt ->
+            listOf(batchedSchema, stagedSchema).forEach { stmt.execute("DROP SCHEMA IF EXISTS $it CASCADE") }
+        }
+        connection.close()
+    }
+
+    @Test
+    fun testVersionedUpsertsLeaveIdenticalRows() {
+        assertIdenticalRows(PropertyUpdateType.Versioned)
+    }
+
+    @Test
+    fun testUnversionedUpsertsLeaveIdenticalRows() {
+        assertIdenticalRows(PropertyUpdateType.Unversioned)
+    }
+
+    @Test
+    fun testStagedUpsertCountsEveryStatement() {
+        val propertyType = propertyType()
+        val stats = WriteStats()
+        useSchema(stagedSchema)
+        writeStaged(propertyType, PropertyUpdateType.Versioned, 1L, mapOf(entityKeyIds[0] to "a"), stats)
+
+        // create, truncate, copy and upsert.
+        Assert.assertEquals(4, stats.roundTrips.get())
+    }
+
+    /**
+     * Writes a first version of every value, then a second version that overwrites half of the values and adds new
+     * ones, so that both the insert and the conflict branches of the upserts are compared.
+     */
+    private fun assertIdenticalRows(propertyUpdateType: PropertyUpdateType) {
+        val propertyType = propertyType()
+        val first = entityKeyIds.associateWith { "first $it" }
+        val second = entityKeyIds.filterIndexed { index, _ -> index % 2 == 0 }.associateWith { "second $it" }
+
+        useSchema(batchedSchema)
+        writeBatched(propertyType, propertyUpdateType, 1L, first)
+        writeBatched(propertyType, propertyUpdateType, 2L, second)
+        useSchema(stagedSchema)
+        writeStaged(propertyType, propertyUpdateType, 1L, first, WriteStats())
+        writeStaged(propertyType, propertyUpdateType, 2L, second, WriteStats())
+
+        // both schemas are written in the same transaction, so their last writes are the same now().
+        val batched = rows(batchedSchema)
+        Assert.assertEquals(first.size + second.size, batched.size)
+        Assert.assertEquals(batched, rows(stagedSchema))
+    }
+
+    private fun writeBatched(
+            propertyType: PropertyType,
+            propertyUpdateType: PropertyUpdateType,
+            version: Long,
+            values: Map<UUID, String>
+    ) {
+        val versionArray = connection.createArrayOf("bigint", arrayOf(version))
+        connection.prepareStatement(upsertPropertyValueSql(propertyType, propertyUpdateType)).use { ps ->
+            values.forEach { (entityKeyId, value) ->
+                bindPropertyValue(
+                        ps,
+                        entitySetId,
+                        entityKeyId,
+                        propertyType.id,
+                        propertyType.datatype,
+                        value,
+                        version,
+                        versionArray
+                )
+            }
+            ps.executeBatch()
+        }
+    }
+
+    private fun writeStaged(
+            propertyType: PropertyType,
+            propertyUpdateType: PropertyUpdateType,
+            version: Long,
+            values: Map<UUID, String>,
+            stats: WriteStats
+    ) {
+        val versionArray = connection.createArrayOf("bigint", arrayOf(version))
+        val staged = StagedPropertyValues(entitySetId, propertyType.id, CopyType.TEXT)
+        values.forEach { (entityKeyId, value) ->
+            staged.add(
+                    entityKeyId,
+                    getPartition(entityKeyId, partitions),
+                    PostgresDataHasher.hashObject(value, propertyType.datatype),
+                    value
+            )
+        }
+        upsertStaged(connection, staged, propertyType, version, versionArray, propertyUpdateType, stats)
+    }
+
+    private fun rows(schema: String): List<List<Any?>> {
+        return connection.createStatement().use { stmt ->
+            stmt.executeQuery("SELECT * FROM $schema.${DATA.name}").use { rs ->
+                val rows = mutableListOf<List<Any?>>()
+                while (rs.next()) {
+                    rows.add((1..rs.metaData.columnCount).map { column ->
+                        when (val value = rs.getObject(column)) {
+                            is java.sql.Array -> (value.array as Array<*>).toList()
+                            is ByteArray -> value.toList()
+                            else -> value
+                        }
+                    })
+                }
+                rows.sortedBy { it.toString() }
+            }
+        }
+    }
+
+    private fun useSchema(schema: String) {
+        connection.createStatement().use { it.execute("SET search_path TO $schema") }
+    }
+
+    private fun propertyType(): PropertyType {
+        val propertyType = Mockito.mock(PropertyType::class.java)
+        val id = UUID.randomUUID()
+        Mockito.`when`(propertyType.id).thenReturn(id)
+        Mockito.`when`(propertyType.datatype).thenReturn(EdmPrimitiveTypeKind.String)
+        Mockito.`when`(propertyType.postgresIndexType).thenReturn(IndexType.NONE)
+        return propertyType
+    }
+}
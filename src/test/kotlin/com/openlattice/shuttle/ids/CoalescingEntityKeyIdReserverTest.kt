@@ -0,0 +1,180 @@
+package com.openlattice.shuttle.ids
+
+import com.openlattice.data.EntityKey
+import com.openlattice.shuttle.EntityKeyIdReservationConfiguration
+import org.junit.After
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+class CoalescingEntityKeyIdReserverTest {
+    private val entitySetId = UUID.randomUUID()
+    private val calls = ConcurrentLinkedQueue<Set<EntityKey>>()
+    private val callers = Executors.newCachedThreadPool()
+
+    @After
+    fun shutdownCallers() {
+        callers.shutdownNow()
+    }
+
+    @Test
+    fun testCoalescesConcurrentReservations() {
+        val configuration = EntityKeyIdReservationConfiguration(windowMillis = 200, maxBatchSize = 1_000)
+        CoalescingEntityKeyIdReserver(::recordingReserver, configuration).use { reserver ->
+            val start = CountDownLatch(1)
+            val reservations = (0 until 8).map { caller ->
+                reserveAsync {
+                    start.await()
+                    reserver.reserve((0 until 10).map { EntityKey(entitySetId, "$caller-$it") }.toSet())
+                }
+            }
+            start.countDown()
+
+            reservations.map { it.get(10, TimeUnit.SECONDS) }.forEach { entityKeyIds ->
+                Assert.assertEquals(10, entityKeyIds.size)
+                entityKeyIds.forEach { (entityKey, id) -> Assert.assertEquals(idOf(entityKey), id) }
+            }
+            Assert.assertTrue("Expected fewer calls than callers, made ${calls.size}.", calls.size < 8)
+            Assert.assertEquals(80, calls.sumOf { it.size })
+            Assert.assertTrue(reserver.averageBatchSize() > 10.0)
+        }
+    }
+
+    @Test
+    fun testSplitsCallsAtMaxBatchSize() {
+        val configuration = EntityKeyIdReservationConfiguration(windowMillis = 50, maxBatchSize = 7)
+        CoalescingEntityKeyIdReserver(::recordingReserver, configuration).use { reserver ->
+            val entityKeys = (0 until 20).map { EntityKey(entitySetId, "$it") }.toSet()
+
+            Assert.assertEquals(entityKeys.associateWith(::idOf), reserver.reserve(entityKeys))
+            Assert.assertTrue(calls.all { it.size <= 7 })
+            Assert.assertEquals(20, calls.sumOf { it.size })
+        }
+    }
+
+    @Test
+    fun testKeysInFlightAreNotRequestedAgain() {
+        val shared = EntityKey(entitySetId, "shared")
+        val other = EntityKey(entitySetId, "other")
+        val blocked = CountDownLatch(1)
+        val unblock = CountDownLatch(1)
+        val reserve = { entityKeys: Set<EntityKey> ->
+            if (shared in entityKeys) {
+                blocked.countDown()
+                unblock.await()
+            }
+            recordingReserver(entityKeys)
+        }
+        CoalescingEntityKeyIdReserver(reserve, EntityKeyIdReservationConfiguration(windowMillis = 1)).use { reserver ->
+            val first = reserveAsync { reserver.reserve(setOf(shared)) }
+            Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS))
+
+            // only the other key is requested, by a call of its own, while the shared key is still in flight.
+            val second = reserveAsync { reserver.reserve(setOf(shared, other)) }
+            while (calls.none { other in it }) {
+                Thread.sleep(5)
+            }
+            unblock.countDown()
+
+            Assert.assertEquals(mapOf(shared to idOf(shared)), first.get(10, TimeUnit.SECONDS))
+            Assert.assertEquals(
+                    mapOf(shared to idOf(shared), other to idOf(other)),
+                    second.get(10, TimeUnit.SECONDS)
+            )
+            Assert.assertEquals(listOf(setOf(other), setOf(shared)), calls.toList())
+        }
+    }
+
+    @Test
+    fun testFailedCallsFailEveryWaitingCaller() {
+        val failure = IllegalStateException("id service unavailable")
+        val failing = AtomicBoolean(true)
+        val reserve = { entityKeys: Set<EntityKey> ->
+            if (failing.get()) {
+                throw failure
+            }
+            recordingReserver(entityKeys)
+        }
+        CoalescingEntityKeyIdReserver(reserve, EntityKeyIdReservationConfiguration(windowMillis = 100)).use { reserver ->
+            val entityKey = EntityKey(entitySetId, "failed")
+            val reservations = (0 until 4).map { reserveAsync { reserver.reserve(setOf(entityKey)) } }
+
+            reservations.forEach { reservation ->
+                try {
+                    reservation.get(10, TimeUnit.SECONDS)
+                    Assert.fail("Reservation should have failed.")
+                } catch (ex: ExecutionException) {
+                    Assert.assertSame(failure, ex.cause)
+                }
+            }
+
+            // failed keys are no longer in flight, so they are requested again.
+            failing.set(false)
+            Assert.assertEquals(mapOf(entityKey to idOf(entityKey)), reserver.reserve(setOf(entityKey)))
+        }
+    }
+
+    @Test
+    fun testMissingIdsFailTheReservation() {
+        val reserve = { entityKeys: Set<EntityKey> -> entityKeys.drop(1).map(::idOf) }
+        CoalescingEntityKeyIdReserver(reserve, EntityKeyIdReservationConfiguration()).use { reserver ->
+            try {
+                reserver.reserve(setOf(EntityKey(entitySetId, "a"), EntityKey(entitySetId, "b")))
+                Assert.fail("Reservation should have failed.")
+            } catch (ex: IllegalStateException) {
+                Assert.assertEquals("Requested 2 entity key ids, but received 1.", ex.message)
+            }
+        }
+    }
+
+    @Test
+    fun testCloseWaitsForCallsInFlightForAtMostTheTimeout() {
+        val blocked = CountDownLatch(1)
+        val reserve = { _: Set<EntityKey> ->
+            blocked.countDown()
+            Thread.sleep(TimeUnit.MINUTES.toMillis(10))
+            listOf<UUID>()
+        }
+        val reserver = CoalescingEntityKeyIdReserver(
+                reserve,
+                EntityKeyIdReservationConfiguration(windowMillis = 1, closeTimeoutMillis = 100)
+        )
+        val reservation = reserveAsync { reserver.reserve(setOf(EntityKey(entitySetId, "slow"))) }
+        Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS))
+
+        val closing = System.nanoTime()
+        reserver.close()
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - closing) < 5)
+
+        try {
+            reservation.get(10, TimeUnit.SECONDS)
+            Assert.fail("Reservation should have failed.")
+        } catch (ex: ExecutionException) {
+            // failed by close, or by the interrupted call.
+        }
+        try {
+            reserver.reserve(setOf(EntityKey(entitySetId, "late")))
+            Assert.fail("Closed reserver should not accept reservations.")
+        } catch (ex: IllegalStateException) {
+            Assert.assertEquals("Entity key id reserver has been closed.", ex.message)
+        }
+    }
+
+    private fun idOf(entityKey: EntityKey): UUID = UUID.nameUUIDFromBytes(entityKey.entityId.toByteArray())
+
+    private fun recordingReserver(entityKeys: Set<EntityKey>): Iterable<UUID> {
+        calls.add(entityKeys)
+        return entityKeys.map(::idOf)
+    }
+
+    private fun reserveAsync(reserve: () -> Map<EntityKey, UUID>): CompletableFuture<Map<EntityKey, UUID>> {
+        return CompletableFuture.supplyAsync({ reserve() }, callers)
+    }
+}
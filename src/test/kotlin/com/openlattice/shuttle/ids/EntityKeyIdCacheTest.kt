@@ -0,0 +1,46 @@
+package com.openlattice.shuttle.ids
+
+import com.openlattice.data.EntityKey
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+
+class EntityKeyIdCacheTest {
+    private val entitySetId = UUID.randomUUID()
+
+    @Test
+    fun testOnHeapCache() {
+        verifyCache(OnHeapEntityKeyIdCache(1_000))
+    }
+
+    @Test
+    fun testOffHeapCache() {
+        verifyCache(OffHeapEntityKeyIdCache(1_000))
+    }
+
+    @Test
+    fun testOffHeapCacheEvictsWhenFull() {
+        val cache = OffHeapEntityKeyIdCache(1_000)
+        val entityKeyIds = (0 until 10_000).associate { EntityKey(entitySetId, "$it") to UUID.randomUUID() }
+        cache.putAll(entityKeyIds)
+
+        val cached = cache.getAll(entityKeyIds.keys)
+        Assert.assertTrue(cached.isNotEmpty())
+        Assert.assertTrue(cache.stats().size <= 64 * (1_000 / 64 + 1))
+        cached.forEach { (entityKey, id) -> Assert.assertEquals(entityKeyIds.getValue(entityKey), id) }
+    }
+
+    private fun verifyCache(cache: EntityKeyIdCache) {
+        val entityKeyIds = (0 until 100).associate { EntityKey(entitySetId, "$it") to UUID.randomUUID() }
+        val missing = EntityKey(entitySetId, "missing")
+
+        Assert.assertTrue(cache.getAll(entityKeyIds.keys).isEmpty())
+        cache.putAll(entityKeyIds)
+
+        Assert.assertEquals(entityKeyIds, cache.getAll(entityKeyIds.keys + missing))
+        val stats = cache.stats()
+        Assert.assertEquals(100L, stats.hits)
+        Assert.assertEquals(101L, stats.misses)
+        Assert.assertEquals(100L, stats.size)
+    }
+}
@@ -0,0 +1,42 @@
+package com.openlattice.shuttle.ids
+
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+
+class HashedEntityIdsTest {
+    private val first = UUID.randomUUID()
+    private val second = UUID.randomUUID()
+    private val key = linkedSetOf(first, second)
+
+    @Test
+    fun testIdsHaveFixedLength() {
+        val short = HashedEntityIds.generate(key, mapOf(first to setOf("a")))
+        val long = HashedEntityIds.generate(key, mapOf(first to setOf("a".repeat(1_000)), second to setOf(42)))
+
+        Assert.assertEquals(22, short.length)
+        Assert.assertEquals(22, long.length)
+        Assert.assertTrue(short.matches(Regex("[A-Za-z0-9_-]+")))
+    }
+
+    @Test
+    fun testIdsAreStable() {
+        val properties = mapOf<UUID, Set<Any>>(first to setOf("a", "b"), second to setOf(1))
+
+        Assert.assertEquals(HashedEntityIds.generate(key, properties), HashedEntityIds.generate(key, properties))
+        Assert.assertEquals(
+                HashedEntityIds.generate(key, properties),
+                HashedEntityIds.generate(key, mapOf(first to linkedSetOf("b", "a"), second to setOf("1")))
+        )
+    }
+
+    @Test
+    fun testValueBoundariesChangeIds() {
+        val ab = HashedEntityIds.generate(key, mapOf(first to setOf("ab"), second to setOf("c")))
+        val bc = HashedEntityIds.generate(key, mapOf(first to setOf("a"), second to setOf("bc")))
+        val swapped = HashedEntityIds.generate(key, mapOf(first to setOf("c"), second to setOf("ab")))
+
+        Assert.assertNotEquals(ab, bc)
+        Assert.assertNotEquals(ab, swapped)
+    }
+}
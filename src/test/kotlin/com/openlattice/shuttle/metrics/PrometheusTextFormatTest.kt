@@ -0,0 +1,52 @@
+package com.openlattice.shuttle.metrics
+
+import com.codahale.metrics.Counter
+import com.codahale.metrics.Meter
+import com.codahale.metrics.Timer
+import org.junit.Assert
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class PrometheusTextFormatTest {
+
+    @Test
+    fun testCountersAndMetersAreTotals() {
+        val retries = Counter()
+        retries.inc(3)
+        val rows = Meter()
+        rows.mark(42)
+
+        val text = PrometheusTextFormat.render(
+            listOf(
+                TaggedName("retries", listOf(FLIGHT_TAG to "cases", STAGE_TAG to "entity-key-ids")) to retries,
+                TaggedName("rows-read", listOf(FLIGHT_TAG to "cases")) to rows
+            )
+        )
+
+        Assert.assertTrue(text.contains("# TYPE shuttle_retries_total counter\n"))
+        Assert.assertTrue(text.contains("shuttle_retries_total{flight=\"cases\",stage=\"entity-key-ids\"} 3.0\n"))
+        Assert.assertTrue(text.contains("# TYPE shuttle_rows_read_total counter\n"))
+        Assert.assertTrue(text.contains("shuttle_rows_read_total{flight=\"cases\"} 42.0\n"))
+    }
+
+    @Test
+    fun testTimersAreSummariesInSeconds() {
+        val timer = Timer()
+        timer.update(2, TimeUnit.SECONDS)
+
+        val text = PrometheusTextFormat.render(listOf(TaggedName("transform", listOf()) to timer))
+
+        Assert.assertTrue(text.contains("# TYPE shuttle_transform_seconds summary\n"))
+        Assert.assertTrue(text.contains("shuttle_transform_seconds{quantile=\"0.99\"} 2.0\n"))
+        Assert.assertTrue(text.contains("shuttle_transform_seconds_count 1.0\n"))
+    }
+
+    @Test
+    fun testLabelValuesAreEscaped() {
+        val text = PrometheusTextFormat.render(
+            listOf(TaggedName("uploads", listOf(ENTITY_SET_TAG to "a\"b\\c")) to Meter())
+        )
+
+        Assert.assertTrue(text.contains("shuttle_uploads_total{entity_set=\"a\\\"b\\\\c\"} 0.0\n"))
+    }
+}
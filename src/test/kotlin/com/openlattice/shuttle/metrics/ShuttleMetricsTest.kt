@@ -0,0 +1,33 @@
+package com.openlattice.shuttle.metrics
+
+import org.junit.Assert
+import org.junit.Test
+
+class ShuttleMetricsTest {
+
+    @Test
+    fun testReleasedFlightMetricsAreRemoved() {
+        val flight = FLIGHT_TAG to "released"
+        val other = FLIGHT_TAG to "other"
+        ShuttleMetrics.retain(flight)
+        ShuttleMetrics.retain(flight)
+        ShuttleMetrics.retain(other)
+        ShuttleMetrics.meter("rows-read", flight).mark()
+        ShuttleMetrics.meter("entities-written", flight, ENTITY_SET_TAG to "people").mark()
+        ShuttleMetrics.meter("rows-read", other).mark()
+
+        ShuttleMetrics.release(flight)
+        Assert.assertEquals(setOf("rows-read", "entities-written"), registeredNames(flight))
+
+        ShuttleMetrics.release(flight)
+        Assert.assertEquals(setOf<String>(), registeredNames(flight))
+        Assert.assertEquals(setOf("rows-read"), registeredNames(other))
+        Assert.assertEquals(0, ShuttleMetrics.meter("rows-read", flight).count)
+
+        ShuttleMetrics.release(other)
+    }
+
+    private fun registeredNames(tag: Pair<String, String>): Set<String> {
+        return ShuttleMetrics.taggedMetrics().map { it.first }.filter { tag in it.tags }.map { it.name }.toSet()
+    }
+}
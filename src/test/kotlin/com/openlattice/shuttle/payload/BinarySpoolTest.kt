@@ -0,0 +1,77 @@
+package com.openlattice.shuttle.payload
+
+import com.openlattice.data.util.PostgresDataHasher
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
+import org.junit.Assert
+import org.junit.Test
+import java.nio.file.Files
+import java.util.*
+
+class BinarySpoolTest {
+
+    @Test
+    fun testSpooledBinaryMatchesSource() {
+        val bytes = ByteArray(1024 * 1024).also { Random(7).nextBytes(it) }
+        BinarySpool(Files.createTempDirectory("spool")).use { spool ->
+            val binary = spool.spool(bytes.inputStream())
+
+            Assert.assertEquals(bytes.size.toLong(), binary.size)
+            Assert.assertEquals(bytes.size.toLong(), Files.size(binary.file))
+            Assert.assertArrayEquals(bytes, binary.readBytes())
+            Assert.assertArrayEquals(bytes, binary.openStream().use { it.readBytes() })
+        }
+    }
+
+    @Test
+    fun testSpooledHashMatchesPropertyHash() {
+        BinarySpool(Files.createTempDirectory("spool")).use { spool ->
+            listOf(0, 1, 15, 16, 17, 4096).forEach { size ->
+                val bytes = ByteArray(size).also { Random(size.toLong()).nextBytes(it) }
+                Assert.assertEquals(
+                        PostgresDataHasher.hashObjectToHex(bytes, EdmPrimitiveTypeKind.Binary),
+                        spool.spool(bytes.inputStream()).hash
+                )
+            }
+        }
+    }
+
+    @Test
+    fun testSpooledFilesAreDeleted() {
+        val root = Files.createTempDirectory("spool")
+        val stale = Files.createDirectories(root.resolve("spool-stale")).resolve("binary.bin")
+        Files.write(stale, byteArrayOf(1, 2, 3))
+
+        BinarySpool.clear(root)
+        Assert.assertFalse(Files.exists(stale))
+
+        val spool = BinarySpool(root)
+        val deleted = spool.spool(byteArrayOf(1).inputStream())
+        val kept = spool.spool(byteArrayOf(2).inputStream())
+
+        deleted.delete()
+        Assert.assertFalse(Files.exists(deleted.file))
+        Assert.assertTrue(Files.exists(kept.file))
+
+        spool.close()
+        Assert.assertFalse(Files.exists(kept.file))
+        Assert.assertEquals(0L, Files.list(root).use { it.count() })
+    }
+
+    @Test
+    fun testMaterializedRowReadsSpooledBinariesAsBytes() {
+        val bytes = byteArrayOf(1, 2, 3)
+        BinarySpool(Files.createTempDirectory("spool")).use { spool ->
+            val binary = spool.spool(bytes.inputStream())
+            val spooled = IndexedRow(RowSchema(listOf("id", "photo")), arrayOf("1", binary))
+            val row = MaterializedRow(spooled)
+
+            Assert.assertSame(binary, row.spooled["photo"])
+            Assert.assertEquals("1", row["id"])
+            Assert.assertArrayEquals(bytes, row["photo"] as ByteArray)
+            Assert.assertSame(row["photo"], row["photo"])
+            Assert.assertTrue(row.values.none { it is SpooledBinary })
+            Assert.assertEquals(setOf("id", "photo"), row.keys)
+            Assert.assertNull(row["missing"])
+        }
+    }
+}
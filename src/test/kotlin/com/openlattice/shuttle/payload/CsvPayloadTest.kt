@@ -0,0 +1,97 @@
+package com.openlattice.shuttle.payload
+
+import com.openlattice.shuttle.util.CsvUtil
+import org.junit.Assert
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+/**
+ * Csv files are compared with what a jackson header schema reads from them, which is how flights read csv files
+ * before rows were indexed.
+ */
+class CsvPayloadTest {
+
+    @Test
+    fun testReadsRowsInFileOrder() {
+        val rows = assertReadsLikeHeaderSchema("id,name\n1,Ada\n2,Grace\n")
+
+        Assert.assertEquals(listOf(mapOf("id" to "1", "name" to "Ada"), mapOf("id" to "2", "name" to "Grace")), rows)
+    }
+
+    @Test
+    fun testDuplicateHeaderNames() {
+        assertReadsLikeHeaderSchema("id,name,id\n1,Ada,2\n3,Grace\n")
+    }
+
+    @Test
+    fun testTrimsHeaderNames() {
+        val rows = assertReadsLikeHeaderSchema("id , name\n1,Ada\n")
+
+        Assert.assertEquals(listOf(mapOf("id" to "1", "name" to "Ada")), rows)
+    }
+
+    @Test
+    fun testRowsShorterThanHeader() {
+        val rows = assertReadsLikeHeaderSchema("id,name,dob\n1,Ada\n2\n")
+
+        Assert.assertEquals(listOf(mapOf("id" to "1", "name" to "Ada"), mapOf("id" to "2")), rows)
+    }
+
+    @Test
+    fun testRowsLongerThanHeader() {
+        val file = csv("id,name\n1,Ada,1815-12-10\n")
+
+        assertFails { readHeaderSchema(file) }
+        assertFails { CsvPayload(file.path).getPayload().toList() }
+    }
+
+    @Test
+    fun testTrailingCommas() {
+        val rows = assertReadsLikeHeaderSchema("id,name,\n1,Ada,\n2,Grace\n")
+
+        Assert.assertEquals(listOf(mapOf("id" to "1", "name" to "Ada"), mapOf("id" to "2", "name" to "Grace")), rows)
+    }
+
+    @Test
+    fun testBlankLines() {
+        assertReadsLikeHeaderSchema("id,name\n1,Ada\n\n2,Grace\n\n")
+    }
+
+    @Test
+    fun testEmptyFile() {
+        Assert.assertEquals(listOf<Map<String, Any?>>(), CsvPayload(csv("").path).getPayload().toList())
+    }
+
+    private fun assertReadsLikeHeaderSchema(contents: String): List<Map<String, Any?>> {
+        val file = csv(contents)
+        val rows = CsvPayload(file.path).getPayload().toList()
+        Assert.assertEquals(readHeaderSchema(file), rows)
+        return rows
+    }
+
+    private fun readHeaderSchema(file: File): List<Map<String, Any?>> {
+        return CsvUtil.newDefaultMapper()
+                .readerFor(Map::class.java)
+                .with(CsvUtil.newDefaultSchemaFromHeader())
+                .readValues<Map<String, Any?>>(file)
+                .asSequence()
+                .toList()
+    }
+
+    private fun csv(contents: String): File {
+        val file = Files.createTempFile("payload", ".csv").toFile()
+        file.deleteOnExit()
+        file.writeText(contents)
+        return file
+    }
+
+    private fun assertFails(read: () -> Unit) {
+        try {
+            read()
+            Assert.fail("Reading a row longer than the header should fail.")
+        } catch (ex: RuntimeException) {
+            // jackson and csv payload fail with different exceptions.
+        }
+    }
+}
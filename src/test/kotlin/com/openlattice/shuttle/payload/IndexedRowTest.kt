@@ -0,0 +1,85 @@
+package com.openlattice.shuttle.payload
+
+import org.junit.Assert
+import org.junit.Test
+import java.nio.file.Files
+
+class IndexedRowTest {
+    private val schema = RowSchema(listOf("id", "name", "dob"))
+
+    @Test
+    fun testEqualsAndHashCodeMatchHashMap() {
+        val row = IndexedRow(schema, arrayOf("1", null, "1970-01-01"))
+        val expected = hashMapOf<String, Any?>("id" to "1", "name" to null, "dob" to "1970-01-01")
+
+        Assert.assertEquals(expected, row)
+        Assert.assertEquals(row, expected)
+        Assert.assertEquals(expected.hashCode(), row.hashCode())
+        Assert.assertNotEquals(hashMapOf<String, Any?>("id" to "1", "dob" to "1970-01-01"), row)
+        Assert.assertNotEquals(IndexedRow(schema, arrayOf("2", null, "1970-01-01")), row)
+    }
+
+    @Test
+    fun testEntriesAndSize() {
+        val row = IndexedRow(schema, arrayOf("1", "Ada", null))
+
+        Assert.assertEquals(3, row.size)
+        Assert.assertEquals(3, row.entries.size)
+        Assert.assertEquals(listOf("id", "name", "dob"), row.entries.map { it.key })
+        Assert.assertEquals(listOf("1", "Ada", null), row.entries.map { it.value })
+        Assert.assertEquals(row.keys, setOf("id", "name", "dob"))
+        Assert.assertTrue(row.containsKey("dob"))
+        Assert.assertNull(row["dob"])
+        Assert.assertFalse(row.containsKey("missing"))
+        Assert.assertNull(row["missing"])
+        Assert.assertEquals("Ada", row[1])
+        Assert.assertNull(row[-1])
+        Assert.assertNull(row[3])
+    }
+
+    @Test
+    fun testDuplicateColumnNamesResolveToFirstColumn() {
+        val duplicates = RowSchema(listOf("id", "name", "id"))
+        val row = IndexedRow(duplicates, arrayOf("1", "Ada", "2"))
+
+        Assert.assertEquals(0, duplicates.indexOf("id"))
+        Assert.assertArrayEquals(intArrayOf(0, 1), duplicates.distinctIndices)
+        Assert.assertEquals("1", row["id"])
+        Assert.assertEquals("2", row[2])
+        Assert.assertEquals(2, row.size)
+        Assert.assertEquals(2, row.entries.size)
+        Assert.assertEquals(hashMapOf<String, Any?>("id" to "1", "name" to "Ada"), row)
+    }
+
+    @Test
+    fun testShortRowsOmitMissingColumns() {
+        val row = IndexedRow(schema, arrayOf("1"))
+
+        Assert.assertEquals(1, row.size)
+        Assert.assertFalse(row.containsKey("name"))
+        Assert.assertNull(row["name"])
+        Assert.assertNull(row[1])
+        Assert.assertEquals(hashMapOf<String, Any?>("id" to "1"), row)
+        Assert.assertEquals(hashMapOf<String, Any?>("id" to "1").hashCode(), row.hashCode())
+    }
+
+    @Test
+    fun testShortCsvLines() {
+        val csv = Files.createTempFile("short-lines", ".csv")
+        Files.write(csv, listOf("id,name,dob", "1,Ada,1815-12-10", "2,Alan"))
+        try {
+            val rows = CsvPayload(csv.toString()).getPayload().toList()
+
+            Assert.assertEquals(
+                    listOf(
+                            mapOf("id" to "1", "name" to "Ada", "dob" to "1815-12-10"),
+                            mapOf("id" to "2", "name" to "Alan")
+                    ),
+                    rows
+            )
+            Assert.assertFalse(rows[1].containsKey("dob"))
+        } finally {
+            Files.delete(csv)
+        }
+    }
+}
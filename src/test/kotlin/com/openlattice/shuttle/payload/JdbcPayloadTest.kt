@@ -0,0 +1,40 @@
+package com.openlattice.shuttle.payload
+
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mockito
+import java.sql.ResultSet
+import java.sql.SQLException
+import java.sql.Timestamp
+import java.time.Instant
+
+class JdbcPayloadTest {
+    private val schema = RowSchema(listOf("id", "name", "updated", "id"))
+
+    @Test
+    fun testReadsFirstColumnOfEachName() {
+        val rs = Mockito.mock(ResultSet::class.java)
+        Mockito.`when`(rs.getObject(1)).thenReturn(1)
+        Mockito.`when`(rs.getObject(2)).thenReturn(null)
+        Mockito.`when`(rs.getObject(3)).thenReturn(Timestamp.from(Instant.EPOCH))
+        Mockito.`when`(rs.getObject(4)).thenReturn(2)
+
+        val row = read(schema, rs, BooleanArray(schema.size), null)
+
+        Assert.assertEquals(mapOf("id" to "1", "name" to null, "updated" to "1970-01-01T00:00Z"), row)
+        Mockito.verify(rs, Mockito.never()).getObject(4)
+    }
+
+    @Test
+    fun testUnreadableColumnsHoldUnit() {
+        val rs = Mockito.mock(ResultSet::class.java)
+        Mockito.`when`(rs.getObject(1)).thenReturn("1")
+        Mockito.`when`(rs.getObject(2)).thenThrow(SQLException("unsupported type"))
+        Mockito.`when`(rs.getObject(3)).thenReturn(null)
+
+        val row = read(schema, rs, BooleanArray(schema.size), null)
+
+        Assert.assertEquals(mapOf("id" to "1", "name" to Unit, "updated" to null), row)
+        Assert.assertTrue(row.containsKey("name"))
+    }
+}
@@ -0,0 +1,96 @@
+package com.openlattice.shuttle.quarantine
+
+import org.junit.Assert
+import org.junit.Test
+import java.net.ConnectException
+import java.net.SocketTimeoutException
+import java.nio.file.Files
+import java.sql.BatchUpdateException
+import java.sql.SQLException
+import java.sql.SQLTransientConnectionException
+import java.time.format.DateTimeParseException
+
+class QuarantineTest {
+
+    @Test
+    fun testBisectIsolatesFailingItems() {
+        val items = (0 until 1_000).toList()
+        val bad = setOf(3, 500, 999)
+        val accepted = mutableListOf<Int>()
+        val rejected = mutableListOf<Int>()
+        var calls = 0
+        val action = { slice: List<Int> ->
+            calls++
+            require(slice.none { it in bad }) { "bad item" }
+            slice.size
+        }
+
+        bisect(
+                items,
+                IllegalArgumentException("bad item"),
+                action,
+                { accepted += it },
+                { item, _ -> rejected += item }
+        )
+
+        Assert.assertEquals(bad, rejected.toSet())
+        Assert.assertEquals(items.size - bad.size, accepted.sum())
+        Assert.assertTrue("Took $calls calls to isolate ${bad.size} items.", calls < 3 * 2 * 10)
+    }
+
+    @Test
+    fun testBisectRethrowsFailuresThatAreNotIsolatable() {
+        val items = (0 until 100).toList()
+        val rejected = mutableListOf<Int>()
+        val outage = SQLException("Connection refused", "08001")
+        try {
+            bisect(
+                    items = items,
+                    failure = IllegalArgumentException("bad item"),
+                    action = { slice: List<Int> -> if (slice.contains(42)) throw outage else slice.size },
+                    accept = {},
+                    reject = { item, _ -> rejected += item },
+                    isolatable = ::isDataError
+            )
+            Assert.fail("The outage should have been rethrown.")
+        } catch (ex: SQLException) {
+            Assert.assertSame(outage, ex)
+        }
+        Assert.assertTrue(rejected.isEmpty())
+    }
+
+    @Test
+    fun testClassifiesErrors() {
+        val constraintViolation = BatchUpdateException("Batch entry 0 was aborted", "23505", IntArray(0))
+        constraintViolation.nextException = SQLException("duplicate key value", "23505")
+        Assert.assertTrue(isDataError(constraintViolation))
+        Assert.assertTrue(isDataError(SQLException("invalid input syntax for type uuid", "22P02")))
+        Assert.assertTrue(isDataError(IllegalStateException("Unable to parse", NumberFormatException("x"))))
+        Assert.assertTrue(isDataError(DateTimeParseException("bad date", "2020-13-01", 5)))
+
+        Assert.assertFalse(isDataError(SQLException("Connection refused", "08001")))
+        Assert.assertFalse(isDataError(SQLTransientConnectionException("Connection is not available")))
+        Assert.assertFalse(isDataError(RuntimeException(SocketTimeoutException("Read timed out"))))
+        Assert.assertFalse(isDataError(IllegalArgumentException("bad value", ConnectException("refused"))))
+        Assert.assertTrue(isTransientError(SQLException("deadlock detected", "40P01")))
+        Assert.assertFalse(isTransientError(NumberFormatException("x")))
+    }
+
+    @Test
+    fun testQuarantinedRecordsAreWrittenAsJsonLines() {
+        val file = Files.createTempDirectory("quarantine").resolve("dead-letters.jsonl")
+        Quarantine(file, 1).use { quarantine ->
+            quarantine.add("cases", 1, "transform", "cases (case)", mapOf("id" to "1"), NumberFormatException("x"))
+            quarantine.add("cases", 2, "transform", "cases (case)", mapOf("id" to "2"), NumberFormatException("y"))
+
+            Assert.assertEquals(2L, quarantine.count("cases"))
+            Assert.assertEquals(0L, quarantine.count("people"))
+            Assert.assertTrue(quarantine.summary("cases").contains("2 at transform cases (case)"))
+        }
+
+        val lines = Files.readAllLines(file)
+        Assert.assertEquals(2, lines.size)
+        Assert.assertTrue(lines[0].contains("\"flightName\":\"cases\""))
+        Assert.assertTrue(lines[1].contains("java.lang.NumberFormatException"))
+    }
+}